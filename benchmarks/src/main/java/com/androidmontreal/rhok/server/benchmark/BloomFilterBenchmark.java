@@ -0,0 +1,76 @@
+package com.androidmontreal.rhok.server.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.androidmontreal.rhok.server.service.ScalableBloomFilter;
+
+/**
+ * <p>The known emails filter a signup checks before looking its email up, at a million emails.
+ * <ul>
+ * <li>knownEmail - an email that's in, every stage hash gets checked.
+ * <li>newEmail - one that isn't, the usual signup. Mostly stops at the first clear bit.
+ * <li>add - a new email going in, past the first stage's capacity.
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class BloomFilterBenchmark {
+
+	static final int EMAILS = 1000000;
+
+	@State(Scope.Benchmark)
+	public static class Filter {
+		ScalableBloomFilter filter;
+		String[] emails;
+
+		@Setup
+		public void setup() {
+			// Half the capacity in the first stage, so the filter has grown once like it would in production.
+			filter = new ScalableBloomFilter(EMAILS / 2, 0.01);
+			emails = new String[EMAILS];
+			for( int i = 0; i < EMAILS; i++ ) {
+				emails[i] = "user" + i + "@benchmark.org";
+				filter.add(emails[i]);
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Picker {
+		int next;
+		long sequence;
+	}
+
+	@Benchmark
+	public boolean knownEmail(Filter state, Picker picker) {
+		picker.next = (picker.next + 7919) % EMAILS;
+		return state.filter.mightContain(state.emails[picker.next]);
+	}
+
+	@Benchmark
+	public boolean newEmail(Filter state, Picker picker) {
+		return state.filter.mightContain(Thread.currentThread().getId() + "-" + picker.sequence++ + "@benchmark.org");
+	}
+
+	@Benchmark
+	public void add(Filter state, Picker picker) {
+		state.filter.add(Thread.currentThread().getId() + "+" + picker.sequence++ + "@benchmark.org");
+	}
+
+}
@@ -0,0 +1,75 @@
+package com.androidmontreal.rhok.server.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.androidmontreal.rhok.server.security.RateLimiter;
+
+/**
+ * <p>What login throttling adds to every login and signup, under contention.
+ * <ul>
+ * <li>sameKey - every thread on one account, the CAS retry case.
+ * <li>manyKeys - threads spread over 100000 accounts (all tracked, no sweeps).
+ * <li>newKeys - a never-seen email every time, at the key cap: the stuffing case.
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class RateLimiterBenchmark {
+
+	static final int KEYS = 100000;
+
+	@State(Scope.Benchmark)
+	public static class Limiter {
+		RateLimiter limiter;
+		String[] keys;
+
+		@Setup
+		public void setup() {
+			// About 27ns per token, so most acquires go through and we measure the bookkeeping.
+			limiter = new RateLimiter(Integer.MAX_VALUE, 1000, KEYS);
+			keys = new String[KEYS];
+			for( int i = 0; i < KEYS; i++ ) {
+				keys[i] = "user" + i + "@benchmark.org";
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Picker {
+		final Random random = new Random();
+		long sequence;
+	}
+
+	@Benchmark
+	public long sameKey(Limiter state) {
+		return state.limiter.acquire(state.keys[0], System.nanoTime());
+	}
+
+	@Benchmark
+	public long manyKeys(Limiter state, Picker picker) {
+		return state.limiter.acquire(state.keys[picker.random.nextInt(KEYS)], System.nanoTime());
+	}
+
+	@Benchmark
+	public long newKeys(Limiter state, Picker picker) {
+		return state.limiter.acquire(Thread.currentThread().getId() + "-" + picker.sequence++ + "@benchmark.org", System.nanoTime());
+	}
+
+}
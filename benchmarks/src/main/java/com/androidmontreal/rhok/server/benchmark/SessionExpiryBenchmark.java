@@ -0,0 +1,148 @@
+package com.androidmontreal.rhok.server.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.androidmontreal.rhok.server.session.TimingWheel;
+
+/**
+ * <p>Tracking session expiry deadlines: our {@link TimingWheel} against a plain {@link DelayQueue}.
+ * <ul>
+ * <li>touch - activity on a live session pushes its deadline out.
+ * <li>churn - one new session plus whatever came due, with the clock moving so the live count stays at sessions.
+ * </ul>
+ * <p>Both run on a simulated clock, 1 hour timeouts and 1 second ticks like the real thing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionExpiryBenchmark {
+
+	static final long TICK = 1000L;
+	static final long TIMEOUT = 60L * 60 * 1000;
+
+	/**
+	 * <p>Stands in for a cached session.
+	 */
+	public static class Item implements Delayed {
+		final Clock clock;
+		long deadline;
+
+		Item(Clock clock, long deadline) {
+			this.clock = clock;
+			this.deadline = deadline;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(deadline - clock.now, TimeUnit.MILLISECONDS);
+		}
+
+		public int compareTo(Delayed o) {
+			long other = ((Item) o).deadline;
+			return deadline < other ? -1 : (deadline == other ? 0 : 1);
+		}
+	}
+
+	public static class Clock {
+		long now = 1000000000000L;
+		// Clock moves this much per new session, which keeps about sessions of them alive.
+		long step;
+		// Touch sessions at random, in deadline order the DelayQueue would always find them at the top of its heap.
+		final Random random = new Random(42);
+	}
+
+	@State(Scope.Thread)
+	public static class WheelState extends Clock {
+		@Param({ "100000", "1000000" })
+		int sessions;
+
+		TimingWheel<Item> wheel;
+		long[] handles;
+		List<Item> expired = new ArrayList<Item>();
+
+		@Setup
+		public void setup() {
+			wheel = new TimingWheel<Item>(TICK, now, sessions);
+			handles = new long[sessions];
+			for( int i = 0; i < sessions; i++ ) {
+				long deadline = now + TIMEOUT * i / sessions;
+				handles[i] = wheel.schedule(deadline, new Item(this, deadline));
+			}
+			step = Math.max(1, TIMEOUT / sessions);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class QueueState extends Clock {
+		@Param({ "100000", "1000000" })
+		int sessions;
+
+		DelayQueue<Item> queue;
+		Item[] items;
+
+		@Setup
+		public void setup() {
+			queue = new DelayQueue<Item>();
+			items = new Item[sessions];
+			for( int i = 0; i < sessions; i++ ) {
+				items[i] = new Item(this, now + TIMEOUT * i / sessions);
+				queue.offer(items[i]);
+			}
+			step = Math.max(1, TIMEOUT / sessions);
+		}
+	}
+
+	@Benchmark
+	public boolean wheelTouch(WheelState state) {
+		int i = state.random.nextInt(state.sessions);
+		return state.wheel.reschedule(state.handles[i], ++state.now + TIMEOUT);
+	}
+
+	@Benchmark
+	public boolean delayQueueTouch(QueueState state) {
+		int i = state.random.nextInt(state.sessions);
+		Item item = state.items[i];
+		state.queue.remove(item);
+		item.deadline = ++state.now + TIMEOUT;
+		return state.queue.offer(item);
+	}
+
+	@Benchmark
+	public int wheelChurn(WheelState state) {
+		long now = state.now += state.step;
+		state.wheel.schedule(now + TIMEOUT, new Item(state, now + TIMEOUT));
+		int fired = state.wheel.advance(now, state.expired);
+		state.expired.clear();
+		return fired;
+	}
+
+	@Benchmark
+	public int delayQueueChurn(QueueState state) {
+		long now = state.now += state.step;
+		state.queue.offer(new Item(state, now + TIMEOUT));
+		int fired = 0;
+		while( state.queue.poll() != null ) {
+			fired++;
+		}
+		return fired;
+	}
+
+}
@@ -0,0 +1,58 @@
+package com.androidmontreal.rhok.server.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.androidmontreal.rhok.server.model.UserSession;
+import com.androidmontreal.rhok.server.security.SessionTokens;
+
+/**
+ * <p>Session key generation, on every login. And the signed token alternative: issued on login, verified on
+ * every session check.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionKeyBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Tokens {
+		SessionTokens tokens;
+		String token;
+
+		@Setup
+		public void setup() {
+			System.setProperty("rhok.session.tokenSecret", "benchmark");
+			tokens = new SessionTokens();
+			token = tokens.issue(42L, System.currentTimeMillis());
+		}
+	}
+
+	@Benchmark
+	public String generateKey() {
+		return UserSession.generateKey();
+	}
+
+	@Benchmark
+	public String issueToken(Tokens state) {
+		return state.tokens.issue(42L, System.currentTimeMillis());
+	}
+
+	@Benchmark
+	public SessionTokens.Token verifyToken(Tokens state) {
+		return state.tokens.verify(state.token, System.currentTimeMillis());
+	}
+
+}
@@ -0,0 +1,88 @@
+package com.androidmontreal.rhok.server.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.androidmontreal.rhok.server.validation.EmailValidator;
+import com.androidmontreal.rhok.server.validation.PasswordValidator;
+
+/**
+ * <p>Hand-written email/password checks against the regexps they replaced, on regular and on hostile input.
+ * The "hostile" and "long" shapes make the old regexps backtrack or rescan, the gap widens with input size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValidationBenchmark {
+
+	private static final Pattern EMAIL_REGEXP = Pattern.compile("^[_A-Za-z0-9-]+(\\.[_A-Za-z0-9-]+)*@[A-Za-z0-9]+(\\.[A-Za-z0-9]+)*(\\.[A-Za-z]{2,})$");
+	private static final Pattern PASSWORD_REGEXP = Pattern.compile("((?=.*\\d)(?=.*[a-z])(?=.*[A-Z]).{6,20})");
+
+	@Param({ "regular", "hostileLocal", "hostileDomain", "long" })
+	public String shape;
+
+	private String email;
+	private String password;
+
+	@Setup
+	public void setup() {
+		if( "regular".equals(shape) ) {
+			email = "jane.doe@android-montreal.example.org";
+			password = "Secret123";
+		} else if( "hostileLocal".equals(shape) ) {
+			// Many tiny labels, then a character that can't match.
+			email = repeat("a.", 15) + "a!";
+			password = repeat("a", 5000);
+		} else if( "hostileDomain".equals(shape) ) {
+			email = "a@" + repeat("a.a", 15) + ".a!";
+			password = repeat("A1", 5000);
+		} else {
+			email = repeat("a", 5000) + "@" + repeat("b", 5000) + ".com";
+			password = repeat("aA1", 5000);
+		}
+	}
+
+	private static String repeat(String value, int times) {
+		StringBuilder builder = new StringBuilder(value.length() * times);
+		for( int i = 0; i < times; i++ ) {
+			builder.append(value);
+		}
+		return builder.toString();
+	}
+
+	@Benchmark
+	public boolean emailChecker() {
+		return EmailValidator.isValidEmail(email);
+	}
+
+	@Benchmark
+	public boolean emailRegexp() {
+		return EMAIL_REGEXP.matcher(email).matches();
+	}
+
+	@Benchmark
+	public boolean passwordChecker() {
+		return PasswordValidator.isValidPassword(password);
+	}
+
+	@Benchmark
+	public boolean passwordRegexp() {
+		return PASSWORD_REGEXP.matcher(password).matches();
+	}
+
+}
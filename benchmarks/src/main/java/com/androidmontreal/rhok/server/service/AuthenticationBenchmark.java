@@ -0,0 +1,80 @@
+package com.androidmontreal.rhok.server.service;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.androidmontreal.rhok.server.service.AuthenticationWebService.AuthenticationRequest;
+import com.androidmontreal.rhok.server.service.AuthenticationWebService.AuthenticationResult;
+
+/**
+ * <p>Full login: user lookup, password check, logout of the previous session, new session.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthenticationBenchmark {
+
+	private static final String EMAIL = "authenticate@benchmark.org";
+
+	private AuthenticationWebService service;
+	private AuthenticationRequest goodCredentials;
+	private AuthenticationRequest badCredentials;
+	private AuthenticationRequest unknownUser;
+
+	@Setup
+	public void setup() {
+		service = BenchmarkFixture.get(AuthenticationWebService.class);
+		BenchmarkFixture.createUser(EMAIL, BenchmarkFixture.PASSWORD);
+
+		goodCredentials = request(EMAIL, BenchmarkFixture.PASSWORD);
+		badCredentials = request(EMAIL, "Wrong123");
+		unknownUser = request("nobody@benchmark.org", BenchmarkFixture.PASSWORD);
+
+		// Each case once for real before measuring, a benchmark of the wrong outcome (or of an exception) is no use.
+		expect(authenticate().getSessionKey() != null, "the good password to log in");
+		expect(authenticateBadPassword().getSessionKey() == null, "the bad password to be refused");
+		expect(authenticateUnknownUser().getSessionKey() == null, "the unknown user to be refused");
+	}
+
+	private static void expect(boolean outcome, String what) {
+		if( !outcome ) {
+			throw new IllegalStateException("Expected " + what + ", check the fixture.");
+		}
+	}
+
+	private static AuthenticationRequest request(String email, String password) {
+		AuthenticationRequest request = new AuthenticationRequest();
+		request.setEmail(email);
+		request.setPassword(password);
+		return request;
+	}
+
+	@Benchmark
+	public AuthenticationResult authenticate() {
+		return service.authenticate(goodCredentials, null);
+	}
+
+	@Benchmark
+	public AuthenticationResult authenticateBadPassword() {
+		return service.authenticate(badCredentials, null);
+	}
+
+	@Benchmark
+	public AuthenticationResult authenticateUnknownUser() {
+		return service.authenticate(unknownUser, null);
+	}
+
+}
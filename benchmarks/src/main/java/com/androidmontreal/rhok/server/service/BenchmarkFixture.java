@@ -0,0 +1,50 @@
+package com.androidmontreal.rhok.server.service;
+
+import com.androidmontreal.rhok.server.hibernate.HibernateUtil;
+import com.androidmontreal.rhok.server.hibernate.TransactionModule;
+import com.androidmontreal.rhok.server.service.UserManagement.CreateUserCommand;
+import com.androidmontreal.rhok.server.service.UserManagement.CreateUserResult;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * <p>Boots what the benchmarks need, once per JVM: a SessionFactory on in-memory H2, and an injector with
+ * @Transactionnal support. Lives in the service package so benchmarks can reach the package-private tx* methods.
+ */
+public class BenchmarkFixture {
+
+	public static final String CONFIG_FILE = "hibernate-benchmark.cfg.xml";
+
+	// Matches the password rules, see ValidPassword.
+	public static final String PASSWORD = "Benchmark123";
+
+	private static Injector injector;
+
+	public static synchronized Injector injector() {
+		if( injector == null ) {
+			// Benchmarks hammer the same few accounts, login throttling would turn them into 429s.
+			System.setProperty("rhok.throttle.enabled", "false");
+			HibernateUtil.initSessionFactory(CONFIG_FILE);
+			injector = Guice.createInjector(new TransactionModule());
+			// Loaded here rather than on the background thread, so measurements don't start before it's ready.
+			injector.getInstance(KnownEmails.class).load(HibernateUtil.getSessionFactory());
+		}
+		return injector;
+	}
+
+	public static <T> T get(Class<T> type) {
+		return injector().getInstance(type);
+	}
+
+	/**
+	 * <p>Signs up a user through the regular createUser path.
+	 */
+	public static CreateUserResult createUser(String email, String password) {
+		UserManagement userManagement = get(UserManagement.class);
+		CreateUserCommand command = userManagement.new CreateUserCommand();
+		command.setEmail(email);
+		command.setPassword(password);
+		return userManagement.createUser(command, null);
+	}
+
+}
@@ -0,0 +1,123 @@
+package com.androidmontreal.rhok.server.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.androidmontreal.rhok.server.service.AuthenticationWebService.AuthenticationRequest;
+import com.androidmontreal.rhok.server.service.UserManagement.CreateUserResult;
+import com.androidmontreal.rhok.server.service.result.ValidationResult;
+import com.androidmontreal.rhok.server.web.StreamingJsonProvider;
+import com.sun.jersey.api.json.JSONConfiguration;
+import com.sun.jersey.api.json.JSONJAXBContext;
+import com.sun.jersey.api.json.JSONMarshaller;
+import com.sun.jersey.api.json.JSONUnmarshaller;
+
+/**
+ * <p>JSON (de)serialization of our small request/response bodies, the same JAXB-based mapping Jersey uses by default,
+ * against the *Streaming versions going through our {@link StreamingJsonProvider} codecs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+
+	private static final String AUTHENTICATION_REQUEST_JSON = "{\"email\":\"someone@benchmark.org\",\"password\":\"Benchmark123\"}";
+	private static final byte[] AUTHENTICATION_REQUEST_BYTES = AUTHENTICATION_REQUEST_JSON.getBytes(StandardCharsets.UTF_8);
+
+	private JSONMarshaller marshaller;
+	private JSONUnmarshaller unmarshaller;
+
+	private CreateUserResult created;
+	private CreateUserResult validationFailed;
+	private String validationFailedJson;
+
+	@Setup
+	public void setup() throws JAXBException {
+		JSONJAXBContext context = new JSONJAXBContext(JSONConfiguration.DEFAULT,
+				AuthenticationRequest.class, CreateUserResult.class, ValidationResult.class);
+		marshaller = context.createJSONMarshaller();
+		unmarshaller = context.createJSONUnmarshaller();
+
+		created = new CreateUserResult();
+		created.setResultCode(CreateUserResult.Code.USER_CREATED);
+
+		validationFailed = new CreateUserResult();
+		validationFailed.setResultCode(CreateUserResult.Code.VALIDATION_FAILED);
+		List<ValidationResult> results = new ArrayList<ValidationResult>();
+		results.add(validationResult("email", "must match \"^[_A-Za-z0-9-]+(\\.[_A-Za-z0-9-]+)*@[A-Za-z0-9]+(\\.[A-Za-z0-9]+)*(\\.[A-Za-z]{2,})$\""));
+		results.add(validationResult("password", "must match \"((?=.*\\d)(?=.*[a-z])(?=.*[A-Z]).{6,20})\""));
+		validationFailed.setValidationResults(results);
+		validationFailedJson = writeCreateUserResult(validationFailed);
+	}
+
+	private static ValidationResult validationResult(String fieldName, String message) {
+		ValidationResult result = new ValidationResult();
+		result.setFieldName(fieldName);
+		result.setMessage(message);
+		return result;
+	}
+
+	private String writeCreateUserResult(CreateUserResult result) throws JAXBException {
+		StringWriter writer = new StringWriter();
+		marshaller.marshallToJSON(result, writer);
+		return writer.toString();
+	}
+
+	@Benchmark
+	public AuthenticationRequest readAuthenticationRequest() throws JAXBException {
+		return unmarshaller.unmarshalFromJSON(new StringReader(AUTHENTICATION_REQUEST_JSON), AuthenticationRequest.class);
+	}
+
+	@Benchmark
+	public String writeUserCreated() throws JAXBException {
+		return writeCreateUserResult(created);
+	}
+
+	@Benchmark
+	public String writeValidationFailed() throws JAXBException {
+		return writeCreateUserResult(validationFailed);
+	}
+
+	@Benchmark
+	public CreateUserResult readValidationFailed() throws JAXBException {
+		return unmarshaller.unmarshalFromJSON(new StringReader(validationFailedJson), CreateUserResult.class);
+	}
+
+	@Benchmark
+	public AuthenticationRequest readAuthenticationRequestStreaming() throws IOException {
+		return StreamingJsonProvider.fromJson(JsonCodecs.AUTHENTICATION_REQUEST, new ByteArrayInputStream(AUTHENTICATION_REQUEST_BYTES));
+	}
+
+	@Benchmark
+	public byte[] writeUserCreatedStreaming() throws IOException {
+		return StreamingJsonProvider.toJson(JsonCodecs.CREATE_USER_RESULT, created, "UTF-8");
+	}
+
+	@Benchmark
+	public byte[] writeValidationFailedStreaming() throws IOException {
+		return StreamingJsonProvider.toJson(JsonCodecs.CREATE_USER_RESULT, validationFailed, "UTF-8");
+	}
+
+}
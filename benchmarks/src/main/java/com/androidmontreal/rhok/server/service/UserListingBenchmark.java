@@ -0,0 +1,126 @@
+package com.androidmontreal.rhok.server.service;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.androidmontreal.rhok.server.hibernate.HibernateUtil;
+import com.androidmontreal.rhok.server.service.UserManagement.UserPage;
+
+/**
+ * <p>GET /users pages at the start and at the end of a large USER table. Keyset pages should cost the same at
+ * both ends, offsetDeepPage is the OFFSET query we didn't write, for comparison.
+ * <p>A third of the users are unconfirmed and a tenth archived, for the filtered pages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class UserListingBenchmark {
+
+	private static final String ADMIN_TOKEN = "benchmark";
+
+	// Not a real hash, nobody logs in here.
+	private static final String PASSWORD_HASH = "benchmark";
+
+	private static final int POPULATE_CHUNK = 1000;
+
+	@Param({ "1000000" })
+	int users;
+
+	@Param({ "100" })
+	int limit;
+
+	private UserManagement userManagement;
+	private String deepCursor;
+	private int deepOffset;
+
+	@Setup
+	public void setup() {
+		System.setProperty("rhok.admin.token", ADMIN_TOKEN);
+		userManagement = BenchmarkFixture.get(UserManagement.class);
+		populate();
+
+		// Last full page.
+		deepOffset = users - limit;
+		Long id = (Long) offsetPage(deepOffset - 1, 1).get(0)[0];
+		deepCursor = UserManagement.encodeCursor(id);
+	}
+
+	/**
+	 * <p>Straight in SQL (H2's SYSTEM_RANGE), a million inserts through hibernate take minutes. Committed in chunks,
+	 * H2's MVCC mode slows to a crawl on large uncommitted transactions.
+	 */
+	private void populate() {
+		Session session = HibernateUtil.getSessionFactory().openSession();
+		for( int from = 1; from <= users; from += POPULATE_CHUNK ) {
+			Transaction tx = session.beginTransaction();
+			session.createSQLQuery(
+					"insert into USER (id, archived, confirmed, email, normalizedEmail, password, lastEmailCheck) " +
+					"select x, mod(x, 10) = 0, mod(x, 3) <> 0, 'user' || x || '@benchmark.org', " +
+					"'user' || x || '@benchmark.org', :password, current_timestamp() from system_range(:from, :to)")
+				.setString("password", PASSWORD_HASH)
+				.setInteger("from", from)
+				.setInteger("to", Math.min(users, from + POPULATE_CHUNK - 1))
+				.executeUpdate();
+			tx.commit();
+		}
+		session.close();
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Object[]> offsetPage(int offset, int max) {
+		Session session = HibernateUtil.getSessionFactory().openSession();
+		try {
+			return session.createQuery(
+					"select u.id, u.email, u.username, u.firstName, u.lastName, u.confirmed, u.archived " +
+					"from User as u order by u.id")
+				.setFirstResult(offset)
+				.setMaxResults(max)
+				.list();
+		} finally {
+			session.close();
+		}
+	}
+
+	@Benchmark
+	public UserPage firstPage() {
+		return userManagement.listUsers(ADMIN_TOKEN, null, limit, null, null);
+	}
+
+	@Benchmark
+	public UserPage deepPage() {
+		return userManagement.listUsers(ADMIN_TOKEN, deepCursor, limit, null, null);
+	}
+
+	@Benchmark
+	public UserPage firstPageFiltered() {
+		return userManagement.listUsers(ADMIN_TOKEN, null, limit, Boolean.TRUE, Boolean.FALSE);
+	}
+
+	@Benchmark
+	public UserPage deepPageFiltered() {
+		return userManagement.listUsers(ADMIN_TOKEN, deepCursor, limit, Boolean.TRUE, Boolean.FALSE);
+	}
+
+	@Benchmark
+	public List<Object[]> offsetDeepPage() {
+		return offsetPage(deepOffset, limit + 1);
+	}
+
+}
@@ -0,0 +1,68 @@
+package com.androidmontreal.rhok.server.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.androidmontreal.rhok.server.model.User;
+import com.androidmontreal.rhok.server.service.UserManagement.CreateUserResult;
+
+/**
+ * <p>Signup (new and existing emails, and validation failures) and the email lookup behind both signup and login.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserManagementBenchmark {
+
+	private static final String EXISTING_EMAIL = "existing@benchmark.org";
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	private UserManagement userManagement;
+
+	@Setup
+	public void setup() {
+		userManagement = BenchmarkFixture.get(UserManagement.class);
+		BenchmarkFixture.createUser(EXISTING_EMAIL, BenchmarkFixture.PASSWORD);
+	}
+
+	@Benchmark
+	public CreateUserResult createNewUser() {
+		return BenchmarkFixture.createUser("new" + sequence.incrementAndGet() + "@benchmark.org", BenchmarkFixture.PASSWORD);
+	}
+
+	@Benchmark
+	public CreateUserResult createExistingUser() {
+		return BenchmarkFixture.createUser(EXISTING_EMAIL, BenchmarkFixture.PASSWORD);
+	}
+
+	@Benchmark
+	public CreateUserResult createInvalidUser() {
+		return BenchmarkFixture.createUser("invalid" + sequence.incrementAndGet() + "@benchmark", "weak");
+	}
+
+	@Benchmark
+	public User findExistingUser() {
+		return userManagement.txFindUser(EXISTING_EMAIL);
+	}
+
+	@Benchmark
+	public User findUnknownUser() {
+		return userManagement.txFindUser("unknown@benchmark.org");
+	}
+
+}
@@ -1,27 +1,98 @@
 package com.androidmontreal.rhok.server;
 
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import javax.servlet.DispatcherType;
+
 import org.eclipse.jetty.embedded.SecuredHelloHandler;
+import org.eclipse.jetty.server.AbstractConnector;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.bio.SocketConnector;
 import org.eclipse.jetty.server.handler.HandlerList;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
 import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.servlet.FilterHolder;
 import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.androidmontreal.rhok.server.hibernate.HibernateUtil;
+import com.androidmontreal.rhok.server.metrics.MetricsRegistry;
+import com.androidmontreal.rhok.server.web.AdmissionControlHandler;
+import com.androidmontreal.rhok.server.web.AsyncDispatchFilter;
+import com.androidmontreal.rhok.server.web.ReadinessHandler;
+import com.androidmontreal.rhok.server.web.RequestQueue;
 import com.google.inject.servlet.GuiceFilter;
 
 /**
  * <p>Based on examples and tutorials found on the web.
  * <p>The security part of this is inspired from {@link SecuredHelloHandler} in example-jetty-embedded.
- * 
+ * <p>Start with --async (or -Drhok.async=true) to hand requests over to a DB worker pool, see {@link AsyncDispatchFilter}.
+ * Pool settings: rhok.async.threads (default 32), rhok.async.queueSize (default 1000), rhok.async.timeout in ms (default 30000).
+ * rhok.async.untimedPaths lists the streaming endpoints the timeout doesn't cut short (default /users/export,/users/bulk).
+ * <p>Overload protection is on by default, -Drhok.admission=false to turn it off. See {@link AdmissionControlHandler}.
+ * <p>Jetty starts listening while hibernate is still booting, GET /ready says when we can take traffic. See
+ * {@link ReadinessHandler}.
+ * <p>Settings can come from a file, flags or a profile, see {@link LauncherConfig}. Connector and threads:
+ * <ul>
+ * <li>rhok.http.port (default 8080), rhok.http.host (default all interfaces)
+ * <li>rhok.http.connector - nio (default, SelectChannelConnector) or blocking (SocketConnector, a thread per connection)
+ * <li>rhok.http.acceptors - acceptor threads. For nio it's also the number of selectors, Jetty 8 ties the two.
+ * <li>rhok.http.acceptQueueSize - listen backlog, connections the OS holds before we accept them
+ * <li>rhok.http.idleTimeout - ms before an idle connection gets closed
+ * <li>rhok.http.lowResourcesConnections, rhok.http.lowResourcesIdleTimeout - nio only, past that many connections the
+ * idle timeout drops to the second value
+ * <li>rhok.http.requestHeaderSize, requestBufferSize, responseHeaderSize, responseBufferSize - bytes
+ * <li>rhok.threads.min (default 8), rhok.threads.max (default 200), rhok.threads.idleTimeout (ms),
+ * rhok.threads.maxQueued (default 0, no bound: shedding is the admission control's job, see {@link RequestQueue})
+ * </ul>
+ * <p>Connector settings left out keep Jetty's defaults.
  */
 public class Launcher {
 	
+	static private final Logger logger = LoggerFactory.getLogger(Launcher.class);
+	
 	public static void main(String[] args) throws Exception {
-		//FIXME: Quick hack for PoC [review]
-		HibernateUtil.initSessionFactory();
+		final long start = System.currentTimeMillis();
 		
-		// Create the server.
-		Server server = new Server(8080);
+		// First, everything below reads its settings from system properties.
+		LauncherConfig.apply(args);
+		
+		// Hibernate boots on its own thread while Jetty and Guice start below. Requests get 503s until it's done.
+		final ReadinessHandler readiness = new ReadinessHandler();
+		Thread boot = new Thread(new Runnable() {
+			public void run() {
+				try {
+					HibernateUtil.initSessionFactory();
+					HibernateUtil.warmUp();
+					readiness.ready();
+					logger.info("Ready in {} ms.", System.currentTimeMillis() - start);
+				} catch (Throwable e) {
+					// Nothing to serve without a database. Exit so the deploy notices, rather than stay unready.
+					logger.error("Boot failed, shutting down.", e);
+					readiness.failed();
+					System.exit(1);
+				}
+			}
+		}, "hibernate-boot");
+		boot.start();
+		
+		// Create the server. Overload gets 503s from the admission control below, not from a full queue: it turns
+		// away requests that waited too long in this one.
+		Server server = new Server();
+		RequestQueue requestQueue = new RequestQueue(Integer.getInteger("rhok.threads.maxQueued", 0));
+		QueuedThreadPool threadPool = new QueuedThreadPool(requestQueue);
+		threadPool.setMinThreads(Integer.getInteger("rhok.threads.min", 8));
+		threadPool.setMaxThreads(Integer.getInteger("rhok.threads.max", 200));
+		Integer threadIdleTimeout = Integer.getInteger("rhok.threads.idleTimeout");
+		if( threadIdleTimeout != null ) {
+			threadPool.setMaxIdleTimeMs(threadIdleTimeout);
+		}
+		server.setThreadPool(threadPool);
+		server.addConnector(createConnector());
+		MetricsRegistry.register("jettyQueue", requestQueue);
 		
 		// ** SERVLET CONTEXT HANDLER
 		// Create a servlet context and add the jersey servlet.
@@ -30,6 +101,19 @@ public class Launcher {
 		// Add our Guice listener that includes our bindings
 		sch.addEventListener(new RHoKServletConfig());
 		
+		// Optional async mode. Has to come before GuiceFilter, it runs the rest of the chain on its own threads.
+		if( Boolean.getBoolean("rhok.async") || Arrays.asList(args).contains("--async") ) {
+			AsyncDispatchFilter asyncFilter = new AsyncDispatchFilter(
+					Integer.getInteger("rhok.async.threads", 32),
+					Integer.getInteger("rhok.async.queueSize", 1000),
+					Long.getLong("rhok.async.timeout", 30000L),
+					Arrays.asList(System.getProperty("rhok.async.untimedPaths", "/users/export,/users/bulk").split(",")));
+			MetricsRegistry.register("async", asyncFilter);
+			FilterHolder asyncHolder = new FilterHolder(asyncFilter);
+			asyncHolder.setAsyncSupported(true);
+			sch.addFilter(asyncHolder, "/*", EnumSet.of(DispatcherType.REQUEST));
+		}
+		
 		// Then add GuiceFilter and configure the server to
 		// reroute all requests through this filter.
 		sch.addFilter(GuiceFilter.class, "/*", null);
@@ -56,11 +140,82 @@ public class Launcher {
 //		handlerList.addHandler(resourceHandler);
 		handlerList.addHandler(sch);
 		
-		server.setHandler(handlerList);
+		// Load shedding goes in front of everything but the readiness gate, /ready polls don't count against it.
+		if( Boolean.parseBoolean(System.getProperty("rhok.admission", "true")) ) {
+			AdmissionControlHandler admissionControl = new AdmissionControlHandler();
+			admissionControl.setHandler(handlerList);
+			MetricsRegistry.register("admission", admissionControl);
+			readiness.setHandler(admissionControl);
+		} else {
+			readiness.setHandler(handlerList);
+		}
+		MetricsRegistry.register("readiness", readiness);
+		server.setHandler(readiness);
 		
 		// Start the server
 		server.start();
+		logger.info("Server started in {} ms.", System.currentTimeMillis() - start);
 		server.join();
 	}
 	
-}
\ No newline at end of file
+	/**
+	 * <p>The HTTP connector, as configured. See the class comment for the settings.
+	 */
+	static AbstractConnector createConnector() {
+		String type = System.getProperty("rhok.http.connector", "nio");
+		AbstractConnector connector;
+		if( "nio".equals(type) ) {
+			SelectChannelConnector nio = new SelectChannelConnector();
+			Integer lowResourcesConnections = Integer.getInteger("rhok.http.lowResourcesConnections");
+			if( lowResourcesConnections != null ) {
+				nio.setLowResourcesConnections(lowResourcesConnections);
+			}
+			connector = nio;
+		} else if( "blocking".equals(type) ) {
+			connector = new SocketConnector();
+		} else {
+			throw new IllegalArgumentException("Unknown rhok.http.connector, expected nio or blocking: " + type);
+		}
+		
+		connector.setPort(Integer.getInteger("rhok.http.port", 8080));
+		connector.setHost(System.getProperty("rhok.http.host"));
+		
+		Integer value = Integer.getInteger("rhok.http.acceptors");
+		if( value != null ) {
+			connector.setAcceptors(value);
+		}
+		value = Integer.getInteger("rhok.http.acceptQueueSize");
+		if( value != null ) {
+			connector.setAcceptQueueSize(value);
+		}
+		value = Integer.getInteger("rhok.http.idleTimeout");
+		if( value != null ) {
+			connector.setMaxIdleTime(value);
+		}
+		value = Integer.getInteger("rhok.http.lowResourcesIdleTimeout");
+		if( value != null ) {
+			connector.setLowResourcesMaxIdleTime(value);
+		}
+		value = Integer.getInteger("rhok.http.requestHeaderSize");
+		if( value != null ) {
+			connector.setRequestHeaderSize(value);
+		}
+		value = Integer.getInteger("rhok.http.requestBufferSize");
+		if( value != null ) {
+			connector.setRequestBufferSize(value);
+		}
+		value = Integer.getInteger("rhok.http.responseHeaderSize");
+		if( value != null ) {
+			connector.setResponseHeaderSize(value);
+		}
+		value = Integer.getInteger("rhok.http.responseBufferSize");
+		if( value != null ) {
+			connector.setResponseBufferSize(value);
+		}
+		
+		logger.info("HTTP connector: {} on port {}, {} acceptors, accept queue {}, idle timeout {} ms.", new Object[] { 
+				type, connector.getPort(), connector.getAcceptors(), connector.getAcceptQueueSize(), connector.getMaxIdleTime() });
+		return connector;
+	}
+	
+}
@@ -0,0 +1,96 @@
+package com.androidmontreal.rhok.server;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Gathers the launcher's settings from outside the code. Everything in here ends up as rhok.* system
+ * properties, which is what the rest of the server already reads, so a config file or a flag can set anything a
+ * -D can (connector, thread pool, connection pool, session settings...).
+ * <p>Where settings come from, the first one found wins:
+ * <ol>
+ * <li>Command line flags, --key=value. The rhok. prefix is optional: --http.port=9090.
+ * <li>-D system properties.
+ * <li>A properties file, --config=path/to/file.properties.
+ * <li>A profile preset, --profile=name (or rhok.profile in the file). Presets live in /launcher/[name].properties
+ * on the classpath: mobile (lots of idle keep-alive connections) and bursty (short clients that come in waves).
+ * <li>The defaults in the code.
+ * </ol>
+ */
+public class LauncherConfig {
+
+	static private final Logger logger = LoggerFactory.getLogger(LauncherConfig.class);
+
+	private static final String PREFIX = "rhok.";
+	private static final String CONFIG_FLAG = "--config=";
+	private static final String PROFILE_KEY = "rhok.profile";
+
+	private LauncherConfig() {
+	}
+
+	/**
+	 * <p>Reads the file, profile and flags and sets the resulting system properties. Call before anything reads
+	 * its settings. Arguments that aren't --key=value (--async for example) are left alone.
+	 * @throws IOException if the config file or the profile can't be read.
+	 */
+	public static void apply(String[] args) throws IOException {
+		Properties flags = new Properties();
+		String configFile = null;
+		for( String arg : args ) {
+			if( arg.startsWith(CONFIG_FLAG) ) {
+				configFile = arg.substring(CONFIG_FLAG.length());
+			} else if( arg.startsWith("--") && arg.indexOf('=') > 2 ) {
+				String key = arg.substring(2, arg.indexOf('='));
+				flags.setProperty(key.startsWith(PREFIX) ? key : PREFIX + key, arg.substring(arg.indexOf('=') + 1));
+			}
+		}
+
+		Properties file = new Properties();
+		if( configFile != null ) {
+			InputStream in = new FileInputStream(configFile);
+			try {
+				file.load(in);
+			} finally {
+				in.close();
+			}
+			logger.info("Loaded launcher config from {}.", configFile);
+		}
+
+		String profile = flags.getProperty(PROFILE_KEY, System.getProperty(PROFILE_KEY, file.getProperty(PROFILE_KEY)));
+		Properties defaults = new Properties();
+		if( profile != null ) {
+			InputStream in = LauncherConfig.class.getResourceAsStream("/launcher/" + profile + ".properties");
+			if( in == null ) {
+				throw new IOException("Unknown launcher profile: " + profile);
+			}
+			try {
+				defaults.load(in);
+			} finally {
+				in.close();
+			}
+			logger.info("Using the {} launcher profile.", profile);
+		}
+
+		// -D beats the file, the file beats the profile. Flags beat everything.
+		setMissing(file);
+		setMissing(defaults);
+		for( Map.Entry<Object, Object> entry : flags.entrySet() ) {
+			System.setProperty((String) entry.getKey(), (String) entry.getValue());
+		}
+	}
+
+	private static void setMissing(Properties properties) {
+		for( String key : properties.stringPropertyNames() ) {
+			if( System.getProperty(key) == null ) {
+				System.setProperty(key, properties.getProperty(key).trim());
+			}
+		}
+	}
+
+}
@@ -1,9 +1,24 @@
 package com.androidmontreal.rhok.server;
 
+import javax.servlet.ServletContextEvent;
+import javax.ws.rs.Path;
+
 import com.androidmontreal.rhok.server.hibernate.TransactionInterceptor;
 import com.androidmontreal.rhok.server.hibernate.Transactionnal;
+import com.androidmontreal.rhok.server.metrics.MetricsInterceptor;
+import com.androidmontreal.rhok.server.metrics.MetricsRegistry;
+import com.androidmontreal.rhok.server.metrics.MetricsResource;
+import com.androidmontreal.rhok.server.security.LoginThrottle;
+import com.androidmontreal.rhok.server.security.PasswordHashing;
+import com.androidmontreal.rhok.server.security.SessionTokens;
 import com.androidmontreal.rhok.server.service.AuthenticationWebService;
+import com.androidmontreal.rhok.server.service.JsonCodecs;
+import com.androidmontreal.rhok.server.service.KnownEmails;
 import com.androidmontreal.rhok.server.service.UserManagement;
+import com.androidmontreal.rhok.server.session.SessionActivityWriter;
+import com.androidmontreal.rhok.server.session.SessionManager;
+import com.androidmontreal.rhok.server.session.SessionReaper;
+import com.androidmontreal.rhok.server.web.StreamingJsonProvider;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 import com.google.inject.matcher.Matchers;
@@ -16,11 +31,19 @@ import com.sun.jersey.guice.spi.container.servlet.GuiceContainer;
  * <p>TODO: More doc explaining the nuts and bolts of guice, jersey and jetty.
  */
 public class RHoKServletConfig extends GuiceServletContextListener {
+	
+	private Injector injector ;
+	
 	@Override
 	protected Injector getInjector() {
-		return Guice.createInjector(new JerseyServletModule() {
+		injector = Guice.createInjector(new JerseyServletModule() {
 			@Override
 			protected void configureServlets() {
+				// Per endpoint request/error counts and latencies. Bound first so it wraps everything else.
+				MetricsInterceptor metricsInterceptor = new MetricsInterceptor();
+				MetricsRegistry.register("endpoints", metricsInterceptor);
+				bindInterceptor(Matchers.annotatedWith(Path.class), MetricsInterceptor.RESOURCE_METHODS, metricsInterceptor);
+				
 				// @Transactionnal configuration.
 				// TODO: Use module instead if possible. It would be cleaner I think. (Need to read more on this...)
 				TransactionInterceptor interceptor = new TransactionInterceptor();
@@ -30,6 +53,27 @@ public class RHoKServletConfig extends GuiceServletContextListener {
 				// Register the management services
 				bind(UserManagement.class);
 				bind(AuthenticationWebService.class);
+				bind(MetricsResource.class);
+				// Which emails are taken, so most signups skip the lookup.
+				bind(KnownEmails.class);
+				
+				// Streaming JSON for our own request/response types, jersey-json still does anything else.
+				StreamingJsonProvider jsonProvider = new StreamingJsonProvider();
+				JsonCodecs.registerAll(jsonProvider);
+				MetricsRegistry.register("json", jsonProvider);
+				bind(StreamingJsonProvider.class).toInstance(jsonProvider);
+				
+				// Session checks, backed by an in-memory cache.
+				bind(SessionManager.class);
+				bind(SessionActivityWriter.class);
+				bind(SessionReaper.class);
+				// Or signed tokens instead, when rhok.session.mode=token.
+				bind(SessionTokens.class);
+				
+				// CPU heavy password work gets its own pool.
+				bind(PasswordHashing.class);
+				// Rate limits on login and signup.
+				bind(LoginThrottle.class);
 
 				// Important. Jersey hookup.
 				bind(GuiceContainer.class);
@@ -38,6 +82,38 @@ public class RHoKServletConfig extends GuiceServletContextListener {
 				serve("/*").with(GuiceContainer.class);
 			}
 		});
+		
+		// Background services.
+		injector.getInstance(SessionManager.class).start();
+		injector.getInstance(SessionActivityWriter.class).start();
+		injector.getInstance(SessionReaper.class).start();
+		injector.getInstance(KnownEmails.class).start();
+		injector.getInstance(SessionTokens.class).start();
+		
+		MetricsRegistry.register("sessions", injector.getInstance(SessionManager.class));
+		MetricsRegistry.register("sessionActivity", injector.getInstance(SessionActivityWriter.class));
+		MetricsRegistry.register("sessionReaper", injector.getInstance(SessionReaper.class));
+		MetricsRegistry.register("passwordHashing", injector.getInstance(PasswordHashing.class));
+		MetricsRegistry.register("loginThrottle", injector.getInstance(LoginThrottle.class));
+		MetricsRegistry.register("knownEmails", injector.getInstance(KnownEmails.class));
+		if( injector.getInstance(SessionTokens.class).isEnabled() ) {
+			MetricsRegistry.register("sessionTokens", injector.getInstance(SessionTokens.class));
+		}
+		
+		return injector ;
+	}
+	
+	@Override
+	public void contextDestroyed(ServletContextEvent servletContextEvent) {
+		if( injector != null ) {
+			injector.getInstance(SessionReaper.class).stop();
+			injector.getInstance(SessionManager.class).stop();
+			injector.getInstance(SessionTokens.class).stop();
+			injector.getInstance(KnownEmails.class).stop();
+			// Don't lose pending session activity on shutdown.
+			injector.getInstance(SessionActivityWriter.class).stop();
+		}
+		super.contextDestroyed(servletContextEvent);
 	}
 
 	/**
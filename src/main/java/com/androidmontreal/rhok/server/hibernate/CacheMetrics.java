@@ -0,0 +1,46 @@
+package com.androidmontreal.rhok.server.hibernate;
+
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
+
+import com.androidmontreal.rhok.server.metrics.MetricSource;
+import com.androidmontreal.rhok.server.metrics.MetricsWriter;
+
+/**
+ * <p>Second-level and query cache effectiveness, per region, straight from hibernate's {@link Statistics}.
+ * A region with a low hit ratio is costing memory for nothing.
+ */
+public class CacheMetrics implements MetricSource {
+
+	private final Statistics statistics;
+
+	CacheMetrics(Statistics statistics) {
+		this.statistics = statistics;
+	}
+
+	public void writeMetrics(MetricsWriter out) {
+		for( String region : statistics.getSecondLevelCacheRegionNames() ) {
+			SecondLevelCacheStatistics stats = statistics.getSecondLevelCacheStatistics(region);
+			if( stats == null ) {
+				continue;
+			}
+			String labels = "region=\"" + region + "\"";
+			long hits = stats.getHitCount();
+			long misses = stats.getMissCount();
+			out.counter("rhok_cache_hits_total", labels, hits);
+			out.counter("rhok_cache_misses_total", labels, misses);
+			out.counter("rhok_cache_puts_total", labels, stats.getPutCount());
+			out.gauge("rhok_cache_hit_ratio", labels, hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+			out.gauge("rhok_cache_elements", labels, stats.getElementCountInMemory());
+		}
+
+		// All query regions together, this includes lookups the timestamps made stale.
+		long queryHits = statistics.getQueryCacheHitCount();
+		long queryMisses = statistics.getQueryCacheMissCount();
+		out.counter("rhok_query_cache_hits_total", null, queryHits);
+		out.counter("rhok_query_cache_misses_total", null, queryMisses);
+		out.gauge("rhok_query_cache_hit_ratio", null,
+				queryHits + queryMisses == 0 ? 0.0 : (double) queryHits / (queryHits + queryMisses));
+	}
+
+}
@@ -0,0 +1,86 @@
+package com.androidmontreal.rhok.server.hibernate;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+
+import com.androidmontreal.rhok.server.metrics.LatencyHistogram;
+import com.androidmontreal.rhok.server.metrics.MetricSource;
+import com.androidmontreal.rhok.server.metrics.MetricsRegistry;
+import com.androidmontreal.rhok.server.metrics.MetricsWriter;
+import com.mchange.v2.c3p0.PooledDataSource;
+
+/**
+ * <p>Live view of the connection pool: connections in use, idle, threads waiting for one, and how long it takes
+ * to get one. Acquisition is where tail latency hides when the pool runs dry.
+ * @see PooledConnectionProvider
+ */
+public class ConnectionPoolMetrics implements MetricSource {
+
+	private static volatile ConnectionPoolMetrics current;
+
+	/**
+	 * @return the metrics of the pool the SessionFactory is using, null if it isn't using ours.
+	 */
+	public static ConnectionPoolMetrics current() {
+		return current;
+	}
+
+	static void setCurrent(ConnectionPoolMetrics metrics) {
+		current = metrics;
+		MetricsRegistry.register("connectionPool", metrics);
+	}
+
+	private final PooledDataSource dataSource;
+	private final LatencyHistogram acquireTimes = new LatencyHistogram();
+	private final AtomicLong acquireFailures = new AtomicLong();
+
+	ConnectionPoolMetrics(PooledDataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	void acquired(long nanos) {
+		acquireTimes.recordNanos(nanos);
+	}
+
+	void acquireFailed() {
+		acquireFailures.incrementAndGet();
+	}
+
+	public int getActive() throws SQLException {
+		return dataSource.getNumBusyConnectionsDefaultUser();
+	}
+
+	public int getIdle() throws SQLException {
+		return dataSource.getNumIdleConnectionsDefaultUser();
+	}
+
+	public int getWaitingThreads() throws SQLException {
+		return dataSource.getNumThreadsAwaitingCheckoutDefaultUser();
+	}
+
+	public long getAcquireFailures() {
+		return acquireFailures.get();
+	}
+
+	/**
+	 * @return time to acquire a connection, in microseconds.
+	 */
+	public Histogram getAcquireTimes() {
+		return acquireTimes.snapshot();
+	}
+
+	public void writeMetrics(MetricsWriter out) {
+		try {
+			out.gauge("rhok_db_pool_active", null, getActive());
+			out.gauge("rhok_db_pool_idle", null, getIdle());
+			out.gauge("rhok_db_pool_waiting_threads", null, getWaitingThreads());
+		} catch (SQLException e) {
+			throw new IllegalStateException("Could not read connection pool state.", e);
+		}
+		out.counter("rhok_db_pool_acquire_failures_total", null, getAcquireFailures());
+		out.summary("rhok_db_pool_acquire_microseconds", null, getAcquireTimes());
+	}
+
+}
@@ -0,0 +1,74 @@
+package com.androidmontreal.rhok.server.hibernate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>The list of our @Entity classes, written at compile time by {@link EntityIndexProcessor}. Reading it is one
+ * small resource per jar, no classpath walking, so it works the same from an IDE, a plain jar or a shaded one, and
+ * always gives the same classes in the same order.
+ * <p>Classes are loaded without being initialized, hibernate only needs to read their annotations.
+ */
+public class EntityIndex {
+
+	/**
+	 * <p>One fully qualified class name per line. Lines starting with # are comments.
+	 */
+	public static final String RESOURCE = "META-INF/rhok/entities";
+
+	private EntityIndex() {
+	}
+
+	/**
+	 * @return our entity classes, empty if no index was found (compiled without the processor?).
+	 * @throws IllegalStateException if the index names a class we can't load, it's out of date.
+	 */
+	public static List<Class<?>> load(ClassLoader classLoader) throws IOException {
+		Set<String> names = new LinkedHashSet<String>();
+		Enumeration<URL> indexes = classLoader.getResources(RESOURCE);
+		while( indexes.hasMoreElements() ) {
+			names.addAll(read(indexes.nextElement()));
+		}
+
+		List<Class<?>> classes = new ArrayList<Class<?>>(names.size());
+		for( String name : names ) {
+			try {
+				classes.add(Class.forName(name, false, classLoader));
+			} catch (ClassNotFoundException e) {
+				throw new IllegalStateException("Entity index lists " + name + " but there's no such class, rebuild.", e);
+			}
+		}
+		return classes;
+	}
+
+	static List<String> read(URL index) throws IOException {
+		InputStream in = index.openStream();
+		try {
+			return read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	static List<String> read(InputStream in) throws IOException {
+		List<String> names = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		String line;
+		while( (line = reader.readLine()) != null ) {
+			line = line.trim();
+			if( line.length() > 0 && !line.startsWith("#") ) {
+				names.add(line);
+			}
+		}
+		return names;
+	}
+
+}
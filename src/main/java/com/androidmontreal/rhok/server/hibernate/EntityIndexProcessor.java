@@ -0,0 +1,95 @@
+package com.androidmontreal.rhok.server.hibernate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.persistence.Entity;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * <p>Annotation processor writing the {@link EntityIndex}: every class annotated with @Entity in this compilation,
+ * sorted, so the file only changes when the entities do.
+ * <p>On an incremental build javac only sees the classes it recompiles, so we start from the index already in the
+ * output directory and keep what's still an entity.
+ * <p>Wired in the pom: the processor gets compiled on its own first, then named in annotationProcessors for the
+ * rest of the sources.
+ */
+@SupportedAnnotationTypes("javax.persistence.Entity")
+public class EntityIndexProcessor extends AbstractProcessor {
+
+	private final Set<String> entities = new TreeSet<String>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		if( roundEnv.processingOver() ) {
+			write();
+			return false;
+		}
+		for( Element element : roundEnv.getElementsAnnotatedWith(Entity.class) ) {
+			if( element.getKind() == ElementKind.CLASS ) {
+				entities.add(((TypeElement) element).getQualifiedName().toString());
+			}
+		}
+		return false;
+	}
+
+	private void write() {
+		readPrevious();
+		try {
+			FileObject index = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", EntityIndex.RESOURCE);
+			Writer writer = new OutputStreamWriter(index.openOutputStream(), "UTF-8");
+			try {
+				writer.write("# Generated by " + EntityIndexProcessor.class.getName() + ", do not edit.\n");
+				for( String entity : entities ) {
+					writer.write(entity);
+					writer.write('\n');
+				}
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unable to write the entity index: " + e);
+		}
+	}
+
+	/**
+	 * <p>Keeps the entities of the last build that weren't recompiled this time, if they still are entities.
+	 */
+	private void readPrevious() {
+		try {
+			FileObject previous = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", EntityIndex.RESOURCE);
+			InputStream in = previous.openInputStream();
+			try {
+				for( String name : EntityIndex.read(in) ) {
+					TypeElement type = processingEnv.getElementUtils().getTypeElement(name);
+					if( type != null && type.getAnnotation(Entity.class) != null ) {
+						entities.add(name);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// Clean build, nothing there yet.
+		}
+	}
+
+}
@@ -1,14 +1,23 @@
 package com.androidmontreal.rhok.server.hibernate;
 
+import java.io.IOException;
 import java.net.URL;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.androidmontreal.rhok.server.metrics.MetricsRegistry;
+
+import net.sf.ehcache.hibernate.SingletonEhCacheRegionFactory;
+
 /**
  * <p>From the hibernate classic examples. The goal here is to move to using JTA/EntityManager as soon as practical. 
  * Then look into working from within a EJB3 container to get easier transaction management.
@@ -23,7 +32,11 @@ public class HibernateUtil {
 	
 	private static final Logger logger = LoggerFactory.getLogger(HibernateUtil.class);
 	
-    private static SessionFactory sessionFactory ;
+    // Volatile, the Launcher builds it on its own thread while Jetty starts.
+    private static volatile SessionFactory sessionFactory ;
+    
+    // Released once there is a SessionFactory, for background work that starts before hibernate is up.
+    private static final CountDownLatch built = new CountDownLatch(1);
     
     // TODO: Fix this junk, just wanted to get my PoC running ASAP.
     public static void initSessionFactory() {
@@ -33,9 +46,12 @@ public class HibernateUtil {
     public static void initSessionFactoryAdd(String configFile) {
     	try {
             // Create the SessionFactory from resource X
-        	URL resource = HibernateUtil.class.getClassLoader().getResource(configFile);
-            Configuration configure = new Configuration().configure(resource);
+            long start = System.currentTimeMillis();
+            Configuration configure = configure(configFile);
 			sessionFactory = configure.buildSessionFactory();
+			logger.info("SessionFactory built in {} ms.", System.currentTimeMillis() - start);
+			registerMetrics();
+			built.countDown();
 			// TODO: Revisit this, see if I've got latest version of my code in here. Should not need to add manually...
 			// configure.addPackage("com.kanawish.voip.domain").addClass(Cdr.class);
         }
@@ -49,8 +65,11 @@ public class HibernateUtil {
     public static void initSessionFactory(String configFile) {
     	try {
             // Create the SessionFactory from resource X
-        	URL resource = HibernateUtil.class.getClassLoader().getResource(configFile);
-            sessionFactory = new Configuration().configure(resource).buildSessionFactory();
+            long start = System.currentTimeMillis();
+            sessionFactory = configure(configFile).buildSessionFactory();
+            logger.info("SessionFactory built in {} ms.", System.currentTimeMillis() - start);
+            registerMetrics();
+            built.countDown();
         }
         catch (Throwable ex) {
             // Make sure you log the exception, as it might be swallowed
@@ -59,10 +78,110 @@ public class HibernateUtil {
         }
     }
     
+    /**
+     * <p>Loads the given config file, and fills in our defaults where it's silent.
+     * <p>Entities come from the {@link EntityIndex}, the config file doesn't need to list them. The ones it does list
+     * are left as they are.
+     * <p>Connections come from our {@link PooledConnectionProvider} unless the config names a provider or a datasource.
+     * <p>Second-level and query caches are on (ehcache, see ehcache.xml) unless the config says otherwise, as are
+     * statistics, which {@link CacheMetrics} reads.
+     * <p>Those caches assume a single node. Nothing is replicated: a write evicts the entry, and bumps the table's
+     * update timestamp for the query cache, on the node that made it only. With several nodes, the others keep
+     * serving what they had until it times out. So the users regions live 5 s, the same bound the session cache
+     * puts on a logout done elsewhere (rhok.session.cache.maxStale). Anything that can't be that stale must not
+     * read from them. Running more nodes with longer lived entries needs replicated invalidation (ehcache's RMI or
+     * JGroups replication, say) configured in ehcache.xml first.
+     * <p>JDBC batching defaults to 50 statements, bulk work (like the user import) goes in chunks of that size.
+     */
+    private static Configuration configure(String configFile) throws IOException {
+    	URL resource = HibernateUtil.class.getClassLoader().getResource(configFile);
+    	Configuration configuration = new Configuration().configure(resource);
+    	
+    	if( configuration.getProperty(Environment.CONNECTION_PROVIDER) == null 
+    			&& configuration.getProperty(Environment.DATASOURCE) == null ) {
+    		configuration.setProperty(Environment.CONNECTION_PROVIDER, PooledConnectionProvider.class.getName());
+    	}
+    	
+    	if( configuration.getProperty(Environment.CACHE_REGION_FACTORY) == null 
+    			&& configuration.getProperty(Environment.CACHE_PROVIDER) == null ) {
+    		configuration.setProperty(Environment.CACHE_REGION_FACTORY, SingletonEhCacheRegionFactory.class.getName());
+    		setDefault(configuration, Environment.USE_SECOND_LEVEL_CACHE, "true");
+    		setDefault(configuration, Environment.USE_QUERY_CACHE, "true");
+    	}
+    	setDefault(configuration, Environment.GENERATE_STATISTICS, "true");
+    	setDefault(configuration, Environment.STATEMENT_BATCH_SIZE, "50");
+    	
+    	addIndexedEntities(configuration);
+    	return configuration;
+    }
+    
+    private static void addIndexedEntities(Configuration configuration) throws IOException {
+    	long start = System.currentTimeMillis();
+    	List<Class<?>> entities = EntityIndex.load(HibernateUtil.class.getClassLoader());
+    	if( entities.isEmpty() ) {
+    		logger.warn("No entity index found, only the entities listed in the config will be mapped.");
+    		return;
+    	}
+    	// Binds what the config listed so far, so we can tell which ones are already there.
+    	configuration.buildMappings();
+    	int added = 0;
+    	for( Class<?> entity : entities ) {
+    		if( configuration.getClassMapping(entity.getName()) == null ) {
+    			configuration.addAnnotatedClass(entity);
+    			added++;
+    		}
+    	}
+    	logger.info("{} entities from the index ({} new to the config) in {} ms.", 
+    			new Object[] { entities.size(), added, System.currentTimeMillis() - start });
+    }
+    
+    private static void setDefault(Configuration configuration, String property, String value) {
+    	if( configuration.getProperty(property) == null ) {
+    		configuration.setProperty(property, value);
+    	}
+    }
+    
+    private static void registerMetrics() {
+    	if( sessionFactory.getStatistics().isStatisticsEnabled() ) {
+    		MetricsRegistry.register("hibernateCache", new CacheMetrics(sessionFactory.getStatistics()));
+    	}
+    }
+    
+    /**
+     * <p>Reads one row of each mapped entity, so the first real requests don't pay for opening the pool's
+     * connections, loading the JDBC driver's classes and the first round trips.
+     */
+    public static void warmUp() {
+    	long start = System.currentTimeMillis();
+    	Set<String> entityNames = sessionFactory.getAllClassMetadata().keySet();
+    	Session session = sessionFactory.openSession();
+    	try {
+    		Transaction tx = session.beginTransaction();
+    		try {
+    			for( String entityName : entityNames ) {
+    				session.createQuery("from " + entityName).setMaxResults(1).list();
+    			}
+    		} finally {
+    			tx.rollback();
+    		}
+    	} finally {
+    		session.close();
+    	}
+    	logger.info("Warmed up {} entities in {} ms.", entityNames.size(), System.currentTimeMillis() - start);
+    }
+    
     public static SessionFactory getSessionFactory() {
         return sessionFactory;
     }
     
+    /**
+     * <p>Waits until the Launcher (or whoever) has built the SessionFactory.
+     */
+    public static SessionFactory awaitSessionFactory() throws InterruptedException {
+    	built.await();
+    	return sessionFactory;
+    }
+    
     public static Session getCurrentSession() {
     	return sessionFactory.getCurrentSession();
     }
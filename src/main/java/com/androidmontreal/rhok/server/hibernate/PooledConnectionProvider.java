@@ -0,0 +1,115 @@
+package com.androidmontreal.rhok.server.hibernate;
+
+import java.beans.PropertyVetoException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.hibernate.util.PropertiesHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+import com.mchange.v2.c3p0.DataSources;
+
+/**
+ * <p>c3p0 backed connection pool, with acquisition timing. {@link HibernateUtil} wires it in unless
+ * hibernate.cfg.xml names another provider or a datasource.
+ * <p>Connection settings are the usual hibernate.connection.* ones. Pool settings can go in hibernate.cfg.xml
+ * or be passed as system properties:
+ * <ul>
+ * <li>rhok.pool.minSize / rhok.pool.maxSize - pool bounds (default 5 / 30)
+ * <li>rhok.pool.acquireTimeout - ms to wait for a connection before failing, 0 waits forever (default 5000)
+ * <li>rhok.pool.testQuery - validation query (default "select 1")
+ * <li>rhok.pool.testOnCheckout - validate on every checkout (default false)
+ * <li>rhok.pool.idleTestPeriod - seconds between validations of idle connections (default 60)
+ * <li>rhok.pool.leakTimeout - seconds before a connection that wasn't given back is reclaimed, 0 disables (default 300).
+ * Also the limit on a user export, it holds its connection throughout.
+ * <li>rhok.pool.leakStackTraces - log where leaked connections were checked out (default false, costly)
+ * </ul>
+ * @see ConnectionPoolMetrics
+ */
+public class PooledConnectionProvider implements ConnectionProvider {
+
+	private static final Logger logger = LoggerFactory.getLogger(PooledConnectionProvider.class);
+
+	private ComboPooledDataSource dataSource;
+	private ConnectionPoolMetrics metrics;
+	private Integer isolation;
+
+	public void configure(Properties props) throws HibernateException {
+		String driver = props.getProperty(Environment.DRIVER);
+		String url = props.getProperty(Environment.URL);
+		if( url == null ) {
+			throw new HibernateException("No JDBC URL specified by property " + Environment.URL);
+		}
+
+		dataSource = new ComboPooledDataSource();
+		try {
+			if( driver != null ) {
+				dataSource.setDriverClass(driver);
+			}
+		} catch (PropertyVetoException e) {
+			throw new HibernateException("Invalid JDBC driver class: " + driver, e);
+		}
+		dataSource.setJdbcUrl(url);
+		// Driver specific settings (hibernate.connection.*), user and password included.
+		dataSource.setProperties(ConnectionProviderFactory.getConnectionProperties(props));
+
+		dataSource.setMinPoolSize(PropertiesHelper.getInt("rhok.pool.minSize", props, 5));
+		dataSource.setInitialPoolSize(dataSource.getMinPoolSize());
+		dataSource.setMaxPoolSize(PropertiesHelper.getInt("rhok.pool.maxSize", props, 30));
+		dataSource.setCheckoutTimeout(PropertiesHelper.getInt("rhok.pool.acquireTimeout", props, 5000));
+		dataSource.setPreferredTestQuery(PropertiesHelper.getString("rhok.pool.testQuery", props, "select 1"));
+		dataSource.setTestConnectionOnCheckout(PropertiesHelper.getBoolean("rhok.pool.testOnCheckout", props, false));
+		dataSource.setIdleConnectionTestPeriod(PropertiesHelper.getInt("rhok.pool.idleTestPeriod", props, 60));
+		dataSource.setUnreturnedConnectionTimeout(PropertiesHelper.getInt("rhok.pool.leakTimeout", props, 300));
+		dataSource.setDebugUnreturnedConnectionStackTraces(PropertiesHelper.getBoolean("rhok.pool.leakStackTraces", props, false));
+
+		isolation = PropertiesHelper.getInteger(Environment.ISOLATION, props);
+
+		metrics = new ConnectionPoolMetrics(dataSource);
+		ConnectionPoolMetrics.setCurrent(metrics);
+
+		logger.info("Connection pool configured for {}, {} to {} connections.",
+				new Object[] { url, dataSource.getMinPoolSize(), dataSource.getMaxPoolSize() });
+	}
+
+	public Connection getConnection() throws SQLException {
+		long start = System.nanoTime();
+		Connection connection;
+		try {
+			connection = dataSource.getConnection();
+		} catch (SQLException e) {
+			metrics.acquireFailed();
+			throw e;
+		}
+		metrics.acquired(System.nanoTime() - start);
+
+		if( isolation != null ) {
+			connection.setTransactionIsolation(isolation.intValue());
+		}
+		return connection;
+	}
+
+	public void closeConnection(Connection connection) throws SQLException {
+		connection.close();
+	}
+
+	public void close() throws HibernateException {
+		try {
+			DataSources.destroy(dataSource);
+		} catch (SQLException e) {
+			logger.warn("Could not close the connection pool cleanly.", e);
+		}
+	}
+
+	public boolean supportsAggressiveRelease() {
+		return false;
+	}
+
+}
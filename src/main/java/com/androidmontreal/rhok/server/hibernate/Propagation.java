@@ -0,0 +1,21 @@
+package com.androidmontreal.rhok.server.hibernate;
+
+/**
+ * <p>How a @Transactionnal method relates to a transaction that is already running on the current thread.
+ */
+public enum Propagation {
+	/**
+	 * <p>Join the running transaction, or start one if there is none. The default.
+	 */
+	REQUIRED,
+	/**
+	 * <p>Always run in a transaction of our own, it commits or rolls back whatever the caller's does later. A running
+	 * one is suspended (its session put aside) until we're done. Takes a second connection meanwhile.
+	 */
+	REQUIRES_NEW,
+	/**
+	 * <p>Join the running transaction if there is one, otherwise run without any: in a session of our own that is
+	 * never flushed. For reads that don't need a consistent view.
+	 */
+	SUPPORTS
+}
@@ -1,73 +1,203 @@
 package com.androidmontreal.rhok.server.hibernate;
 
 import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
+import org.hibernate.FlushMode;
 import org.hibernate.Session;
+import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
+import org.hibernate.context.ThreadLocalSessionContext;
+import org.hibernate.jdbc.Work;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.androidmontreal.rhok.server.metrics.TransactionTimer;
+
 /**
  * <p>Used to intercept calls to methods annotated with @Transactionnal
- * 
+ * <p>Only the caller that started a transaction commits or rolls it back, nested @Transactionnal calls just take
+ * part in it, unless their {@link Propagation} says otherwise. Any exception, from the method or from the commit,
+ * rolls it back.
+ * <p>Setting a session aside relies on the "thread" session context: we unbind it, let the nested call get a new
+ * one, and bind ours back after.
  */
 public class TransactionInterceptor implements MethodInterceptor {
 	private static final Logger logger = LoggerFactory.getLogger(TransactionInterceptor.class);
 
-	/**
-	 * Very simple version, needs work/testing for nesting.
-	 */
+	// Resolved once per method, reflection on every call adds up. Methods without the annotation go in the second map.
+	private final ConcurrentMap<Method, Transactionnal> annotations = new ConcurrentHashMap<Method, Transactionnal>();
+	private final ConcurrentMap<Method, Boolean> notAnnotated = new ConcurrentHashMap<Method, Boolean>();
+
+	// The session bound by a SUPPORTS call that found no transaction, while it runs. See outsideTransaction().
+	private static final ThreadLocal<Session> nonTransactional = new ThreadLocal<Session>();
+
 	public Object invoke(MethodInvocation invocation) throws Throwable {
-		Method method = invocation.getMethod();
-		Transactionnal annotation = method.getAnnotation(Transactionnal.class);
+		Transactionnal annotation = annotationFor(invocation.getMethod());
 		// Make sure we're dealing with a @Transaction annotated method.
 		if( annotation == null ) {
 			return invocation.proceed();
 		} 
-		// Make any other checks on parameters and such here. None for this case yet.
 		
-		// We need to start a transaction on the current session for this thread.
 		Session currentSession = HibernateUtil.getCurrentSession();
+		boolean active = currentSession.getTransaction().isActive();
+		// Inside a SUPPORTS call that had no transaction. Its session is never flushed, nobody joins it.
+		boolean outside = !active && currentSession == nonTransactional.get();
 		
+		switch( annotation.propagation() ) {
+		case SUPPORTS:
+			if( active || outside ) {
+				return invocation.proceed();
+			}
+			return outsideTransaction(invocation);
+		case REQUIRES_NEW:
+			if( active || outside ) {
+				return suspended(invocation, annotation.readOnly());
+			}
+			return inNewTransaction(invocation, currentSession, annotation.readOnly());
+		default:
+			if( active ) {
+				return invocation.proceed();
+			}
+			if( outside ) {
+				return suspended(invocation, annotation.readOnly());
+			}
+			return inNewTransaction(invocation, currentSession, annotation.readOnly());
+		}
+	}
+	
+	private Transactionnal annotationFor(Method method) {
+		Transactionnal annotation = annotations.get(method);
+		if( annotation != null || notAnnotated.containsKey(method) ) {
+			return annotation;
+		}
+		
+		annotation = method.getAnnotation(Transactionnal.class);
+		if( annotation == null ) {
+			notAnnotated.put(method, Boolean.TRUE);
+		} else {
+			annotations.put(method, annotation);
+		}
+		return annotation;
+	}
+
+	/**
+	 * <p>We're the first caller: begin, proceed, then commit or roll back.
+	 * <p>Commit is where hibernate flushes, so it can fail too (a unique key on insert, say). Whatever fails, the
+	 * transaction gets rolled back, which is also what unbinds and closes the thread's session: a later request on
+	 * this thread mustn't inherit a half flushed one.
+	 */
+	private Object inNewTransaction(MethodInvocation invocation, Session session, boolean readOnly) throws Throwable {
+		// Feeds the transaction vs. outside-transaction split of the endpoint metrics.
+		TransactionTimer.enter();
 		try {
-			// This will return an existing transaction if already started.
-			Transaction peek = currentSession.getTransaction();
-			boolean firstCaller = false ;
-			if( peek == null ) {
-				firstCaller = true ;
+			Transaction tx = session.beginTransaction();
+			try {
+				if( readOnly ) {
+					session.setFlushMode(FlushMode.MANUAL);
+					session.setDefaultReadOnly(true);
+					setConnectionReadOnly(session, true);
+				}
+				
+				Object retVal = invocation.proceed();
+				
+				// The connection goes back to the pool on commit, hand it back the way we got it.
+				if( readOnly ) {
+					setConnectionReadOnly(session, false);
+				}
+				tx.commit();
+				return retVal;
+			} catch (Throwable e) {
+				logger.error("Caught an exception during a transaction.", e);
+				rollback(session, tx, readOnly);
+				throw e;
 			}
-			
-			if( peek == null || !peek.isActive() ) {
-				// TODO: Looks like isActive() would be true only if we're in a nested @Transactionnal call, so we could use this to avoid committing anywhere but 
-				// from the first caller...
-				logger.info("no current transaction in session.");
+		} finally {
+			TransactionTimer.exit();
+		}
+	}
+	
+	/**
+	 * <p>Puts the thread's session aside, runs in a new transaction on a new one, then binds the first one back. Its
+	 * transaction, if any, is left alone meanwhile.
+	 */
+	private Object suspended(MethodInvocation invocation, boolean readOnly) throws Throwable {
+		SessionFactory sessionFactory = HibernateUtil.getSessionFactory();
+		Session outer = ThreadLocalSessionContext.unbind(sessionFactory);
+		Session outerNonTransactional = nonTransactional.get();
+		nonTransactional.remove();
+		try {
+			return inNewTransaction(invocation, HibernateUtil.getCurrentSession(), readOnly);
+		} finally {
+			// Commit or rollback unbinds and closes the inner session. Not if the method left it without a
+			// transaction though, say a failed commit, and then binding ours back would orphan it.
+			Session inner = ThreadLocalSessionContext.unbind(sessionFactory);
+			if( inner != null && inner.isOpen() ) {
+				inner.close();
+			}
+			if( outer != null ) {
+				ThreadLocalSessionContext.bind(outer);
+			}
+			if( outerNonTransactional != null ) {
+				nonTransactional.set(outerNonTransactional);
+			}
+		}
+	}
+
+	/**
+	 * <p>SUPPORTS without a transaction. The "thread" context only hands out sessions that refuse to work outside of
+	 * one, so this binds a plain session for the duration of the call. Flush mode manual, whatever gets changed on
+	 * it is dropped with it.
+	 */
+	private Object outsideTransaction(MethodInvocation invocation) throws Throwable {
+		SessionFactory sessionFactory = HibernateUtil.getSessionFactory();
+		// The one getCurrentSession() just handed out, unused so far.
+		Session outer = ThreadLocalSessionContext.unbind(sessionFactory);
+		Session session = sessionFactory.openSession();
+		try {
+			session.setFlushMode(FlushMode.MANUAL);
+			ThreadLocalSessionContext.bind(session);
+			nonTransactional.set(session);
+			return invocation.proceed();
+		} finally {
+			nonTransactional.remove();
+			ThreadLocalSessionContext.unbind(sessionFactory);
+			session.close();
+			if( outer != null ) {
+				ThreadLocalSessionContext.bind(outer);
 			}
-			
-			// Important to consider when we'll support nested @Transactionnal annotations.
-			currentSession.beginTransaction();
-			Object retVal = invocation.proceed();
-			// TODO: Check how this behaves with nested @Transactionnal annotations.
-			if( firstCaller ) {
-				currentSession.getTransaction().commit();
+		}
+	}
+	
+	/**
+	 * <p>The read-only flag has to be reset before, the connection goes back to the pool with the rollback. It's
+	 * best effort though, nothing stops the rollback.
+	 */
+	private static void rollback(Session session, Transaction tx, boolean readOnly) {
+		try {
+			if( readOnly && tx.isActive() ) {
+				setConnectionReadOnly(session, false);
 			}
-			
-			return retVal;
 		} catch (RuntimeException e) {
-			Transaction tx = HibernateUtil.getCurrentSession().getTransaction();
-			// I added this safeguard to example hibernate code, but I'm not
-			// sure it's needed.
-			if (tx != null) {
+			logger.warn("Could not reset the connection to read-write before rolling back.", e);
+		} finally {
+			if( tx.isActive() ) {
 				tx.rollback();
 			}
-
-			logger.error("Caught an exception during a transaction.", e);
-
-			throw e; // or display error message
-
 		}
-		
+	}
+	
+	private static void setConnectionReadOnly(Session session, final boolean readOnly) {
+		session.doWork(new Work() {
+			public void execute(Connection connection) throws SQLException {
+				connection.setReadOnly(readOnly);
+			}
+		});
 	}
 
 }
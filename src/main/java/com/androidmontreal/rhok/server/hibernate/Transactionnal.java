@@ -7,9 +7,18 @@ import java.lang.annotation.Target;
 
 /**
  * <p>Only methods can be annotated, and annotations can be intercepted at runtime. 
+ * @see TransactionInterceptor
  */
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.METHOD)
 public @interface Transactionnal {
 
+	Propagation propagation() default Propagation.REQUIRED;
+
+	/**
+	 * <p>For lookups. A read-only transaction never flushes, loads entities without dirty-checking snapshots, and
+	 * flags the JDBC connection read-only. Only applies when this method starts the transaction.
+	 */
+	boolean readOnly() default false;
+
 }
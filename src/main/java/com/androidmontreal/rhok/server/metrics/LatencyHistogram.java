@@ -0,0 +1,35 @@
+package com.androidmontreal.rhok.server.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * <p>Latency distribution, in microseconds. Recording is wait-free and doesn't allocate (HdrHistogram Recorder),
+ * so it's safe on any hot path. Reading folds what was recorded since the last read into a running total.
+ */
+public class LatencyHistogram {
+
+	private static final int SIGNIFICANT_DIGITS = 3;
+
+	private final Recorder recorder = new Recorder(SIGNIFICANT_DIGITS);
+
+	// Guarded by this.
+	private final Histogram total = new Histogram(SIGNIFICANT_DIGITS);
+	private Histogram interval;
+
+	public void recordNanos(long nanos) {
+		recorder.recordValue(Math.max(0L, TimeUnit.NANOSECONDS.toMicros(nanos)));
+	}
+
+	/**
+	 * @return a copy of everything recorded so far.
+	 */
+	public synchronized Histogram snapshot() {
+		interval = recorder.getIntervalHistogram(interval);
+		total.add(interval);
+		return total.copy();
+	}
+
+}
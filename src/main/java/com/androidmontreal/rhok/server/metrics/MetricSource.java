@@ -0,0 +1,11 @@
+package com.androidmontreal.rhok.server.metrics;
+
+/**
+ * <p>Anything that has numbers to show on /metrics.
+ * @see MetricsRegistry
+ */
+public interface MetricSource {
+
+	void writeMetrics(MetricsWriter out);
+
+}
@@ -0,0 +1,101 @@
+package com.androidmontreal.rhok.server.metrics;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.ws.rs.HttpMethod;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+import com.google.inject.matcher.AbstractMatcher;
+import com.google.inject.matcher.Matcher;
+
+/**
+ * <p>Used to intercept calls to JAX-RS resource methods (@GET, @POST, ...) and record request count, error count
+ * and latency per method. Latency is also split between time in transactions and time outside, see
+ * {@link TransactionTimer}.
+ * <p>Nothing on the recording path allocates: the per method metrics are created on first call, then it's
+ * counters and histogram recorders only.
+ */
+public class MetricsInterceptor implements MethodInterceptor, MetricSource {
+
+	/**
+	 * <p>Matches methods carrying an HTTP method annotation.
+	 */
+	public static final Matcher<AnnotatedElement> RESOURCE_METHODS = new AbstractMatcher<AnnotatedElement>() {
+		public boolean matches(AnnotatedElement element) {
+			for( Annotation annotation : element.getAnnotations() ) {
+				if( annotation.annotationType().isAnnotationPresent(HttpMethod.class) ) {
+					return true;
+				}
+			}
+			return false;
+		}
+	};
+
+	static class EndpointMetrics {
+		final String labels;
+		final StripedCounter requests = new StripedCounter();
+		final StripedCounter errors = new StripedCounter();
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LatencyHistogram transaction = new LatencyHistogram();
+		final LatencyHistogram outsideTransaction = new LatencyHistogram();
+
+		EndpointMetrics(Method method) {
+			labels = "endpoint=\"" + method.getDeclaringClass().getSimpleName() + "." + method.getName() + "\"";
+		}
+	}
+
+	private final ConcurrentMap<Method, EndpointMetrics> endpoints = new ConcurrentHashMap<Method, EndpointMetrics>();
+
+	public Object invoke(MethodInvocation invocation) throws Throwable {
+		EndpointMetrics metrics = metricsFor(invocation.getMethod());
+
+		long transactionBefore = TransactionTimer.total();
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			Object retVal = invocation.proceed();
+			failed = false;
+			return retVal;
+		} finally {
+			long elapsed = System.nanoTime() - start;
+			long inTransaction = TransactionTimer.total() - transactionBefore;
+
+			metrics.requests.increment();
+			if( failed ) {
+				metrics.errors.increment();
+			}
+			metrics.latency.recordNanos(elapsed);
+			metrics.transaction.recordNanos(inTransaction);
+			metrics.outsideTransaction.recordNanos(elapsed - inTransaction);
+		}
+	}
+
+	private EndpointMetrics metricsFor(Method method) {
+		EndpointMetrics metrics = endpoints.get(method);
+		if( metrics == null ) {
+			EndpointMetrics created = new EndpointMetrics(method);
+			metrics = endpoints.putIfAbsent(method, created);
+			if( metrics == null ) {
+				metrics = created;
+			}
+		}
+		return metrics;
+	}
+
+	public void writeMetrics(MetricsWriter out) {
+		for( EndpointMetrics metrics : endpoints.values() ) {
+			out.counter("rhok_endpoint_requests_total", metrics.labels, metrics.requests.sum());
+			out.counter("rhok_endpoint_errors_total", metrics.labels, metrics.errors.sum());
+			out.summary("rhok_endpoint_latency_microseconds", metrics.labels, metrics.latency.snapshot());
+			out.summary("rhok_endpoint_transaction_microseconds", metrics.labels, metrics.transaction.snapshot());
+			out.summary("rhok_endpoint_outside_transaction_microseconds", metrics.labels, metrics.outsideTransaction.snapshot());
+		}
+	}
+
+}
@@ -0,0 +1,43 @@
+package com.androidmontreal.rhok.server.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Where metric sources sign up to be shown on /metrics. Static, like HibernateUtil, since some sources (the
+ * connection pool, the Jetty launcher) live outside Guice.
+ */
+public class MetricsRegistry {
+
+	private static final Logger logger = LoggerFactory.getLogger(MetricsRegistry.class);
+
+	private static final Map<String, MetricSource> sources = new ConcurrentHashMap<String, MetricSource>();
+
+	/**
+	 * <p>Registering again under the same name replaces the previous source.
+	 */
+	public static void register(String name, MetricSource source) {
+		sources.put(name, source);
+	}
+
+	public static void unregister(String name) {
+		sources.remove(name);
+	}
+
+	public static String scrape() {
+		MetricsWriter out = new MetricsWriter();
+		for( Map.Entry<String, MetricSource> entry : sources.entrySet() ) {
+			try {
+				entry.getValue().writeMetrics(out);
+			} catch (RuntimeException e) {
+				// One broken source shouldn't take the whole page down.
+				logger.warn("Metric source " + entry.getKey() + " failed.", e);
+			}
+		}
+		return out.toString();
+	}
+
+}
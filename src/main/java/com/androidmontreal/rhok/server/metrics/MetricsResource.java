@@ -0,0 +1,20 @@
+package com.androidmontreal.rhok.server.metrics;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+/**
+ * <p>Scrape endpoint. Plain text, one sample per line, see {@link MetricsWriter}.
+ */
+@Path("metrics")
+public class MetricsResource {
+
+	@GET
+	@Produces(MediaType.TEXT_PLAIN)
+	public String metrics() {
+		return MetricsRegistry.scrape();
+	}
+
+}
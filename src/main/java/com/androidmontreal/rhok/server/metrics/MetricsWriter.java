@@ -0,0 +1,51 @@
+package com.androidmontreal.rhok.server.metrics;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * <p>Writes metrics in the Prometheus text exposition format, which most scrapers understand:
+ * <code>name{label="value"} 42</code>, one sample per line.
+ */
+public class MetricsWriter {
+
+	private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+
+	private final StringBuilder out = new StringBuilder(4096);
+
+	public MetricsWriter counter(String name, String labels, long value) {
+		return sample(name, labels, value);
+	}
+
+	public MetricsWriter gauge(String name, String labels, double value) {
+		return sample(name, labels, value);
+	}
+
+	/**
+	 * <p>Writes p50/p99/p999, max and count of a histogram as a summary.
+	 */
+	public MetricsWriter summary(String name, String labels, Histogram histogram) {
+		for( double quantile : QUANTILES ) {
+			String quantileLabel = "quantile=\"" + quantile + "\"";
+			sample(name, labels == null ? quantileLabel : labels + "," + quantileLabel,
+					histogram.getValueAtPercentile(quantile * 100.0));
+		}
+		sample(name + "_max", labels, histogram.getMaxValue());
+		sample(name + "_count", labels, histogram.getTotalCount());
+		return this;
+	}
+
+	private MetricsWriter sample(String name, String labels, Object value) {
+		out.append(name);
+		if( labels != null ) {
+			out.append('{').append(labels).append('}');
+		}
+		out.append(' ').append(value).append('\n');
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return out.toString();
+	}
+
+}
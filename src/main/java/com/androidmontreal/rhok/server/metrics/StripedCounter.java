@@ -0,0 +1,46 @@
+package com.androidmontreal.rhok.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Counter for heavily contended hot paths. Updates are spread over padded cells picked by thread, so concurrent
+ * increments rarely fight over the same cache line. Reading sums the cells; it's not an atomic snapshot, but it's
+ * fine for monitoring. Same idea as Java 8's LongAdder, which we can't use on 1.6.
+ */
+public class StripedCounter {
+
+	// Longs per cache line, so neighbouring cells don't false share.
+	private static final int PADDING = 8;
+
+	private final AtomicLongArray cells;
+	private final int mask;
+
+	public StripedCounter() {
+		int stripes = 1;
+		while( stripes < Runtime.getRuntime().availableProcessors() * 2 ) {
+			stripes <<= 1;
+		}
+		cells = new AtomicLongArray(stripes * PADDING);
+		mask = stripes - 1;
+	}
+
+	public void increment() {
+		add(1L);
+	}
+
+	public void add(long delta) {
+		long id = Thread.currentThread().getId();
+		// Thread ids are sequential, mix them up a little before picking a cell.
+		int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		cells.addAndGet(((hash >>> 16) & mask) * PADDING, delta);
+	}
+
+	public long sum() {
+		long sum = 0L;
+		for( int i = 0; i < cells.length(); i += PADDING ) {
+			sum += cells.get(i);
+		}
+		return sum;
+	}
+
+}
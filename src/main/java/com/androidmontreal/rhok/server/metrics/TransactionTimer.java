@@ -0,0 +1,42 @@
+package com.androidmontreal.rhok.server.metrics;
+
+/**
+ * <p>Per thread running total of time spent inside transactions. Lets {@link MetricsInterceptor} split an
+ * endpoint's latency into transaction time and everything else.
+ * <p>Only the outermost transaction of a nested set is counted.
+ */
+public class TransactionTimer {
+
+	private static final int TOTAL = 0;
+	private static final int DEPTH = 1;
+	private static final int START = 2;
+
+	private static final ThreadLocal<long[]> state = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[3];
+		}
+	};
+
+	public static void enter() {
+		long[] current = state.get();
+		if( current[DEPTH]++ == 0 ) {
+			current[START] = System.nanoTime();
+		}
+	}
+
+	public static void exit() {
+		long[] current = state.get();
+		if( --current[DEPTH] == 0 ) {
+			current[TOTAL] += System.nanoTime() - current[START];
+		}
+	}
+
+	/**
+	 * @return nanoseconds spent in transactions on this thread so far. Only differences between two calls mean anything.
+	 */
+	public static long total() {
+		return state.get()[TOTAL];
+	}
+
+}
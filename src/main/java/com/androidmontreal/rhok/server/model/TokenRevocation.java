@@ -0,0 +1,50 @@
+package com.androidmontreal.rhok.server.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.validation.constraints.NotNull;
+
+import org.hibernate.annotations.Index;
+
+/**
+ * <p>
+ * Session tokens (rhok.session.mode=token) issued to a user before revokedBefore are revoked. One row per user
+ * who ever logged out, moved forward by each logout. See SessionTokens, every node polls this table.
+ * <p>
+ * Kept out of USER on purpose: writing there would evict the user from the second-level cache and invalidate
+ * the users.byEmail query cache on every logout. Nothing here is cached, and only the user's id is kept, no
+ * association to load.
+ */
+@Entity
+@Table(name = "TOKEN_REVOCATION")
+@org.hibernate.annotations.Table(appliesTo = "TOKEN_REVOCATION", indexes = 
+		@Index(name = "IDX_TOKEN_REVOCATION_BEFORE", columnNames = "revokedBefore"))
+public class TokenRevocation {
+
+	@Id
+	@Column(name = "user_id")
+	private Long userId;
+
+	// ms. A plain number, MySQL's DATETIME would round it to the second.
+	@NotNull
+	private Long revokedBefore;
+
+	public Long getUserId() {
+		return userId;
+	}
+
+	public Long getRevokedBefore() {
+		return revokedBefore;
+	}
+
+	public void setUserId(Long userId) {
+		this.userId = userId;
+	}
+
+	public void setRevokedBefore(Long revokedBefore) {
+		this.revokedBefore = revokedBefore;
+	}
+
+}
@@ -1,29 +1,55 @@
 package com.androidmontreal.rhok.server.model;
 
 import java.util.Date;
+import java.util.Locale;
 
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.ManyToOne;
 import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
 import javax.validation.constraints.NotNull;
-import javax.validation.constraints.Pattern;
 import javax.xml.bind.annotation.XmlRootElement;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
+import com.androidmontreal.rhok.server.validation.ValidEmail;
+
 /**
  * <p>
  * The user entity.
  * <p>
  * First approach we'll mix entity definition annotations alongside Hibernate Validator JSR 303 annotations. Let's see
  * if that scales, if not we might need intermediary objects for different jobs (user creation 'orders' and such)
+ * <p>
+ * Users are read far more often than written, so they live in the second-level cache (see ehcache.xml). READ_WRITE
+ * keeps it coherent: any change made through hibernate (password, confirmation, archival...) replaces the cached
+ * copy when its transaction commits. Changes made straight in SQL, or on another node, won't be seen until the
+ * entry times out (a few seconds, see HibernateUtil.configure()).
  */
 @Entity
-@Table(name = "USER")
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = User.CACHE_REGION)
+@Table(name = "USER", uniqueConstraints = @UniqueConstraint(name = "UK_USER_NORMALIZED_EMAIL", columnNames = "normalizedEmail"))
 @XmlRootElement
 public class User {
 
+	public static final String CACHE_REGION = "users";
+
+	/**
+	 * <p>The form of the email we look users up by, and that must be unique: trimmed and lower-cased.
+	 * @return null if email is null.
+	 */
+	public static String normalizeEmail(String email) {
+		if( email == null ) {
+			return null;
+		}
+		return email.trim().toLowerCase(Locale.ENGLISH);
+	}
+
 	@Id
 	@GeneratedValue(strategy = GenerationType.AUTO)
 	private Long id;
@@ -47,10 +73,15 @@ public class User {
 
 	@NotNull
 	// Original example had a CR/LF in there, I don't think that was valid...
-	@Pattern(regexp = "^[_A-Za-z0-9-]+(\\.[_A-Za-z0-9-]+)*@[A-Za-z0-9]+(\\.[A-Za-z0-9]+)*(\\.[A-Za-z]{2,})$")
+	// Was a @Pattern, see ValidEmail for the regexp and why we moved away from it.
+	@ValidEmail
 	// TODO: set a sensical error message for user.
 	private String email;
 
+	// Kept in sync by setEmail(), see normalizeEmail(). Unique, and what txFindUser() queries on.
+	@Column(nullable = false)
+	private String normalizedEmail;
+
 	// TODO: This should actually be set by the email-confirmation mailing process.
 	private Date lastEmailCheck = new Date();
 
@@ -60,12 +91,8 @@ public class User {
 	// @NotNull
 	private String lastName;
 
-	// FIXME: Have not decided on hash type yet.
+	// PBKDF2 hash, see PasswordHasher. Strength rules apply to the plaintext, so they live on CreateUserCommand.
 	@NotNull
-	// TODO: set a sensical error message for user.
-	// "((?=.*\\d)(?=.*[a-z])(?=.*[A-Z])(?=.*[@#$%]).{6,20})" this is excessive force.
-	// Going with simpler number/lowercase/uppercase requirement.
-	@Pattern(regexp = "((?=.*\\d)(?=.*[a-z])(?=.*[A-Z]).{6,20})")
 	private String password;
 
 	public Boolean getArchived() {
@@ -80,6 +107,10 @@ public class User {
 		return email;
 	}
 
+	public String getNormalizedEmail() {
+		return normalizedEmail;
+	}
+
 	public String getFirstName() {
 		return firstName;
 	}
@@ -118,6 +149,7 @@ public class User {
 
 	public void setEmail(String email) {
 		this.email = email;
+		this.normalizedEmail = normalizeEmail(email);
 	}
 
 	public void setFirstName(String firstName) {
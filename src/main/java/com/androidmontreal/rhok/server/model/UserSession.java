@@ -12,6 +12,8 @@ import javax.persistence.Table;
 import javax.validation.constraints.NotNull;
 import javax.xml.bind.annotation.XmlRootElement;
 
+import org.hibernate.annotations.Index;
+
 /**
  * <p>
  * User session has a startTime, last activity + timeout used to decide if
@@ -19,10 +21,15 @@ import javax.xml.bind.annotation.XmlRootElement;
  * <p>
  * A loggedOut == true overrides this and makes the session invalid.
  * <p>
+ * expiresAt is lastActivity + timeout, stored so that active session lookups can use an index, see
+ * IDX_USER_SESSION_ACTIVE. The setters keep it up to date, as does the SessionActivityWriter.
+ * <p>
  * Not built with history in mind.
  */
 @Entity
 @Table(name = "USER_SESSION")
+@org.hibernate.annotations.Table(appliesTo = "USER_SESSION", indexes = 
+		@Index(name = "IDX_USER_SESSION_ACTIVE", columnNames = { "user_id", "loggedOut", "expiresAt" }))
 @XmlRootElement
 public class UserSession {
 
@@ -50,6 +57,10 @@ public class UserSession {
 	
 	@NotNull 
 	private Long timeout;
+	
+	// lastActivity + timeout, don't set directly.
+	@NotNull
+	private Date expiresAt;
 
 	private boolean loggedOut = false;
 	
@@ -86,6 +97,7 @@ public class UserSession {
 
 	public void setLastActivity(Date lastActivity) {
 		this.lastActivity = lastActivity;
+		updateExpiresAt();
 	}
 
 	public Long getTimeout() {
@@ -94,6 +106,17 @@ public class UserSession {
 
 	public void setTimeout(Long timeout) {
 		this.timeout = timeout;
+		updateExpiresAt();
+	}
+
+	public Date getExpiresAt() {
+		return expiresAt;
+	}
+
+	private void updateExpiresAt() {
+		if( lastActivity != null && timeout != null ) {
+			expiresAt = new Date(lastActivity.getTime() + timeout);
+		}
 	}
 
 	public boolean isLoggedOut() {
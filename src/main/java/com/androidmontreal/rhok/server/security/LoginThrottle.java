@@ -0,0 +1,144 @@
+package com.androidmontreal.rhok.server.security;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.androidmontreal.rhok.server.metrics.MetricSource;
+import com.androidmontreal.rhok.server.metrics.MetricsWriter;
+import com.androidmontreal.rhok.server.metrics.StripedCounter;
+import com.androidmontreal.rhok.server.model.User;
+import com.google.inject.Singleton;
+
+/**
+ * <p>Caps how fast anyone can hit the credential endpoints, so a credential stuffing burst gets a 429 instead of
+ * turning into user lookups and password hashing. Each endpoint has two limits, checked before anything else
+ * happens: one per email (someone hammering an account, from wherever) and one per client address (one client
+ * going through a list of accounts).
+ * <p>In memory and per process, see {@link RateLimiter}.
+ * TODO: Behind a proxy or load balancer the client address is the proxy's, we'd need X-Forwarded-For from
+ * trusted hops.
+ * <p>Configuration via system properties, per endpoint (authenticate, signup) and key (email, ip):
+ * <ul>
+ * <li>rhok.throttle.enabled - false turns all of it off (default true)
+ * <li>rhok.throttle.[endpoint].[key].perMinute - sustained rate, 0 disables that limit
+ * <li>rhok.throttle.[endpoint].[key].burst - requests allowed back to back
+ * <li>rhok.throttle.maxKeys - emails or addresses tracked at most, per limit (default 100000)
+ * </ul>
+ * <p>Defaults: authenticate 10/min (burst 5) per email and 60/min (burst 20) per address, signup 5/min (burst 3)
+ * per email and 30/min (burst 10) per address.
+ */
+@Singleton
+public class LoginThrottle implements MetricSource {
+
+	static private final Logger logger = LoggerFactory.getLogger(LoginThrottle.class);
+
+	public static final String AUTHENTICATE = "authenticate";
+	public static final String SIGNUP = "signup";
+
+	// Not in JAX-RS 1.1's Response.Status.
+	private static final int TOO_MANY_REQUESTS = 429;
+
+	/**
+	 * <p>Limits and numbers for one endpoint.
+	 */
+	private static class Endpoint {
+		final RateLimiter byEmail;
+		final RateLimiter byAddress;
+		final StripedCounter allowed = new StripedCounter();
+		final AtomicLong throttledByEmail = new AtomicLong();
+		final AtomicLong throttledByAddress = new AtomicLong();
+
+		Endpoint(RateLimiter byEmail, RateLimiter byAddress) {
+			this.byEmail = byEmail;
+			this.byAddress = byAddress;
+		}
+	}
+
+	private final boolean enabled = Boolean.parseBoolean(System.getProperty("rhok.throttle.enabled", "true"));
+	private final int maxKeys = Integer.getInteger("rhok.throttle.maxKeys", 100000);
+
+	private final Map<String, Endpoint> endpoints = new LinkedHashMap<String, Endpoint>();
+
+	public LoginThrottle() {
+		endpoints.put(AUTHENTICATE, new Endpoint(limiter(AUTHENTICATE, "email", 10, 5), limiter(AUTHENTICATE, "ip", 60, 20)));
+		endpoints.put(SIGNUP, new Endpoint(limiter(SIGNUP, "email", 5, 3), limiter(SIGNUP, "ip", 30, 10)));
+	}
+
+	private RateLimiter limiter(String endpoint, String key, long defaultPerMinute, int defaultBurst) {
+		String prefix = "rhok.throttle." + endpoint + "." + key + ".";
+		long perMinute = Long.getLong(prefix + "perMinute", defaultPerMinute);
+		int burst = Integer.getInteger(prefix + "burst", defaultBurst);
+		if( !enabled || perMinute <= 0 ) {
+			return null;
+		}
+		return new RateLimiter(perMinute, burst, maxKeys);
+	}
+
+	/**
+	 * <p>Counts one attempt on the endpoint. Call it first thing, before any lookup.
+	 * @param email as the client sent it, may be null.
+	 * @param remoteAddress may be null when not called over HTTP.
+	 * @throws WebApplicationException (429, with a Retry-After) if either limit is reached.
+	 */
+	public void check(String endpointName, String email, String remoteAddress) {
+		Endpoint endpoint = endpoints.get(endpointName);
+		long now = System.nanoTime();
+
+		// Address first: if it's over, the attempt doesn't count against the account.
+		if( endpoint.byAddress != null && remoteAddress != null ) {
+			long wait = endpoint.byAddress.acquire(remoteAddress, now);
+			if( wait > 0 ) {
+				endpoint.throttledByAddress.incrementAndGet();
+				logger.debug("Throttled {} from {}.", endpointName, remoteAddress);
+				throw tooManyRequests(wait);
+			}
+		}
+
+		String normalizedEmail = User.normalizeEmail(email);
+		if( endpoint.byEmail != null && normalizedEmail != null ) {
+			long wait = endpoint.byEmail.acquire(normalizedEmail, now);
+			if( wait > 0 ) {
+				endpoint.throttledByEmail.incrementAndGet();
+				logger.debug("Throttled {} for {}.", endpointName, normalizedEmail);
+				throw tooManyRequests(wait);
+			}
+		}
+
+		endpoint.allowed.increment();
+	}
+
+	private static WebApplicationException tooManyRequests(long waitNanos) {
+		long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1));
+		return new WebApplicationException(Response.status(TOO_MANY_REQUESTS)
+				.header("Retry-After", String.valueOf(seconds))
+				.build());
+	}
+
+	public void writeMetrics(MetricsWriter out) {
+		for( Map.Entry<String, Endpoint> entry : endpoints.entrySet() ) {
+			String endpointLabel = "endpoint=\"" + entry.getKey() + "\"";
+			Endpoint endpoint = entry.getValue();
+			out.counter("rhok_throttle_allowed_total", endpointLabel, endpoint.allowed.sum());
+			out.counter("rhok_throttle_throttled_total", endpointLabel + ",key=\"email\"", endpoint.throttledByEmail.get());
+			out.counter("rhok_throttle_throttled_total", endpointLabel + ",key=\"ip\"", endpoint.throttledByAddress.get());
+			writeLimiter(out, endpointLabel + ",key=\"email\"", endpoint.byEmail);
+			writeLimiter(out, endpointLabel + ",key=\"ip\"", endpoint.byAddress);
+		}
+	}
+
+	private static void writeLimiter(MetricsWriter out, String labels, RateLimiter limiter) {
+		if( limiter != null ) {
+			out.gauge("rhok_throttle_keys", labels, limiter.size());
+			out.counter("rhok_throttle_untracked_total", labels, limiter.untrackedCount());
+		}
+	}
+
+}
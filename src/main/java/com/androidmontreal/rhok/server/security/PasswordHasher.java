@@ -0,0 +1,118 @@
+package com.androidmontreal.rhok.server.security;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.xml.bind.DatatypeConverter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>PBKDF2 password hashing. Stored form is <code>pbkdf2:iterations:salt:hash</code>, salt and hash in base64.
+ * The iteration count travels with each hash, so raising it only affects new passwords.
+ * <p>Deliberately slow, and CPU bound. Don't call this from a request thread, go through {@link PasswordHashing}.
+ * <p>Values without the pbkdf2 prefix are accounts created before we hashed anything, they're compared as-is.
+ * A pbkdf2 value we can't make sense of matches no password.
+ * <p>Those legacy values, and hashes with fewer iterations than we now use, get replaced on the user's next
+ * login, see {@link #needsRehash(String)}.
+ */
+public class PasswordHasher {
+
+	static private final Logger logger = LoggerFactory.getLogger(PasswordHasher.class);
+
+	private static final String PREFIX = "pbkdf2";
+	private static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+	private static final int SALT_BYTES = 16;
+	private static final int HASH_BITS = 160;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final SecureRandom random = new SecureRandom();
+	private final int iterations;
+
+	public PasswordHasher(int iterations) {
+		this.iterations = iterations;
+	}
+
+	public int getIterations() {
+		return iterations;
+	}
+
+	public String hash(String password) {
+		byte[] salt = new byte[SALT_BYTES];
+		random.nextBytes(salt);
+		byte[] hash = pbkdf2(password, salt, iterations);
+		return PREFIX + ":" + iterations + ":" + DatatypeConverter.printBase64Binary(salt) + ":"
+				+ DatatypeConverter.printBase64Binary(hash);
+	}
+
+	/**
+	 * <p>Cheap, no hashing. Only meaningful for a stored value the password was just verified against.
+	 * @return true if the stored value is legacy plaintext, or a hash weaker than what we'd make now.
+	 */
+	public boolean needsRehash(String stored) {
+		if( stored == null ) {
+			return false;
+		}
+		String[] parts = stored.split(":");
+		if( parts.length != 4 || !PREFIX.equals(parts[0]) ) {
+			return true;
+		}
+		try {
+			return Integer.parseInt(parts[1]) < iterations;
+		} catch (NumberFormatException e) {
+			// Malformed, verify() never matches it anyway.
+			return false;
+		}
+	}
+
+	public boolean verify(String password, String stored) {
+		if( password == null || stored == null ) {
+			return false;
+		}
+
+		String[] parts = stored.split(":");
+		if( parts.length != 4 || !PREFIX.equals(parts[0]) ) {
+			// Legacy plaintext.
+			return MessageDigest.isEqual(password.getBytes(UTF8), stored.getBytes(UTF8));
+		}
+
+		int storedIterations;
+		byte[] salt;
+		byte[] expected;
+		try {
+			storedIterations = Integer.parseInt(parts[1]);
+			salt = DatatypeConverter.parseBase64Binary(parts[2]);
+			expected = DatatypeConverter.parseBase64Binary(parts[3]);
+		} catch (RuntimeException e) {
+			// NumberFormatException, or whatever the base64 decoder trips on: it throws index errors at some garbage.
+			logger.warn("Malformed stored password hash, treating it as a mismatch: {}", e.toString());
+			return false;
+		}
+		// Garbage can also decode to nothing, and PBEKeySpec refuses an empty salt or no iterations.
+		if( storedIterations <= 0 || salt.length == 0 || expected.length == 0 ) {
+			logger.warn("Malformed stored password hash, treating it as a mismatch: {} iterations, {} byte salt, {} byte hash.",
+					new Object[] { storedIterations, salt.length, expected.length });
+			return false;
+		}
+		return MessageDigest.isEqual(expected, pbkdf2(password, salt, storedIterations));
+	}
+
+	private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+		try {
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+		} catch (GeneralSecurityException e) {
+			// PBKDF2WithHmacSHA1 ships with every JRE since 1.4, this would be an environment problem.
+			throw new IllegalStateException("Unable to hash password.", e);
+		} finally {
+			spec.clearPassword();
+		}
+	}
+
+}
@@ -0,0 +1,205 @@
+package com.androidmontreal.rhok.server.security;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.androidmontreal.rhok.server.metrics.MetricSource;
+import com.androidmontreal.rhok.server.metrics.MetricsWriter;
+import com.google.inject.Singleton;
+
+/**
+ * <p>Runs password hashing and verification on a dedicated, fixed-size pool, so a login storm can't pin every
+ * Jetty thread on PBKDF2. The pool's queue is bounded: when it's full we fail fast with a 503 instead of piling
+ * up requests.
+ * <p>Tuning via system properties:
+ * <ul>
+ * <li>rhok.password.iterations - PBKDF2 iteration count for new hashes (default 20000)
+ * <li>rhok.password.threads - worker threads (default: number of cores)
+ * <li>rhok.password.queueSize - max hashing jobs waiting for a worker (default 64)
+ * <li>rhok.password.batchThreads - how much of the pool bulk work like the import can hold (default half the threads)
+ * </ul>
+ */
+@Singleton
+public class PasswordHashing implements MetricSource {
+
+	static private final Logger logger = LoggerFactory.getLogger(PasswordHashing.class);
+
+	// Tells clients when to come back once we shed a request.
+	private static final String RETRY_AFTER_SECONDS = "1";
+
+	private final PasswordHasher hasher = new PasswordHasher(Integer.getInteger("rhok.password.iterations", 20000));
+
+	private final ThreadPoolExecutor executor;
+	
+	// Jobs batches may have in the pool, see hashAll().
+	private final Semaphore batchSlots;
+	
+	private final AtomicLong rejected = new AtomicLong();
+
+	public PasswordHashing() {
+		int threads = Integer.getInteger("rhok.password.threads", Runtime.getRuntime().availableProcessors());
+		int queueSize = Integer.getInteger("rhok.password.queueSize", 64);
+		batchSlots = new Semaphore(Integer.getInteger("rhok.password.batchThreads", Math.max(1, threads / 2)));
+
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "password-hashing-" + threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				},
+				new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * @return the hashed form of this password, what we store in User.password.
+	 * @throws WebApplicationException (503) if the hashing pool is saturated.
+	 */
+	public String hash(final String password) {
+		return run(new Callable<String>() {
+			public String call() {
+				return hasher.hash(password);
+			}
+		});
+	}
+
+	/**
+	 * <p>Hashes a whole batch, for background jobs like the bulk import. Spreads the work over the pool, but batches
+	 * (all of them together) never hold more than rhok.password.batchThreads jobs in it, queued or running: logins
+	 * keep the rest. When the queue is full of other work we wait for one of our own jobs and try again, and give up
+	 * with a 503 if we have none left to wait for.
+	 * @return the hashes, in the same order.
+	 * @throws WebApplicationException (503) if the pool is saturated by other work.
+	 */
+	public List<String> hashAll(List<String> passwords) {
+		List<Future<String>> futures = new ArrayList<Future<String>>(passwords.size());
+		List<String> hashes = new ArrayList<String>(passwords.size());
+		for( final String password : passwords ) {
+			try {
+				batchSlots.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw unavailable();
+			}
+			FutureTask<String> job = new FutureTask<String>(new Callable<String>() {
+				public String call() {
+					return hasher.hash(password);
+				}
+			}) {
+				@Override
+				protected void done() {
+					// Ran or cancelled, either way it's out of the pool.
+					batchSlots.release();
+				}
+			};
+			while( true ) {
+				try {
+					executor.execute(job);
+					futures.add(job);
+					break;
+				} catch (RejectedExecutionException e) {
+					if( hashes.size() == futures.size() ) {
+						batchSlots.release();
+						rejected.incrementAndGet();
+						logger.warn("Password hashing pool saturated, rejecting a batch.");
+						throw unavailable();
+					}
+					hashes.add(await(futures.get(hashes.size())));
+				}
+			}
+		}
+		while( hashes.size() < futures.size() ) {
+			hashes.add(await(futures.get(hashes.size())));
+		}
+		return hashes;
+	}
+
+	/**
+	 * @return true if the password matches the stored hash.
+	 * @throws WebApplicationException (503) if the hashing pool is saturated.
+	 */
+	public boolean verify(final String password, final String stored) {
+		return run(new Callable<Boolean>() {
+			public Boolean call() {
+				return hasher.verify(password, stored);
+			}
+		});
+	}
+
+	/**
+	 * <p>Doesn't hash anything, safe on any thread.
+	 * @return true if this stored value should be replaced by a fresh hash, once the password is known to match.
+	 */
+	public boolean needsRehash(String stored) {
+		return hasher.needsRehash(stored);
+	}
+
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	public void writeMetrics(MetricsWriter out) {
+		out.gauge("rhok_password_hashing_queue_depth", null, getQueueDepth());
+		out.gauge("rhok_password_hashing_active", null, getActiveCount());
+		out.counter("rhok_password_hashing_rejected_total", null, rejected.get());
+	}
+
+	private <T> T run(Callable<T> job) {
+		Future<T> future;
+		try {
+			future = executor.submit(job);
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			logger.warn("Password hashing pool saturated, rejecting request.");
+			throw unavailable();
+		}
+		return await(future);
+	}
+
+	private <T> T await(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw unavailable();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if( cause instanceof RuntimeException ) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	private static WebApplicationException unavailable() {
+		return new WebApplicationException(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+				.header("Retry-After", RETRY_AFTER_SECONDS).build());
+	}
+
+}
@@ -0,0 +1,120 @@
+package com.androidmontreal.rhok.server.security;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Token buckets per key (an email, an IP address...), all with the same rate and burst.
+ * <p>Implemented as GCRA: instead of a token count and a refill time, a bucket is a single long, the time at which
+ * it would be full again (its "theoretical arrival time"). Taking a token pushes that time out by one interval,
+ * and we refuse when it would end up more than a burst's worth of intervals ahead of now. One value per bucket means
+ * one CAS per request, no locks. The key map is a ConcurrentHashMap, already striped.
+ * <p>A bucket whose time is in the past is full, so it's no different from no bucket at all. Those are swept out
+ * once the map grows past what it held after the last sweep, and the map never goes above maxKeys: past that,
+ * new keys are let through untracked. That's what their fresh bucket would have done for a first request anyway,
+ * and it keeps someone cycling through millions of fake emails from eating our memory.
+ * <p>Times are System.nanoTime() values.
+ */
+public class RateLimiter {
+
+	private final long interval;
+	private final long burstWindow;
+	private final int maxKeys;
+
+	private final ConcurrentMap<String, AtomicLong> buckets = new ConcurrentHashMap<String, AtomicLong>();
+	private volatile int sweepAt = 1024;
+	// When full, sweep at most once per this many ns. Each sweep walks the whole map.
+	private final long sweepPause;
+	private volatile long lastSweep;
+
+	private final AtomicLong untracked = new AtomicLong();
+
+	/**
+	 * @param perMinute sustained rate, per key.
+	 * @param burst requests a key can make back to back after being idle.
+	 * @param maxKeys keys tracked at most.
+	 */
+	public RateLimiter(long perMinute, int burst, int maxKeys) {
+		if( perMinute <= 0 || burst <= 0 ) {
+			throw new IllegalArgumentException("Rate and burst must be positive: " + perMinute + "/" + burst);
+		}
+		this.interval = 60L * 1000 * 1000 * 1000 / perMinute;
+		this.burstWindow = interval * burst;
+		this.maxKeys = maxKeys;
+		this.sweepPause = Math.max(interval, 1000L * 1000 * 1000);
+		this.lastSweep = System.nanoTime() - sweepPause;
+	}
+
+	/**
+	 * <p>Takes a token from the key's bucket, if there's one.
+	 * @return 0 if the request can go on, otherwise how long (ns) before it would be allowed.
+	 */
+	public long acquire(String key, long now) {
+		AtomicLong bucket = buckets.get(key);
+		if( bucket == null ) {
+			bucket = newBucket(key, now);
+			if( bucket == null ) {
+				untracked.incrementAndGet();
+				return 0;
+			}
+		}
+
+		while( true ) {
+			long full = bucket.get();
+			long next = Math.max(full, now) + interval;
+			long ahead = next - now;
+			if( ahead > burstWindow ) {
+				return ahead - burstWindow;
+			}
+			if( bucket.compareAndSet(full, next) ) {
+				return 0;
+			}
+		}
+	}
+
+	public int size() {
+		return buckets.size();
+	}
+
+	/**
+	 * @return requests let through without a bucket, because we were at maxKeys.
+	 */
+	public long untrackedCount() {
+		return untracked.get();
+	}
+
+	private AtomicLong newBucket(String key, long now) {
+		if( buckets.size() >= sweepAt ) {
+			if( now - lastSweep >= sweepPause || sweepAt < maxKeys ) {
+				sweep(now);
+			}
+			if( buckets.size() >= maxKeys ) {
+				return null;
+			}
+		}
+		AtomicLong bucket = new AtomicLong(now);
+		AtomicLong existing = buckets.putIfAbsent(key, bucket);
+		return existing != null ? existing : bucket;
+	}
+
+	/**
+	 * <p>Drops full buckets. A request racing with us on one of them may get a token for free, no big deal.
+	 */
+	private synchronized void sweep(long now) {
+		if( buckets.size() < sweepAt || (sweepAt == maxKeys && now - lastSweep < sweepPause) ) {
+			return;
+		}
+		lastSweep = now;
+		Iterator<Map.Entry<String, AtomicLong>> iterator = buckets.entrySet().iterator();
+		while( iterator.hasNext() ) {
+			if( iterator.next().getValue().get() - now <= 0 ) {
+				iterator.remove();
+			}
+		}
+		sweepAt = Math.min(maxKeys, Math.max(1024, buckets.size() * 2));
+	}
+
+}
@@ -0,0 +1,406 @@
+package com.androidmontreal.rhok.server.security;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.bind.DatatypeConverter;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.androidmontreal.rhok.server.hibernate.HibernateUtil;
+import com.androidmontreal.rhok.server.metrics.MetricSource;
+import com.androidmontreal.rhok.server.metrics.MetricsWriter;
+import com.google.inject.Singleton;
+
+/**
+ * <p>Stateless session tokens. The token itself says who the user is and until when it's good, and is signed
+ * with HMAC-SHA256, so checking one is pure CPU work: no USER_SESSION row, no query, and any node sharing the
+ * secret can do it.
+ * <p>Format is <code>payload.signature</code>, both base64url. The payload holds a version byte, the key period,
+ * user id, issue time and expiry (ms).
+ * <p>Signing keys rotate: each period gets its own key, derived from the master secret, and the token records
+ * which one signed it. Keys stay accepted for as long as a token signed with them could still be valid.
+ * <p>Tokens can't be taken back, so early logouts go in a small revocation map instead: user id -> tokens issued
+ * before this time are dead. Entries are dropped once every token they could apply to has expired anyway.
+ * <p>Revocations are shared through the database: whoever revokes also stores it in TOKEN_REVOCATION (see
+ * {@link com.androidmontreal.rhok.server.model.TokenRevocation}), and once started every node polls for the rows
+ * that changed since its last look. A logout on one node is honoured by
+ * the others within one poll interval. The polls look back a little further than where the last one stopped, for
+ * transactions that committed late and node clocks that are a bit apart. Until its first poll is done a node
+ * can't know what was revoked, it rejects every token.
+ * <p>Configuration via system properties:
+ * <ul>
+ * <li>rhok.session.mode - "token" turns these on, the default "database" keeps USER_SESSION keys
+ * <li>rhok.session.tokenSecret - master secret, must be the same on every node. A random one is made up if missing,
+ * tokens then don't survive a restart.
+ * <li>rhok.session.tokenTtl - token lifetime in ms (default 3600000)
+ * <li>rhok.session.tokenKeyRotation - ms between signing key changes (default 86400000)
+ * <li>rhok.session.tokenRevocationPoll - ms between looks at other nodes' revocations (default 5000)
+ * </ul>
+ */
+@Singleton
+public class SessionTokens implements MetricSource {
+
+	static private final Logger logger = LoggerFactory.getLogger(SessionTokens.class);
+
+	/**
+	 * <p>What a valid token tells us.
+	 */
+	public static class Token {
+		private final long userId;
+		private final long issuedAt;
+		private final long expiresAt;
+
+		Token(long userId, long issuedAt, long expiresAt) {
+			this.userId = userId;
+			this.issuedAt = issuedAt;
+			this.expiresAt = expiresAt;
+		}
+
+		public long getUserId() {
+			return userId;
+		}
+
+		public long getIssuedAt() {
+			return issuedAt;
+		}
+
+		public long getExpiresAt() {
+			return expiresAt;
+		}
+	}
+
+	private static final byte VERSION = 1;
+	private static final int PAYLOAD_BYTES = 1 + 4 + 8 + 8 + 8;
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String REVOCATIONS_QUERY =
+			"select tr.userId, tr.revokedBefore from TokenRevocation as tr where tr.revokedBefore > :since";
+	// How much further back than the last poll each one looks.
+	private static final long POLL_OVERLAP = 10000L;
+
+	private final boolean enabled = "token".equalsIgnoreCase(System.getProperty("rhok.session.mode", "database"));
+	private final long ttl = Long.getLong("rhok.session.tokenTtl", 3600000L);
+	private final long rotation = Long.getLong("rhok.session.tokenKeyRotation", 86400000L);
+	// Oldest key period still accepted, relative to the current one.
+	private final long keyPeriodsKept = ttl / rotation + 1;
+	private final long pollInterval = Math.max(1L, Long.getLong("rhok.session.tokenRevocationPoll", 5000L));
+
+	private final byte[] masterSecret;
+	private final ConcurrentMap<Long, SecretKeySpec> keys = new ConcurrentHashMap<Long, SecretKeySpec>();
+
+	private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+		@Override
+		protected Mac initialValue() {
+			try {
+				return Mac.getInstance(ALGORITHM);
+			} catch (GeneralSecurityException e) {
+				// HmacSHA256 ships with every JRE, this would be an environment problem.
+				throw new IllegalStateException("Unable to sign session tokens.", e);
+			}
+		}
+	};
+
+	// User id -> tokens issued before this time (ms) are revoked.
+	private final ConcurrentMap<Long, Long> revocations = new ConcurrentHashMap<Long, Long>();
+	private volatile int sweepAt = 1024;
+
+	private ScheduledExecutorService poller;
+	// Start time of the last poll that went through, 0 before the first one. Only the poller writes it.
+	private volatile long polledAt;
+	// False from start() until the first poll is done, we don't know about revocations yet.
+	private volatile boolean caughtUp = true;
+
+	private final AtomicLong issued = new AtomicLong();
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong revoked = new AtomicLong();
+	private final AtomicLong pollFailures = new AtomicLong();
+
+	public SessionTokens() {
+		String secret = System.getProperty("rhok.session.tokenSecret");
+		if( secret != null && secret.length() > 0 ) {
+			masterSecret = secret.getBytes(UTF8);
+		} else {
+			masterSecret = new byte[32];
+			new SecureRandom().nextBytes(masterSecret);
+			if( enabled ) {
+				logger.warn("No rhok.session.tokenSecret set, using a random one. Tokens won't survive a restart or work across nodes.");
+			}
+		}
+	}
+
+	/**
+	 * @return true when sessions are tokens rather than USER_SESSION keys.
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * <p>Starts polling the database for revocations, when tokens are on. Tokens are all rejected until the first
+	 * poll is done.
+	 */
+	public synchronized void start() {
+		if( poller != null || !enabled ) {
+			return;
+		}
+		caughtUp = false;
+		poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "session-token-revocations");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		poller.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					poll(HibernateUtil.awaitSessionFactory());
+				} catch (InterruptedException e) {
+					// Shutting down.
+				} catch (RuntimeException e) {
+					// Next poll looks back to the last one that went through, nothing gets skipped.
+					pollFailures.incrementAndGet();
+					logger.error("Polling session token revocations failed.", e);
+				}
+			}
+		}, 0, pollInterval, TimeUnit.MILLISECONDS);
+		logger.info("Polling session token revocations every {} ms.", pollInterval);
+	}
+
+	public synchronized void stop() {
+		if( poller == null ) {
+			return;
+		}
+		poller.shutdownNow();
+		poller = null;
+	}
+
+	/**
+	 * <p>Merges in the revocations stored since the last poll, ours included, they change nothing.
+	 */
+	void poll(SessionFactory sessionFactory) {
+		long start = System.currentTimeMillis();
+		// First time round, anything older than a token's lifetime can't matter.
+		long since = polledAt == 0 ? start - ttl : polledAt - POLL_OVERLAP;
+
+		List<?> rows;
+		StatelessSession session = sessionFactory.openStatelessSession();
+		Transaction tx = null;
+		try {
+			tx = session.beginTransaction();
+			rows = session.createQuery(REVOCATIONS_QUERY)
+				.setLong("since", since)
+				.list();
+			tx.commit();
+		} catch (RuntimeException e) {
+			if( tx != null && tx.isActive() ) {
+				tx.rollback();
+			}
+			throw e;
+		} finally {
+			session.close();
+		}
+
+		for( Object row : rows ) {
+			Object[] values = (Object[]) row;
+			revokeLocally((Long) values[0], (Long) values[1]);
+		}
+		polledAt = start;
+		caughtUp = true;
+	}
+
+	public String issue(long userId, long now) {
+		long period = now / rotation;
+		ByteBuffer payload = ByteBuffer.allocate(PAYLOAD_BYTES);
+		payload.put(VERSION);
+		payload.putInt((int) period);
+		payload.putLong(userId);
+		payload.putLong(now);
+		payload.putLong(now + ttl);
+
+		byte[] payloadBytes = payload.array();
+		issued.incrementAndGet();
+		return encode(payloadBytes) + "." + encode(sign(keyFor(period), payloadBytes));
+	}
+
+	/**
+	 * @return the token's content, or null if it's malformed, forged, signed with a retired key, expired or revoked.
+	 */
+	public Token verify(String token, long now) {
+		Token found = caughtUp ? parse(token, now) : null;
+		if( found == null ) {
+			rejected.incrementAndGet();
+		} else {
+			accepted.incrementAndGet();
+		}
+		return found;
+	}
+
+	/**
+	 * <p>Revokes every token issued to this user before the given time, on this node. The caller stores it in
+	 * TOKEN_REVOCATION for the others.
+	 */
+	public void revokeIssuedBefore(long userId, long time) {
+		revokeLocally(userId, time);
+		revoked.incrementAndGet();
+	}
+
+	private void revokeLocally(long userId, long time) {
+		Long boxed = Long.valueOf(time);
+		Long userKey = Long.valueOf(userId);
+		while( true ) {
+			Long current = revocations.putIfAbsent(userKey, boxed);
+			if( current == null || current.longValue() >= time || revocations.replace(userKey, current, boxed) ) {
+				break;
+			}
+		}
+
+		if( revocations.size() > sweepAt ) {
+			sweep(time);
+		}
+	}
+
+	public int revocationCount() {
+		return revocations.size();
+	}
+
+	public void writeMetrics(MetricsWriter out) {
+		out.counter("rhok_session_tokens_issued_total", null, issued.get());
+		out.counter("rhok_session_tokens_accepted_total", null, accepted.get());
+		out.counter("rhok_session_tokens_rejected_total", null, rejected.get());
+		out.counter("rhok_session_tokens_revoked_total", null, revoked.get());
+		out.gauge("rhok_session_tokens_revocations", null, revocationCount());
+		long last = polledAt;
+		if( last > 0 ) {
+			out.gauge("rhok_session_tokens_revocation_poll_age_seconds", null, (System.currentTimeMillis() - last) / 1000.0);
+		}
+		out.counter("rhok_session_tokens_revocation_poll_failures_total", null, pollFailures.get());
+	}
+
+	private Token parse(String token, long now) {
+		if( token == null ) {
+			return null;
+		}
+		int dot = token.indexOf('.');
+		if( dot < 0 ) {
+			return null;
+		}
+
+		byte[] payloadBytes;
+		byte[] signature;
+		try {
+			payloadBytes = decode(token.substring(0, dot));
+			signature = decode(token.substring(dot + 1));
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		if( payloadBytes.length != PAYLOAD_BYTES ) {
+			return null;
+		}
+
+		ByteBuffer payload = ByteBuffer.wrap(payloadBytes);
+		if( payload.get() != VERSION ) {
+			return null;
+		}
+		long period = payload.getInt() & 0xffffffffL;
+		long currentPeriod = now / rotation;
+		if( period > currentPeriod || currentPeriod - period > keyPeriodsKept ) {
+			return null;
+		}
+		if( !MessageDigest.isEqual(signature, sign(keyFor(period), payloadBytes)) ) {
+			return null;
+		}
+
+		long userId = payload.getLong();
+		long issuedAt = payload.getLong();
+		long expiresAt = payload.getLong();
+		if( now >= expiresAt ) {
+			return null;
+		}
+		Long revokedBefore = revocations.get(Long.valueOf(userId));
+		if( revokedBefore != null && issuedAt < revokedBefore.longValue() ) {
+			return null;
+		}
+		return new Token(userId, issuedAt, expiresAt);
+	}
+
+	/**
+	 * <p>Drops revocations that can't apply to any unexpired token anymore.
+	 */
+	private synchronized void sweep(long now) {
+		if( revocations.size() <= sweepAt ) {
+			return;
+		}
+		Iterator<Map.Entry<Long, Long>> iterator = revocations.entrySet().iterator();
+		while( iterator.hasNext() ) {
+			if( iterator.next().getValue().longValue() + ttl <= now ) {
+				iterator.remove();
+			}
+		}
+		sweepAt = Math.max(1024, revocations.size() * 2);
+	}
+
+	private SecretKeySpec keyFor(long period) {
+		Long boxed = Long.valueOf(period);
+		SecretKeySpec key = keys.get(boxed);
+		if( key == null ) {
+			byte[] derivation = ("rhok-session-token:" + period).getBytes(UTF8);
+			key = new SecretKeySpec(sign(new SecretKeySpec(masterSecret, ALGORITHM), derivation), ALGORITHM);
+			keys.putIfAbsent(boxed, key);
+			// Forget retired keys.
+			keys.remove(Long.valueOf(period - keyPeriodsKept - 1));
+		}
+		return key;
+	}
+
+	private byte[] sign(SecretKeySpec key, byte[] data) {
+		Mac mac = macs.get();
+		try {
+			mac.init(key);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to sign session tokens.", e);
+		}
+		return mac.doFinal(data);
+	}
+
+	private static String encode(byte[] bytes) {
+		String base64 = DatatypeConverter.printBase64Binary(bytes);
+		int end = base64.length();
+		while( end > 0 && base64.charAt(end - 1) == '=' ) {
+			end--;
+		}
+		return base64.substring(0, end).replace('+', '-').replace('/', '_');
+	}
+
+	private static byte[] decode(String base64url) {
+		StringBuilder base64 = new StringBuilder(base64url.length() + 2);
+		base64.append(base64url.replace('-', '+').replace('_', '/'));
+		while( base64.length() % 4 != 0 ) {
+			base64.append('=');
+		}
+		return DatatypeConverter.parseBase64Binary(base64.toString());
+	}
+
+}
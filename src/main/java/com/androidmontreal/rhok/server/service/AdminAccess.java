@@ -0,0 +1,34 @@
+package com.androidmontreal.rhok.server.service;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+/**
+ * <p>Stopgap guard for the admin endpoints (user listing, export and bulk import) until we get a real authorization layer, see
+ * the TODOs on {@link UserManagement}. Callers send the token configured in rhok.admin.token in an X-Admin-Token
+ * header. No token configured, no admin endpoints.
+ */
+final class AdminAccess {
+
+	static final String HEADER = "X-Admin-Token";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private AdminAccess() {
+	}
+
+	/**
+	 * @throws WebApplicationException (403) unless the token matches.
+	 */
+	static void check(String token) {
+		String expected = System.getProperty("rhok.admin.token");
+		if( expected == null || expected.length() == 0 || token == null
+				|| !MessageDigest.isEqual(expected.getBytes(UTF8), token.getBytes(UTF8)) ) {
+			throw new WebApplicationException(Response.Status.FORBIDDEN);
+		}
+	}
+
+}
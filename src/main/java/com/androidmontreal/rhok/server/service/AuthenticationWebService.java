@@ -3,23 +3,33 @@ package com.androidmontreal.rhok.server.service;
 import java.util.Date;
 import java.util.List;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.xml.bind.annotation.XmlRootElement;
 
 import org.hibernate.Session;
+import org.hibernate.exception.ConstraintViolationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.androidmontreal.rhok.server.hibernate.HibernateUtil;
 import com.androidmontreal.rhok.server.hibernate.Transactionnal;
+import com.androidmontreal.rhok.server.model.TokenRevocation;
 import com.androidmontreal.rhok.server.model.User;
 import com.androidmontreal.rhok.server.model.UserSession;
+import com.androidmontreal.rhok.server.security.LoginThrottle;
+import com.androidmontreal.rhok.server.security.PasswordHashing;
+import com.androidmontreal.rhok.server.security.SessionTokens;
 import com.androidmontreal.rhok.server.service.AuthenticationWebService.AuthenticationResult.Result;
 import com.androidmontreal.rhok.server.service.exceptions.DuplicateUserEmailDetected;
+import com.androidmontreal.rhok.server.session.SessionCache.CachedSession;
+import com.androidmontreal.rhok.server.session.SessionManager;
 import com.google.inject.Inject;
 
 /**
@@ -34,6 +44,18 @@ public class AuthenticationWebService {
 	
 	@Inject
 	UserManagement userManagement ;
+	
+	@Inject
+	SessionManager sessionManager ;
+	
+	@Inject
+	PasswordHashing passwordHashing ;
+	
+	@Inject
+	SessionTokens sessionTokens ;
+	
+	@Inject
+	LoginThrottle loginThrottle ;
 
 	@XmlRootElement
 	static public class AuthenticationRequest {
@@ -88,20 +110,22 @@ public class AuthenticationWebService {
 	
 	}
 
+	/**
+	 * <p>Login. Attempts are throttled per email and per client address, see {@link LoginThrottle}.
+	 * @param httpRequest for the client address, null when not called over HTTP.
+	 */
 	@POST
 	@Consumes("application/json")
 	@Path("authenticate")
-	public AuthenticationResult authenticate( AuthenticationRequest request ) {
+	public AuthenticationResult authenticate( AuthenticationRequest request, @Context HttpServletRequest httpRequest ) {
 		// TODO: This is only a basic mock-like implementation. Will require something more solid for real projects.
 		
+		// Over the limit? 429, before we touch the database or the hashing pool.
+		loginThrottle.check(LoginThrottle.AUTHENTICATE, request.email, 
+				httpRequest == null ? null : httpRequest.getRemoteAddr());
+		
 		// Get the record for the given email.
-		User foundUser = null ;
-		try {
-			foundUser = userManagement.txFindUser( request.email );
-		} catch (DuplicateUserEmailDetected e) {
-			// We'll use the error-level of logging as a flag to ops that there's interventions needed.
-			logger.error("We got multiple user accounts with this email, can't continue processing this request.", e);
-		}
+		User foundUser = userManagement.txFindUser( request.email );
 		
 		// failResult will be used if we find a problem.
 		AuthenticationResult failResult = new AuthenticationResult();
@@ -116,13 +140,28 @@ public class AuthenticationWebService {
 		}
 		
 		// Fail check: password mismatch.
-		boolean match = request.password.equals(foundUser.getPassword());
+		// Hashing is slow on purpose, this runs on the dedicated hashing pool.
+		boolean match = passwordHashing.verify(request.password, foundUser.getPassword());
 		// Passwords don't match? No good reason to continue.
 		if( !match ) {
 			logger.info("Failed password authentication.");
 			return failResult ;
 		}
 		
+		// Legacy plaintext, or fewer iterations than we use now? Now's our chance to fix it, we have the password.
+		String rehashed = rehashIfNeeded(request.password, foundUser.getPassword());
+		
+		// Token mode: no session to write, and nothing else either. Unlike sessions, earlier tokens stay good: one per
+		// device, say. A logout ends them all.
+		if( sessionTokens.isEnabled() ) {
+			if( rehashed != null ) {
+				txUpgradePassword(foundUser, rehashed);
+			}
+			AuthenticationResult result = new AuthenticationResult();
+			result.setSessionKey(sessionTokens.issue(foundUser.getId(), System.currentTimeMillis()));
+			return result ;
+		}
+		
 		// TODO: Review, could we want simultaneous logins? Web/mobile client for example?
 		// If there's an old existing (valid) session, we invalidate it. [i.e. logout]
 		UserSession oldExistingSession = null ;
@@ -135,10 +174,13 @@ public class AuthenticationWebService {
 		
 		if( oldExistingSession != null ) {
 			logger.info("Had an old session we invalidated.");
+			// Only now, the cache mustn't get ahead of what's committed.
+			sessionManager.sessionLoggedOut(oldExistingSession);
 		}
 		
 		// Build and save new session.
-		UserSession newSession = txLogin(foundUser.getId());
+		UserSession newSession = txLogin(foundUser, rehashed);
+		sessionManager.sessionCreated(newSession);
 		
 		AuthenticationResult result = new AuthenticationResult();
 		result.setSessionKey(newSession.getSessionKey());
@@ -160,12 +202,71 @@ public class AuthenticationWebService {
 		return null ;
 	}
 	
+	/**
+	 * <p>Session check. The post data is the session key, we answer GRANTED if the session is still valid.
+	 * <p>Served from the session cache whenever possible, see {@link SessionManager}. In token mode it's only a
+	 * signature check, see {@link SessionTokens}.
+	 */
+	@POST
+	@Consumes("text/plain")
+	@Path("session")
+	public AuthenticationResult checkSession( String key ) {
+		AuthenticationResult result = new AuthenticationResult();
+		
+		if( sessionTokens.isEnabled() ) {
+			boolean valid = sessionTokens.verify(key, System.currentTimeMillis()) != null;
+			result.setState(valid ? Result.GRANTED : Result.DENIED);
+			if( valid ) {
+				result.setSessionKey(key);
+			}
+			return result ;
+		}
+		
+		CachedSession validSession = sessionManager.findValidSession(key);
+		if( validSession == null ) {
+			result.setState(Result.DENIED);
+			return result ;
+		}
+		
+		result.setState(Result.GRANTED);
+		result.setSessionKey(validSession.getSessionKey());
+		return result ;
+	}
+	
+	/**
+	 * <p>Ends the session. The post data is the session key.
+	 * @return DENIED once the key is no longer usable, like a session check would answer from now on.
+	 */
 	@POST
 	@Consumes("text/plain")
 	@Path("logout")
-	public Result logout( String key ) {
-		// TODO: Impl.
-		return null ;
+	public AuthenticationResult logout( String key ) {
+		AuthenticationResult result = new AuthenticationResult();
+		result.setState(Result.DENIED);
+		
+		if( sessionTokens.isEnabled() ) {
+			long now = System.currentTimeMillis();
+			SessionTokens.Token token = sessionTokens.verify(key, now);
+			if( token != null ) {
+				// Tokens can't be taken back, the user's outstanding ones go on the revocation list.
+				try {
+					txRevokeTokens(token.getUserId(), now + 1);
+				} catch (ConstraintViolationException e) {
+					// The user's first revocation, inserted by another node meanwhile. It's there to update now.
+					txRevokeTokens(token.getUserId(), now + 1);
+				}
+				sessionTokens.revokeIssuedBefore(token.getUserId(), now + 1);
+			}
+			return result ;
+		}
+		
+		if( key != null ) {
+			UserSession loggedOut = txLogoutSession(key);
+			if( loggedOut != null ) {
+				sessionManager.sessionLoggedOut(loggedOut);
+			}
+		}
+		return result ;
 	}
 	
 //	@Transactionnal
@@ -174,13 +275,52 @@ public class AuthenticationWebService {
 //		return null ;
 //	}
 	
+	/**
+	 * <p>Hashes the password again when what we have stored is weaker than a fresh hash. Runs on the hashing pool
+	 * like the verify did. If the pool is full the upgrade waits for a later login, this one still goes through.
+	 * @return the new hash, null if none is needed or we couldn't make one.
+	 */
+	private String rehashIfNeeded(String password, String stored) {
+		if( !passwordHashing.needsRehash(stored) ) {
+			return null ;
+		}
+		try {
+			return passwordHashing.hash(password);
+		} catch (WebApplicationException e) {
+			logger.info("Hashing pool busy, password upgrade left for a later login.");
+			return null ;
+		}
+	}
+	
+	/**
+	 * <p>Stores the upgraded hash, unless the password was changed since we verified it.
+	 */
+	private static void upgradePassword(Session session, User verified, String rehashed) {
+		User user = (User) session.get(User.class, verified.getId());
+		if( user != null && user.getPassword().equals(verified.getPassword()) ) {
+			user.setPassword(rehashed);
+			logger.info("Upgraded the stored password hash of user {}.", user.getId());
+		}
+	}
+	
+	@Transactionnal
+	void txUpgradePassword(User verified, String rehashed) {
+		upgradePassword(HibernateUtil.getCurrentSession(), verified, rehashed);
+	}
+	
+	/**
+	 * <p>The session cache is the caller's to update, once we've committed. It reads the session's user then,
+	 * which is why we take the user we already have rather than a proxy only good inside this transaction.
+	 * @param rehashed a new hash for the user's password, saved along with the session. Null to leave it.
+	 */
 	@Transactionnal
-	UserSession txLogin(Long userId) {
+	UserSession txLogin(User user, String rehashed) {
 		Session session = HibernateUtil.getCurrentSession();
-
-		// Get target user.
-		User user = (User) session.load(User.class, userId);
 		
+		if( rehashed != null ) {
+			upgradePassword(session, user, rehashed);
+		}
+
 		UserSession userSession = new UserSession();
 		userSession.setKey(UserSession.generateKey());
 		Date now = new Date();
@@ -195,14 +335,53 @@ public class AuthenticationWebService {
 		return userSession ;
 	}
 	
+	/**
+	 * <p>Records that the user's tokens issued before this time are revoked, for the other nodes' SessionTokens to
+	 * poll. In its own table, USER and the users cache are left alone.
+	 */
+	@Transactionnal
+	void txRevokeTokens(Long userId, long before) {
+		Session session = HibernateUtil.getCurrentSession();
+		TokenRevocation revocation = (TokenRevocation) session.get(TokenRevocation.class, userId);
+		if( revocation == null ) {
+			revocation = new TokenRevocation();
+			revocation.setUserId(userId);
+			revocation.setRevokedBefore(before);
+			session.save(revocation);
+		} else if( revocation.getRevokedBefore().longValue() < before ) {
+			revocation.setRevokedBefore(before);
+		}
+	}
+	
+	/**
+	 * <p>The session cache is the caller's to update, once we've committed.
+	 * @return the session we logged out, null if there was none or it already was.
+	 */
+	@Transactionnal
+	UserSession txLogoutSession(String sessionKey) {
+		UserSession found = (UserSession) HibernateUtil.getCurrentSession()
+			.createQuery("from UserSession as us join fetch us.user where us.sessionKey = :sessionKey")
+			.setString("sessionKey", sessionKey)
+			.uniqueResult();
+		
+		if( found == null || found.isLoggedOut() ) {
+			return null ;
+		}
+		found.setLoggedOut(true);
+		return found ;
+	}
+	
+	@Transactionnal
 	UserSession txLogoutExistingSession(Long userId) throws DuplicateUserEmailDetected {
 		Session session = HibernateUtil.getCurrentSession();
 
+		// Served by IDX_USER_SESSION_ACTIVE. Like everything reading the database, expiresAt can be behind by up to
+		// one SessionActivityWriter flush.
 		List<?> list = session.createQuery(
 				"from UserSession as us where us.user.id = :userId " +
-				"and (us.lastActivity+timeout) > :now")
+				"and us.loggedOut = false and us.expiresAt > :now")
 			.setLong("userId", userId)
-			.setDate("now", new Date())
+			.setTimestamp("now", new Date())
 			.list();	
 		
 		// This is a fail-state.
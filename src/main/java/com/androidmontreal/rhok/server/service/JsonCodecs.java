@@ -0,0 +1,151 @@
+package com.androidmontreal.rhok.server.service;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.io.SerializedString;
+
+import com.androidmontreal.rhok.server.service.AuthenticationWebService.AuthenticationRequest;
+import com.androidmontreal.rhok.server.service.AuthenticationWebService.AuthenticationResult;
+import com.androidmontreal.rhok.server.service.UserManagement.CreateUserResult;
+import com.androidmontreal.rhok.server.service.UserManagement.UserPage;
+import com.androidmontreal.rhok.server.service.UserManagement.UserSummary;
+import com.androidmontreal.rhok.server.service.result.ValidationResult;
+import com.androidmontreal.rhok.server.web.JsonCodec;
+import com.androidmontreal.rhok.server.web.MappedJsonWriter;
+import com.androidmontreal.rhok.server.web.StreamingJsonProvider;
+
+/**
+ * <p>The {@link JsonCodec}s of our web service types, for the {@link StreamingJsonProvider}. Field names are the
+ * JAXB property names, in name order like JAXB writes them.
+ * <p>Adding a field to one of these types means adding it here too, or it won't show up in the JSON.
+ * <p>CreateUserCommand has none: it's an inner class of UserManagement, which a codec can't create any more than
+ * jersey-json can.
+ */
+public class JsonCodecs {
+
+	private static final SerializedString ARCHIVED = new SerializedString("archived");
+	private static final SerializedString CONFIRMED = new SerializedString("confirmed");
+	private static final SerializedString EMAIL = new SerializedString("email");
+	private static final SerializedString FIELD_NAME = new SerializedString("fieldName");
+	private static final SerializedString FIRST_NAME = new SerializedString("firstName");
+	private static final SerializedString ID = new SerializedString("id");
+	private static final SerializedString LAST_NAME = new SerializedString("lastName");
+	private static final SerializedString MESSAGE = new SerializedString("message");
+	private static final SerializedString NEXT = new SerializedString("next");
+	private static final SerializedString PASSWORD = new SerializedString("password");
+	private static final SerializedString RESULT_CODE = new SerializedString("resultCode");
+	private static final SerializedString SESSION_KEY = new SerializedString("sessionKey");
+	private static final SerializedString STATE = new SerializedString("state");
+	private static final SerializedString USERNAME = new SerializedString("username");
+	private static final SerializedString USERS = new SerializedString("users");
+	private static final SerializedString VALIDATION_RESULTS = new SerializedString("validationResults");
+
+	private JsonCodecs() {
+	}
+
+	static final JsonCodec<AuthenticationRequest> AUTHENTICATION_REQUEST = new JsonCodec<AuthenticationRequest>(AuthenticationRequest.class) {
+		@Override
+		public void write(AuthenticationRequest value, MappedJsonWriter out) throws IOException {
+			out.startObject();
+			out.field(EMAIL, value.getEmail());
+			out.field(PASSWORD, value.getPassword());
+			out.endObject();
+		}
+
+		@Override
+		public boolean canRead() {
+			return true;
+		}
+
+		@Override
+		public AuthenticationRequest read(JsonParser parser) throws IOException {
+			if( parser.getCurrentToken() != JsonToken.START_OBJECT ) {
+				throw new JsonParseException("Expected an object.", parser.getCurrentLocation());
+			}
+			AuthenticationRequest request = new AuthenticationRequest();
+			while( parser.nextToken() == JsonToken.FIELD_NAME ) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if( "email".equals(field) ) {
+					request.setEmail(readText(parser));
+				} else if( "password".equals(field) ) {
+					request.setPassword(readText(parser));
+				} else {
+					parser.skipChildren();
+				}
+			}
+			return request;
+		}
+	};
+
+	static final JsonCodec<AuthenticationResult> AUTHENTICATION_RESULT = new JsonCodec<AuthenticationResult>(AuthenticationResult.class) {
+		@Override
+		public void write(AuthenticationResult value, MappedJsonWriter out) throws IOException {
+			out.startObject();
+			out.field(SESSION_KEY, value.getSessionKey());
+			out.field(STATE, value.getState());
+			out.endObject();
+		}
+	};
+
+	static final JsonCodec<ValidationResult> VALIDATION_RESULT = new JsonCodec<ValidationResult>(ValidationResult.class) {
+		@Override
+		public void write(ValidationResult value, MappedJsonWriter out) throws IOException {
+			out.startObject();
+			out.field(FIELD_NAME, value.getFieldName());
+			out.field(MESSAGE, value.getMessage());
+			out.endObject();
+		}
+	};
+
+	static final JsonCodec<CreateUserResult> CREATE_USER_RESULT = new JsonCodec<CreateUserResult>(CreateUserResult.class) {
+		@Override
+		public void write(CreateUserResult value, MappedJsonWriter out) throws IOException {
+			out.startObject();
+			out.field(RESULT_CODE, value.getResultCode());
+			out.list(VALIDATION_RESULTS, value.getValidationResults(), VALIDATION_RESULT);
+			out.endObject();
+		}
+	};
+
+	static final JsonCodec<UserSummary> USER_SUMMARY = new JsonCodec<UserSummary>(UserSummary.class) {
+		@Override
+		public void write(UserSummary value, MappedJsonWriter out) throws IOException {
+			out.startObject();
+			out.field(ARCHIVED, value.getArchived());
+			out.field(CONFIRMED, value.getConfirmed());
+			out.field(EMAIL, value.getEmail());
+			out.field(FIRST_NAME, value.getFirstName());
+			out.field(ID, value.getId());
+			out.field(LAST_NAME, value.getLastName());
+			out.field(USERNAME, value.getUsername());
+			out.endObject();
+		}
+	};
+
+	static final JsonCodec<UserPage> USER_PAGE = new JsonCodec<UserPage>(UserPage.class) {
+		@Override
+		public void write(UserPage value, MappedJsonWriter out) throws IOException {
+			out.startObject();
+			out.field(NEXT, value.getNext());
+			out.list(USERS, value.getUsers(), USER_SUMMARY);
+			out.endObject();
+		}
+	};
+
+	static final List<JsonCodec<?>> ALL = Collections.unmodifiableList(Arrays.<JsonCodec<?>>asList(
+			AUTHENTICATION_REQUEST, AUTHENTICATION_RESULT, VALIDATION_RESULT, CREATE_USER_RESULT, USER_SUMMARY, USER_PAGE));
+
+	public static void registerAll(StreamingJsonProvider provider) {
+		for( JsonCodec<?> codec : ALL ) {
+			provider.register(codec);
+		}
+	}
+
+}
@@ -0,0 +1,246 @@
+package com.androidmontreal.rhok.server.service;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.androidmontreal.rhok.server.hibernate.HibernateUtil;
+import com.androidmontreal.rhok.server.metrics.MetricSource;
+import com.androidmontreal.rhok.server.metrics.MetricsWriter;
+import com.androidmontreal.rhok.server.metrics.StripedCounter;
+import com.google.inject.Singleton;
+
+/**
+ * <p>The normalized email of every user, in a {@link ScalableBloomFilter}. Most signups are for emails we've never
+ * seen, and for those the filter says "definitely not" without a trip to the database, createUser() can go straight
+ * to creating the user.
+ * <p>A "maybe" still means a real lookup. Correctness never depends on the filter, the unique index on
+ * USER.normalizedEmail does that: a signup for a taken email that got past the filter anyway (created by another
+ * server, or a race) fails on the constraint, and createUser() answers with the existing user like it always has.
+ * <p>Built at startup from a forward-only scan of the emails, on its own thread once hibernate is up. Until that's
+ * done every check says maybe. New users are added as they're created, including during the scan.
+ * <p>Users created on other nodes (or straight in SQL) aren't seen that way. Every rhok.knownEmails.refresh ms we
+ * scan the users past the highest id we know of, so those say "absent" for at most that long. Ids don't always
+ * commit in order, each refresh starts from where the one before last stopped so a slow signup isn't skipped. One
+ * that stays uncommitted longer than that, or a user created elsewhere in between refreshes, only costs a wasted
+ * password hash before the unique index turns the signup down. 0 turns refreshes off, for a single node.
+ * <p>Configuration via system properties:
+ * <ul>
+ * <li>rhok.knownEmails.enabled - false to always look up (default true)
+ * <li>rhok.knownEmails.capacity - emails the filter is sized for at first, it grows past that (default 1000000)
+ * <li>rhok.knownEmails.falsePositiveRate - target odds of a useless lookup for a new email (default 0.01)
+ * <li>rhok.knownEmails.refresh - ms between scans for users created elsewhere, 0 for none (default 10000)
+ * </ul>
+ * <p>The defaults take about 1.4 MB for the first million emails, and twice what's there each time it grows.
+ */
+@Singleton
+public class KnownEmails implements MetricSource {
+
+	static private final Logger logger = LoggerFactory.getLogger(KnownEmails.class);
+
+	private static final String QUERY = "select u.id, u.normalizedEmail from User as u where u.id > :fromId";
+
+	private final boolean enabled = Boolean.parseBoolean(System.getProperty("rhok.knownEmails.enabled", "true"));
+	private final long capacity = Long.getLong("rhok.knownEmails.capacity", 1000000L);
+	private final double falsePositiveRate = Double.parseDouble(System.getProperty("rhok.knownEmails.falsePositiveRate", "0.01"));
+	private final long refresh = Long.getLong("rhok.knownEmails.refresh", 10000L);
+
+	private final ScalableBloomFilter filter = enabled ? new ScalableBloomFilter(capacity, falsePositiveRate) : null;
+
+	private volatile boolean ready;
+	private volatile long loadDuration;
+
+	// Highest user id seen, and what it was one refresh earlier. Only the scanning thread touches these.
+	private long maxId;
+	private long previousMaxId;
+
+	private final StripedCounter absent = new StripedCounter();
+	private final StripedCounter maybe = new StripedCounter();
+	private final StripedCounter notReady = new StripedCounter();
+	private final StripedCounter falsePositives = new StripedCounter();
+	private final StripedCounter refreshScanned = new StripedCounter();
+
+	private ScheduledExecutorService scanner;
+
+	public synchronized void start() {
+		if( scanner != null || !enabled ) {
+			return;
+		}
+		scanner = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "known-emails");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		scanner.execute(new Runnable() {
+			public void run() {
+				try {
+					load(HibernateUtil.awaitSessionFactory());
+				} catch (InterruptedException e) {
+					// Shutting down before we got going.
+				} catch (RuntimeException e) {
+					// Not ready means every signup looks up its email, same as without the filter.
+					logger.error("Loading the known emails failed, signups will all look theirs up.", e);
+				}
+			}
+		});
+		if( refresh > 0 ) {
+			// Same thread, so never before the load is done.
+			scanner.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						refresh(HibernateUtil.getSessionFactory());
+					} catch (RuntimeException e) {
+						// The next one starts from the same place.
+						logger.error("Refreshing the known emails failed.", e);
+					}
+				}
+			}, refresh, refresh, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public synchronized void stop() {
+		if( scanner == null ) {
+			return;
+		}
+		scanner.shutdownNow();
+		scanner = null;
+	}
+
+	void load(SessionFactory sessionFactory) {
+		long start = System.currentTimeMillis();
+		long count = scan(sessionFactory, 0);
+		previousMaxId = maxId;
+
+		// Users created while we scanned were added by createUser() itself, nothing was missed.
+		ready = true;
+		loadDuration = System.currentTimeMillis() - start;
+		logger.info("Loaded {} known emails in {} ms, {} bytes.",
+				new Object[] { count, loadDuration, filter.sizeInBytes() });
+	}
+
+	/**
+	 * <p>Adds the users created since the refresh before last, see the class comment.
+	 */
+	void refresh(SessionFactory sessionFactory) {
+		if( !ready ) {
+			// The load failed, a few more emails won't make the filter usable.
+			return;
+		}
+		long from = previousMaxId;
+		previousMaxId = maxId;
+		refreshScanned.add(scan(sessionFactory, from));
+	}
+
+	/**
+	 * <p>Adds the emails of users past fromId, and keeps track of the highest id.
+	 * @return emails added, or found already in.
+	 */
+	private long scan(SessionFactory sessionFactory, long fromId) {
+		boolean mysql = ((SessionFactoryImplementor) sessionFactory).getDialect() instanceof MySQLDialect;
+		int fetchSize = mysql ? Integer.MIN_VALUE : 1000;
+
+		long count = 0;
+		StatelessSession session = sessionFactory.openStatelessSession();
+		Transaction tx = null;
+		try {
+			tx = session.beginTransaction();
+			ScrollableResults rows = session.createQuery(QUERY)
+				.setLong("fromId", fromId)
+				.setFetchSize(fetchSize)
+				.scroll(ScrollMode.FORWARD_ONLY);
+			try {
+				while( rows.next() ) {
+					maxId = Math.max(maxId, (Long) rows.get(0));
+					String email = (String) rows.get(1);
+					if( email != null ) {
+						filter.add(email);
+						count++;
+					}
+				}
+			} finally {
+				rows.close();
+			}
+			tx.commit();
+		} catch (RuntimeException e) {
+			if( tx != null && tx.isActive() ) {
+				tx.rollback();
+			}
+			throw e;
+		} finally {
+			session.close();
+		}
+		return count;
+	}
+
+	/**
+	 * @param normalizedEmail see User.normalizeEmail().
+	 * @return false only if no user has that email, true if one might.
+	 */
+	public boolean mightExist(String normalizedEmail) {
+		if( normalizedEmail == null || !ready ) {
+			notReady.increment();
+			return true;
+		}
+		if( filter.mightContain(normalizedEmail) ) {
+			maybe.increment();
+			return true;
+		}
+		absent.increment();
+		return false;
+	}
+
+	/**
+	 * <p>mightExist() said maybe, and the lookup found nobody.
+	 */
+	public void falsePositive() {
+		if( ready ) {
+			falsePositives.increment();
+		}
+	}
+
+	/**
+	 * <p>A user with that email was just created (or turned out to exist).
+	 */
+	public void added(String normalizedEmail) {
+		if( filter != null && normalizedEmail != null ) {
+			filter.add(normalizedEmail);
+		}
+	}
+
+	public boolean isReady() {
+		return ready;
+	}
+
+	public void writeMetrics(MetricsWriter out) {
+		out.gauge("rhok_known_emails_ready", null, ready ? 1 : 0);
+		if( filter == null ) {
+			return;
+		}
+		out.gauge("rhok_known_emails_count", null, filter.size());
+		out.gauge("rhok_known_emails_bytes", null, filter.sizeInBytes());
+		out.gauge("rhok_known_emails_stages", null, filter.stageCount());
+		out.gauge("rhok_known_emails_false_positive_rate_target", null, filter.getFalsePositiveRate());
+		out.gauge("rhok_known_emails_false_positive_rate_expected", null, filter.expectedFalsePositiveRate());
+		out.gauge("rhok_known_emails_load_seconds", null, loadDuration / 1000.0);
+		out.counter("rhok_known_emails_checks_total", "answer=\"absent\"", absent.sum());
+		out.counter("rhok_known_emails_checks_total", "answer=\"maybe\"", maybe.sum());
+		out.counter("rhok_known_emails_checks_total", "answer=\"not_ready\"", notReady.sum());
+		out.counter("rhok_known_emails_false_positives_total", null, falsePositives.sum());
+		out.counter("rhok_known_emails_refresh_scanned_total", null, refreshScanned.sum());
+	}
+
+}
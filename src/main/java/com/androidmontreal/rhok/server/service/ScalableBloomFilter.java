@@ -0,0 +1,207 @@
+package com.androidmontreal.rhok.server.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A Bloom filter of strings that grows with what goes in it. Once a stage holds the number of keys it was sized
+ * for, another one twice as big is added with half the false positive rate, so the overall rate stays under the
+ * target however many keys we end up with (Almeida et al., "Scalable Bloom Filters"). Lookups check every stage,
+ * there are only a handful: each one holds as much as all the previous ones together.
+ * <p>mightContain() false means the key was never added. True means maybe.
+ * <p>Safe for concurrent use. Bits only ever get set, with a CAS on their word, so lookups and adds take no lock,
+ * only adding a stage is synchronized.
+ */
+public class ScalableBloomFilter {
+
+	// Each stage gets this fraction of the previous one's false positive rate. The rates then add up to at most
+	// target / (1 - TIGHTENING), the first stage starts at target * (1 - TIGHTENING) to make that the target.
+	private static final double TIGHTENING = 0.5;
+	private static final int GROWTH = 2;
+
+	private static final double LN2 = Math.log(2);
+
+	private static class Stage {
+		final AtomicLongArray words;
+		final long bits;
+		final int hashes;
+		final long capacity;
+		final double falsePositiveRate;
+		final AtomicLong count = new AtomicLong();
+
+		Stage(long capacity, double falsePositiveRate) {
+			// The usual optimum: m = -n ln(p) / ln(2)^2 bits, k = m/n ln(2) hashes.
+			long m = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (LN2 * LN2));
+			int wordCount = (int) Math.min(Integer.MAX_VALUE, Math.max(1, (m + 63) / 64));
+			this.words = new AtomicLongArray(wordCount);
+			this.bits = wordCount * 64L;
+			this.hashes = Math.max(1, (int) Math.round((double) bits / capacity * LN2));
+			this.capacity = capacity;
+			this.falsePositiveRate = falsePositiveRate;
+		}
+
+		boolean mightContain(long h1, long h2) {
+			long combined = h1;
+			for( int i = 0; i < hashes; i++ ) {
+				long bit = (combined & Long.MAX_VALUE) % bits;
+				if( (words.get((int) (bit >>> 6)) & (1L << bit)) == 0 ) {
+					return false;
+				}
+				combined += h2;
+			}
+			return true;
+		}
+
+		void add(long h1, long h2) {
+			long combined = h1;
+			for( int i = 0; i < hashes; i++ ) {
+				long bit = (combined & Long.MAX_VALUE) % bits;
+				int index = (int) (bit >>> 6);
+				long mask = 1L << bit;
+				long word;
+				while( ((word = words.get(index)) & mask) == 0 && !words.compareAndSet(index, word, word | mask) ) {
+					// Someone set another bit of that word, try again.
+				}
+				combined += h2;
+			}
+		}
+
+		/**
+		 * <p>Odds of a false positive with what's in it now: (1 - e^(-kn/m))^k.
+		 */
+		double expectedFalsePositiveRate() {
+			return Math.pow(1 - Math.exp(-(double) hashes * count.get() / bits), hashes);
+		}
+	}
+
+	private final double falsePositiveRate;
+
+	// Copy on write, a new stage is rare.
+	private volatile Stage[] stages;
+
+	/**
+	 * @param initialCapacity keys the first stage is sized for.
+	 * @param falsePositiveRate target odds of mightContain() saying maybe for a key that was never added.
+	 */
+	public ScalableBloomFilter(long initialCapacity, double falsePositiveRate) {
+		if( initialCapacity <= 0 ) {
+			throw new IllegalArgumentException("Capacity must be positive: " + initialCapacity);
+		}
+		if( !(falsePositiveRate > 0 && falsePositiveRate < 1) ) {
+			throw new IllegalArgumentException("False positive rate must be between 0 and 1: " + falsePositiveRate);
+		}
+		this.falsePositiveRate = falsePositiveRate;
+		this.stages = new Stage[] { new Stage(initialCapacity, falsePositiveRate * (1 - TIGHTENING)) };
+	}
+
+	public boolean mightContain(String key) {
+		long h1 = hash(key);
+		long h2 = secondHash(h1);
+		for( Stage stage : stages ) {
+			if( stage.mightContain(h1, h2) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void add(String key) {
+		long h1 = hash(key);
+		long h2 = secondHash(h1);
+		Stage[] current = stages;
+		// Already in (or a false positive, same thing to a filter), adding it again would only use up capacity.
+		for( Stage stage : current ) {
+			if( stage.mightContain(h1, h2) ) {
+				return;
+			}
+		}
+		Stage last = current[current.length - 1];
+		if( last.count.get() >= last.capacity ) {
+			last = grow(last);
+		}
+		last.add(h1, h2);
+		last.count.incrementAndGet();
+	}
+
+	private synchronized Stage grow(Stage full) {
+		Stage[] current = stages;
+		Stage last = current[current.length - 1];
+		if( last != full ) {
+			// Someone else got here first.
+			return last;
+		}
+		Stage next = new Stage(full.capacity * GROWTH, full.falsePositiveRate * TIGHTENING);
+		Stage[] grown = new Stage[current.length + 1];
+		System.arraycopy(current, 0, grown, 0, current.length);
+		grown[current.length] = next;
+		stages = grown;
+		return next;
+	}
+
+	/**
+	 * <p>Keys added, not counting the ones that looked like they were already in.
+	 */
+	public long size() {
+		long size = 0;
+		for( Stage stage : stages ) {
+			size += stage.count.get();
+		}
+		return size;
+	}
+
+	public long sizeInBytes() {
+		long bytes = 0;
+		for( Stage stage : stages ) {
+			bytes += stage.words.length() * 8L;
+		}
+		return bytes;
+	}
+
+	public int stageCount() {
+		return stages.length;
+	}
+
+	public double getFalsePositiveRate() {
+		return falsePositiveRate;
+	}
+
+	/**
+	 * <p>Odds of a false positive with what's in the filter now, from the stages' sizes and fill. Under
+	 * getFalsePositiveRate() until stages fill up.
+	 */
+	public double expectedFalsePositiveRate() {
+		double none = 1;
+		for( Stage stage : stages ) {
+			none *= 1 - stage.expectedFalsePositiveRate();
+		}
+		return 1 - none;
+	}
+
+	/**
+	 * <p>FNV-1a over the chars, then MurmurHash3's finalizer: FNV alone mixes the last chars poorly, and emails
+	 * all end the same way.
+	 */
+	private static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for( int i = 0; i < key.length(); i++ ) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return fmix64(h);
+	}
+
+	// Odd, so stepping by it doesn't cycle early through a power of two bit count.
+	private static long secondHash(long h1) {
+		return fmix64(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+	}
+
+	private static long fmix64(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb93fe1a85ec3L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+}
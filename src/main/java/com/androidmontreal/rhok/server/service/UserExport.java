@@ -0,0 +1,221 @@
+package com.androidmontreal.rhok.server.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.util.MinimalPrettyPrinter;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.androidmontreal.rhok.server.hibernate.HibernateUtil;
+import com.androidmontreal.rhok.server.hibernate.PooledConnectionProvider;
+
+/**
+ * <p>One run of the user export, see {@link UserManagement#exportUsers(String, String)}.
+ * <p>Rows come off a forward-only cursor and go straight to the response, one at a time. We scroll a projection
+ * through a StatelessSession: no entities, no persistence context, no second-level cache, so there is nothing to
+ * evict and memory use stays flat however many users we have. Password hashes are never exported.
+ * <p>MySQL's driver buffers whole result sets unless the fetch size is Integer.MIN_VALUE, that's what we use there.
+ * Elsewhere it's rhok.export.fetchSize (default 1000).
+ * <p>The run holds one pooled connection from start to finish, slow clients included. The pool reclaims
+ * connections held longer than rhok.pool.leakTimeout (see {@link PooledConnectionProvider}), which cuts off any
+ * export still going by then.
+ */
+class UserExport {
+
+	static private final Logger logger = LoggerFactory.getLogger(UserExport.class);
+
+	static final String NDJSON = "application/x-ndjson";
+	static final String CSV = "text/csv";
+
+	private static final String QUERY =
+			"select u.id, u.email, u.username, u.firstName, u.lastName, u.confirmed, u.archived, u.lastEmailCheck, " +
+			"u.referal.id from User as u order by u.id";
+	private static final String[] COLUMNS = {
+			"id", "email", "username", "firstName", "lastName", "confirmed", "archived", "lastEmailCheck", "referalId" };
+
+	// Rows between explicit flushes, so the client sees progress on big exports.
+	private static final int FLUSH_EVERY = 1000;
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	/**
+	 * @return null for a format we don't know.
+	 */
+	static UserExport forFormat(String format) {
+		if( "ndjson".equalsIgnoreCase(format) ) {
+			return new UserExport(false);
+		}
+		if( "csv".equalsIgnoreCase(format) ) {
+			return new UserExport(true);
+		}
+		return null;
+	}
+
+	private final boolean csv;
+	private final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+	private UserExport(boolean csv) {
+		this.csv = csv;
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+
+	String getMediaType() {
+		return csv ? CSV : NDJSON;
+	}
+
+	String getFileName() {
+		return csv ? "users.csv" : "users.ndjson";
+	}
+
+	void run(OutputStream out) throws IOException {
+		long start = System.currentTimeMillis();
+		SessionFactory sessionFactory = HibernateUtil.getSessionFactory();
+		boolean mysql = ((SessionFactoryImplementor) sessionFactory).getDialect() instanceof MySQLDialect;
+		int fetchSize = mysql ? Integer.MIN_VALUE : Integer.getInteger("rhok.export.fetchSize", 1000);
+
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+		JsonGenerator generator = null;
+		if( csv ) {
+			writeCsvRow(writer, COLUMNS);
+		} else {
+			generator = jsonFactory.createJsonGenerator(writer);
+			generator.setPrettyPrinter(new MinimalPrettyPrinter("\n"));
+		}
+
+		long count = 0;
+		StatelessSession session = sessionFactory.openStatelessSession();
+		Transaction tx = null;
+		try {
+			// One transaction for the whole run, the export is a consistent snapshot.
+			tx = session.beginTransaction();
+			ScrollableResults rows = session.createQuery(QUERY)
+				.setFetchSize(fetchSize)
+				.scroll(ScrollMode.FORWARD_ONLY);
+			try {
+				while( rows.next() ) {
+					Object[] row = rows.get();
+					if( csv ) {
+						writeCsvRow(writer, format(row));
+					} else {
+						writeJson(generator, row);
+					}
+					if( ++count % FLUSH_EVERY == 0 ) {
+						writer.flush();
+					}
+				}
+			} finally {
+				rows.close();
+			}
+			tx.commit();
+		} finally {
+			// Whatever cut the run short, a client that went away (IOException) included, the snapshot ends here.
+			if( tx != null && tx.isActive() ) {
+				rollback(tx);
+			}
+			session.close();
+		}
+
+		if( generator != null ) {
+			generator.flush();
+			if( count > 0 ) {
+				writer.write('\n');
+			}
+		}
+		writer.flush();
+		logger.info("Exported {} users in {} ms.", count, System.currentTimeMillis() - start);
+	}
+
+	private static void rollback(Transaction tx) {
+		try {
+			tx.rollback();
+		} catch (RuntimeException e) {
+			// Don't hide why we're rolling back, closing the session gives the connection back regardless.
+			logger.warn("Rollback of the user export failed.", e);
+		}
+	}
+
+	private void writeJson(JsonGenerator generator, Object[] row) throws IOException {
+		generator.writeStartObject();
+		for( int i = 0; i < COLUMNS.length; i++ ) {
+			Object value = row[i];
+			if( value == null ) {
+				continue;
+			}
+			if( value instanceof Number ) {
+				generator.writeNumberField(COLUMNS[i], ((Number) value).longValue());
+			} else if( value instanceof Boolean ) {
+				generator.writeBooleanField(COLUMNS[i], (Boolean) value);
+			} else if( value instanceof Date ) {
+				generator.writeStringField(COLUMNS[i], dateFormat.format((Date) value));
+			} else {
+				generator.writeStringField(COLUMNS[i], value.toString());
+			}
+		}
+		generator.writeEndObject();
+	}
+
+	private String[] format(Object[] row) {
+		String[] values = new String[COLUMNS.length];
+		for( int i = 0; i < COLUMNS.length; i++ ) {
+			Object value = row[i];
+			if( value == null ) {
+				values[i] = "";
+			} else if( value instanceof Date ) {
+				values[i] = dateFormat.format((Date) value);
+			} else {
+				values[i] = value.toString();
+			}
+		}
+		return values;
+	}
+
+	private static void writeCsvRow(Writer writer, String[] values) throws IOException {
+		for( int i = 0; i < values.length; i++ ) {
+			if( i > 0 ) {
+				writer.write(',');
+			}
+			writeCsvValue(writer, values[i]);
+		}
+		writer.write("\r\n");
+	}
+
+	/**
+	 * <p>RFC 4180 quoting. Values a spreadsheet would take for a formula get a leading quote, these are user
+	 * supplied names after all.
+	 */
+	private static void writeCsvValue(Writer writer, String value) throws IOException {
+		if( value.length() > 0 && "=+-@".indexOf(value.charAt(0)) >= 0 ) {
+			value = "'" + value;
+		}
+		boolean quote = false;
+		for( int i = 0; i < value.length() && !quote; i++ ) {
+			char c = value.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if( !quote ) {
+			writer.write(value);
+			return;
+		}
+		writer.write('"');
+		writer.write(value.replace("\"", "\"\""));
+		writer.write('"');
+	}
+
+}
@@ -0,0 +1,274 @@
+package com.androidmontreal.rhok.server.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.exception.ConstraintViolationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.androidmontreal.rhok.server.hibernate.HibernateUtil;
+import com.androidmontreal.rhok.server.model.User;
+import com.androidmontreal.rhok.server.security.PasswordHashing;
+import com.androidmontreal.rhok.server.service.UserManagement.CreateUserCommand;
+import com.androidmontreal.rhok.server.service.UserManagement.CreateUserResult.Code;
+import com.androidmontreal.rhok.server.service.result.ValidationResult;
+
+/**
+ * <p>One run of the bulk import, see {@link UserManagement#importUsers(String, InputStream)}.
+ * <p>Reads the records off the request a chunk at a time, and writes each chunk's results before reading the
+ * next. A chunk is validated, checked against the emails already taken, hashed, and inserted through a
+ * StatelessSession in a single transaction. No persistence context and no second-level cache on that path, so
+ * inserts are JDBC batched (when the id generator allows it) and nothing piles up in memory.
+ * <p>If someone signs up with one of the emails between our check and our insert, the chunk's batch fails on the
+ * unique index. We then redo that chunk one record at a time to find out which.
+ */
+class UserImport {
+
+	static private final Logger logger = LoggerFactory.getLogger(UserImport.class);
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	/**
+	 * <p>A record of the import, and what became of it.
+	 */
+	private static class Record {
+		final int index;
+		final CreateUserCommand command;
+		final User user;
+		Code resultCode;
+		List<ValidationResult> validationResults;
+
+		Record(int index, CreateUserCommand command) {
+			this.index = index;
+			this.command = command;
+			this.user = command.buildUser();
+		}
+	}
+
+	private final UserManagement userManagement;
+	private final PasswordHashing passwordHashing;
+	private final InputStream in;
+	private final OutputStream out;
+	private final SessionFactory sessionFactory = HibernateUtil.getSessionFactory();
+	private final int chunkSize;
+
+	private int read;
+	private int created;
+	private int skipped;
+	private int invalid;
+
+	UserImport(UserManagement userManagement, PasswordHashing passwordHashing, InputStream in, OutputStream out) {
+		this.userManagement = userManagement;
+		this.passwordHashing = passwordHashing;
+		this.in = in;
+		this.out = out;
+		this.chunkSize = Math.max(1, ((SessionFactoryImplementor) sessionFactory).getSettings().getJdbcBatchSize());
+	}
+
+	void run() throws IOException {
+		long start = System.currentTimeMillis();
+		JsonParser parser = jsonFactory.createJsonParser(in);
+		JsonGenerator generator = jsonFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+		generator.writeStartArray();
+
+		List<Record> chunk = new ArrayList<Record>(chunkSize);
+		try {
+			if( parser.nextToken() != JsonToken.START_ARRAY ) {
+				throw new JsonParseException("Expected an array of users.", parser.getCurrentLocation());
+			}
+			JsonToken token;
+			while( (token = parser.nextToken()) == JsonToken.START_OBJECT ) {
+				CreateUserCommand command = readCommand(parser);
+				chunk.add(new Record(read++, command));
+				if( chunk.size() == chunkSize ) {
+					importChunk(chunk, generator);
+				}
+			}
+			if( token != JsonToken.END_ARRAY ) {
+				throw new JsonParseException("Expected a user object.", parser.getCurrentLocation());
+			}
+			importChunk(chunk, generator);
+		} catch (JsonParseException e) {
+			// What we read so far still goes in, then we tell the client where we gave up.
+			logger.info("Bulk import stopped on malformed input: {}", e.getMessage());
+			importChunk(chunk, generator);
+			ValidationResult error = new ValidationResult();
+			error.setFieldName("json");
+			error.setMessage(e.getMessage());
+			Record broken = new Record(read, userManagement.new CreateUserCommand());
+			broken.resultCode = Code.VALIDATION_FAILED;
+			broken.validationResults = Collections.singletonList(error);
+			write(broken, generator);
+		} finally {
+			parser.close();
+		}
+
+		generator.writeEndArray();
+		generator.close();
+		logger.info("Bulk import of {} users: {} created, {} already there, {} invalid, in {} ms.",
+				new Object[] { read, created, skipped, invalid, System.currentTimeMillis() - start });
+	}
+
+	private CreateUserCommand readCommand(JsonParser parser) throws IOException {
+		CreateUserCommand command = userManagement.new CreateUserCommand();
+		while( parser.nextToken() == JsonToken.FIELD_NAME ) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			if( "email".equals(field) && value == JsonToken.VALUE_STRING ) {
+				command.setEmail(parser.getText());
+			} else if( "password".equals(field) && value == JsonToken.VALUE_STRING ) {
+				command.setPassword(parser.getText());
+			} else {
+				// Anything else is ignored, same as createUser.
+				parser.skipChildren();
+			}
+		}
+		return command;
+	}
+
+	private void importChunk(List<Record> chunk, JsonGenerator generator) throws IOException {
+		if( chunk.isEmpty() ) {
+			return;
+		}
+
+		List<Record> pending = new ArrayList<Record>(chunk.size());
+		Set<String> emails = new HashSet<String>();
+		for( Record record : chunk ) {
+			record.validationResults = userManagement.validate(record.command, record.user);
+			if( record.validationResults != null ) {
+				record.resultCode = Code.VALIDATION_FAILED;
+			} else if( !emails.add(record.user.getNormalizedEmail()) ) {
+				// Same email twice in the import, the first one wins.
+				record.resultCode = Code.EXISTS_SKIPPED;
+			} else {
+				pending.add(record);
+			}
+		}
+
+		// Only the ones the filter isn't sure about need checking.
+		Set<String> maybeTaken = new HashSet<String>();
+		for( String email : emails ) {
+			if( userManagement.knownEmails.mightExist(email) ) {
+				maybeTaken.add(email);
+			}
+		}
+		Set<String> taken = userManagement.txExistingEmails(maybeTaken);
+		List<String> passwords = new ArrayList<String>(pending.size());
+		for( int i = pending.size() - 1; i >= 0; i-- ) {
+			if( taken.contains(pending.get(i).user.getNormalizedEmail()) ) {
+				pending.remove(i).resultCode = Code.EXISTS_SKIPPED;
+			}
+		}
+		for( Record record : pending ) {
+			passwords.add(record.command.getPassword());
+		}
+
+		if( !pending.isEmpty() ) {
+			List<String> hashes = passwordHashing.hashAll(passwords);
+			for( int i = 0; i < pending.size(); i++ ) {
+				pending.get(i).user.setPassword(hashes.get(i));
+			}
+			insert(pending);
+			// Inserts through a StatelessSession don't invalidate the query cache, cached "no such user" answers
+			// for these emails would stick around.
+			sessionFactory.getCache().evictQueryRegion(UserManagement.USERS_BY_EMAIL_REGION);
+		}
+
+		for( Record record : chunk ) {
+			write(record, generator);
+		}
+		generator.flush();
+		chunk.clear();
+	}
+
+	private void insert(List<Record> records) {
+		try {
+			txInsert(records);
+			for( Record record : records ) {
+				record.resultCode = Code.USER_CREATED;
+			}
+		} catch (ConstraintViolationException e) {
+			logger.info("Concurrent signup during bulk import, inserting the chunk one by one.");
+			for( Record record : records ) {
+				try {
+					txInsert(Collections.singletonList(record));
+					record.resultCode = Code.USER_CREATED;
+				} catch (ConstraintViolationException taken) {
+					record.resultCode = Code.EXISTS_SKIPPED;
+				}
+			}
+		}
+		// Skipped ones too, they're taken either way.
+		for( Record record : records ) {
+			userManagement.knownEmails.added(record.user.getNormalizedEmail());
+		}
+	}
+
+	private void txInsert(List<Record> records) {
+		StatelessSession session = sessionFactory.openStatelessSession();
+		Transaction tx = null;
+		try {
+			tx = session.beginTransaction();
+			for( Record record : records ) {
+				session.insert(record.user);
+			}
+			tx.commit();
+		} catch (RuntimeException e) {
+			if( tx != null && tx.isActive() ) {
+				tx.rollback();
+			}
+			throw e;
+		} finally {
+			session.close();
+		}
+	}
+
+	private void write(Record record, JsonGenerator generator) throws IOException {
+		switch( record.resultCode ) {
+		case USER_CREATED:
+			created++;
+			break;
+		case EXISTS_SKIPPED:
+			skipped++;
+			break;
+		default:
+			invalid++;
+		}
+
+		generator.writeStartObject();
+		generator.writeNumberField("index", record.index);
+		if( record.command.getEmail() != null ) {
+			generator.writeStringField("email", record.command.getEmail());
+		}
+		generator.writeStringField("resultCode", record.resultCode.name());
+		if( record.validationResults != null ) {
+			generator.writeArrayFieldStart("validationResults");
+			for( ValidationResult result : record.validationResults ) {
+				generator.writeStartObject();
+				generator.writeStringField("fieldName", result.getFieldName());
+				generator.writeStringField("message", result.getMessage());
+				generator.writeEndObject();
+			}
+			generator.writeEndArray();
+		}
+		generator.writeEndObject();
+	}
+
+}
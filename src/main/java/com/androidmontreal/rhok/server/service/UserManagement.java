@@ -1,24 +1,42 @@
 package com.androidmontreal.rhok.server.service;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.validation.ConstraintViolation;
-import javax.validation.Validation;
 import javax.validation.Validator;
-import javax.validation.ValidatorFactory;
+import javax.validation.constraints.NotNull;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.xml.bind.DatatypeConverter;
 import javax.xml.bind.annotation.XmlRootElement;
 
+import org.hibernate.Query;
 import org.hibernate.Session;
+import org.hibernate.exception.ConstraintViolationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,9 +44,13 @@ import com.androidmontreal.rhok.server.hibernate.HibernateUtil;
 import com.androidmontreal.rhok.server.hibernate.TransactionInterceptor;
 import com.androidmontreal.rhok.server.hibernate.Transactionnal;
 import com.androidmontreal.rhok.server.model.User;
-import com.androidmontreal.rhok.server.service.exceptions.DuplicateUserEmailDetected;
+import com.androidmontreal.rhok.server.security.LoginThrottle;
+import com.androidmontreal.rhok.server.security.PasswordHashing;
 import com.androidmontreal.rhok.server.service.result.Result;
 import com.androidmontreal.rhok.server.service.result.ValidationResult;
+import com.androidmontreal.rhok.server.validation.ValidPassword;
+import com.androidmontreal.rhok.server.validation.Validators;
+import com.google.inject.Inject;
 
 /**
  * <p>UserManagement groups the user services. Current approach is to try and think of this from the use-case point of 
@@ -47,6 +69,25 @@ public class UserManagement {
 	
 	// Maximum number of days a user can access the system without confirming their email address.
 	private static final int UNCONFIRMED_MAX_DAYS = 7;
+	
+	// Query cache region for email lookups, see ehcache.xml.
+	public static final String USERS_BY_EMAIL_REGION = "users.byEmail";
+	
+	// Page size bounds for listUsers().
+	static final int DEFAULT_PAGE_SIZE = 100;
+	static final int MAX_PAGE_SIZE = 1000;
+	
+	// First byte of a listUsers() cursor, bump it if the format ever changes.
+	private static final byte CURSOR_VERSION = 1;
+	
+	@Inject
+	PasswordHashing passwordHashing ;
+	
+	@Inject
+	LoginThrottle loginThrottle ;
+	
+	@Inject
+	KnownEmails knownEmails ;
 
 	/** 
 	 * <p>Persist a user to the database.
@@ -64,29 +105,29 @@ public class UserManagement {
 	
 	/**
 	 * <p>Find a user in the database via email.
-	 * @param email
+	 * <p>The lookup is an exact match on the normalized email, which is backed by a unique index. User input
+	 * can't widen it into a scan the way a LIKE could, and we can never get more than one row back.
+	 * <p>Goes through the query cache, and the user itself comes out of the second-level cache. Any write to
+	 * USER invalidates the cached lookups (hibernate tracks it per table), so a new signup is seen right away.
+	 * @param email as entered by the user, normalized here.
 	 * @return null if not found.
-	 * @throws DuplicateUserEmailDetected this likely indicates a problem with our app, needs to be flagged and handled.
 	 */
-	@Transactionnal 
-	User txFindUser(String email) throws DuplicateUserEmailDetected {
+	@Transactionnal(readOnly = true)
+	User txFindUser(String email) {
+		String normalizedEmail = User.normalizeEmail(email);
+		if( normalizedEmail == null ) {
+			return null ;
+		}
+		
 		// Using named queries. 
 		// Eventually look into adding them in mapping document to avoid overloading the entity class with annotations...
 		// My goal with named queries is to get compile-time checks vs potential runtimes after entity refactorings.
-		List<?> list = HibernateUtil.getCurrentSession().createQuery("from User as u where u.email like :email ").setString("email", email).list();
-		
-		// This is a fail-state.
-		if( list.size() > 1 ) {
-			throw new DuplicateUserEmailDetected();
-		}
-		
-		// We found a single existing user.
-		if( list.size() == 1 ) {
-			return (User) list.get(0);
-		}
-		
-		// We're done.
-		return null ;
+		return (User) HibernateUtil.getCurrentSession()
+			.createQuery("from User as u where u.normalizedEmail = :email")
+			.setString("email", normalizedEmail)
+			.setCacheable(true)
+			.setCacheRegion(USERS_BY_EMAIL_REGION)
+			.uniqueResult();
 	}
 		
 	/**
@@ -125,7 +166,9 @@ public class UserManagement {
 	static public class CreateUserResult {
 		
 		public enum Code {
-			USER_CREATED, EXISTS_GOOD_CREDS, EXISTS_BAD_CREDS, EXISTS_UNCONFIRMED_EMAIL_DUE, VALIDATION_FAILED
+			USER_CREATED, EXISTS_GOOD_CREDS, EXISTS_BAD_CREDS, EXISTS_UNCONFIRMED_EMAIL_DUE, VALIDATION_FAILED,
+			// Bulk import only, we don't check credentials there.
+			EXISTS_SKIPPED
 		};
 		
 		private Code resultCode;
@@ -161,16 +204,22 @@ public class UserManagement {
 	class CreateUserCommand {
 		
 		private String email;
+		
+		// TODO: set a sensical error message for user.
+		// "((?=.*\\d)(?=.*[a-z])(?=.*[A-Z])(?=.*[@#$%]).{6,20})" this is excessive force.
+		// Going with simpler number/lowercase/uppercase requirement.
+		@NotNull
+		@ValidPassword
 		private String password;
 		
 		/**
 		 * <p>Build a user from the selected fields found in the command. 
+		 * <p>The password isn't copied over, the user only ever gets its hash.
 		 */
 		public User buildUser() {
 			User newUser = new User();
 			
 			newUser.setEmail(email);
-			newUser.setPassword(password);
 			
 			return newUser ;
 		}
@@ -199,76 +248,59 @@ public class UserManagement {
 	 * <p>We want to try to set it up in such a way as login attempts from new users will lead 
 	 * to account creation. Idea is to get frictionless account creation. 
 	 * <p>See CreateUserResult to get an idea of possible responses to calls.
+	 * <p>Since this doubles as a login, attempts are throttled too, see {@link LoginThrottle}.
+	 * @param httpRequest for the client address, null when not called over HTTP.
 	 */
 	@POST
 	@Consumes("application/json") // We expect the newUser to be passed as json info.
-	public CreateUserResult createUser( CreateUserCommand createUserCommand ) {
+	public CreateUserResult createUser( CreateUserCommand createUserCommand, @Context HttpServletRequest httpRequest ) {
 		logger.info("Entered createUser()");
-		// See if we have a record already for the given email.
-		User loadedUser = null ;
-		try {
-			loadedUser = txFindUser(createUserCommand.getEmail());
-		} catch (DuplicateUserEmailDetected e) {
-			// We'll use the error-level of logging as a flag to ops that there's interventions needed.
-			logger.error("We got multiple user accounts with this email, can't continue processing this request.", e);
-		}
+		// Over the limit? 429, before we touch the database or the hashing pool.
+		loginThrottle.check(LoginThrottle.SIGNUP, createUserCommand.getEmail(), 
+				httpRequest == null ? null : httpRequest.getRemoteAddr());
 		
-		// Already got someone with this email?
-		if( loadedUser != null ) {
-			// Credentials checks.
-			boolean checksOut = loadedUser.getPassword().equals(createUserCommand.getPassword());
+		// See if we have a record already for the given email. Most signups are new emails, and for those the
+		// filter usually knows without asking the database.
+		User loadedUser = null;
+		if( knownEmails.mightExist(User.normalizeEmail(createUserCommand.getEmail())) ) {
+			loadedUser = txFindUser(createUserCommand.getEmail());
 			
-			CreateUserResult exists = new CreateUserResult();
-			// If the credentials are good, return our result.
-			if( checksOut ) {
-				long elapsed = new Date().getTime() - loadedUser.getLastEmailCheck().getTime();
-				
-				double daysElapsed = (elapsed/1000.0) / 60 / 60 / 24 ;
-				if( !loadedUser.getConfirmed() && daysElapsed > UNCONFIRMED_MAX_DAYS ) {
-					exists.setResultCode(CreateUserResult.Code.EXISTS_UNCONFIRMED_EMAIL_DUE);
-				} else {
-					exists.setResultCode(CreateUserResult.Code.EXISTS_GOOD_CREDS);
-				}
-				
-			} else {
-				exists.setResultCode(CreateUserResult.Code.EXISTS_BAD_CREDS);
+			// Already got someone with this email?
+			if( loadedUser != null ) {
+				return existingUserResult(loadedUser, createUserCommand);
 			}
-			
-			return exists ;
+			knownEmails.falsePositive();
 		} 
 		
-		// Do a validation check before attempting a creation.
-		ValidatorFactory factory = Validation.buildDefaultValidatorFactory();
-		Validator validator = factory.getValidator();
-		
 		// The command knows how to build user from received parameters.
 		User newUser = createUserCommand.buildUser();
 		
-		// We only validate on email and password for this operation.
-		HashSet<ConstraintViolation<User>> constraintViolations = new HashSet<ConstraintViolation<User>>();
-		constraintViolations.addAll(validator.validateProperty(newUser, "email"));
-		constraintViolations.addAll(validator.validateProperty(newUser, "password"));
-
 		// Builds the user response if we failed to respect constraints. 
-		if( constraintViolations.size() > 0 ) {
+		List<ValidationResult> results = validate(createUserCommand, newUser);
+		if( results != null ) {
 			CreateUserResult createUserResult = new CreateUserResult();
 			createUserResult.setResultCode(CreateUserResult.Code.VALIDATION_FAILED);
-			
-			List<ValidationResult> results = new ArrayList<ValidationResult>(constraintViolations.size());
-			for( ConstraintViolation<User> current : constraintViolations ) {
-				ValidationResult validationResult = new ValidationResult();
-				// FIXME: need to check how to extract attribute name, JSR docs fuzzy on this subject.
-				validationResult.setFieldName(current.getPropertyPath().toString());
-				validationResult.setMessage(current.getMessage());
-				results.add(validationResult);
-			}
 			createUserResult.setValidationResults(results);
 			
 			return createUserResult ;
 		}
 		
-		// User doesn't exist, validation was good, create the user.
-		txSaveUser(newUser);
+		// User doesn't exist, validation was good, create the user. Hashing runs on its own bounded pool.
+		newUser.setPassword(passwordHashing.hash(createUserCommand.getPassword()));
+		try {
+			txSaveUser(newUser);
+		} catch (ConstraintViolationException e) {
+			// Someone signed up with the same email in the meantime, the unique index caught it.
+			// Or on another server, or before the filter knew about it.
+			logger.info("Concurrent signup detected for the same email.");
+			loadedUser = txFindUser(createUserCommand.getEmail());
+			if( loadedUser == null ) {
+				throw e ;
+			}
+			knownEmails.added(loadedUser.getNormalizedEmail());
+			return existingUserResult(loadedUser, createUserCommand);
+		}
+		knownEmails.added(newUser.getNormalizedEmail());
 
 		// Prepare answer for our clients.
 		CreateUserResult createUserResult = new CreateUserResult();
@@ -277,6 +309,351 @@ public class UserManagement {
 		return createUserResult;
 	}
 	
+	/**
+	 * <p>Do a validation check before attempting a creation. Same rules for single signups and bulk imports.
+	 * @param newUser as built by the command.
+	 * @return null if everything checks out.
+	 */
+	List<ValidationResult> validate( CreateUserCommand createUserCommand, User newUser ) {
+		// The validator is shared, building one is expensive.
+		Validator validator = Validators.getValidator();
+		
+		// We only validate on email and password for this operation.
+		HashSet<ConstraintViolation<?>> constraintViolations = new HashSet<ConstraintViolation<?>>();
+		constraintViolations.addAll(validator.validateProperty(newUser, "email"));
+		constraintViolations.addAll(validator.validateProperty(createUserCommand, "password"));
+		
+		if( constraintViolations.isEmpty() ) {
+			return null ;
+		}
+		
+		List<ValidationResult> results = new ArrayList<ValidationResult>(constraintViolations.size());
+		for( ConstraintViolation<?> current : constraintViolations ) {
+			ValidationResult validationResult = new ValidationResult();
+			// FIXME: need to check how to extract attribute name, JSR docs fuzzy on this subject.
+			validationResult.setFieldName(current.getPropertyPath().toString());
+			validationResult.setMessage(current.getMessage());
+			results.add(validationResult);
+		}
+		return results ;
+	}
+	
+	/**
+	 * <h3>[Use Case] Partner onboarding</h3>
+	 * <p>Creates users in bulk. The body is a JSON array of the same objects createUser takes, the answer a JSON
+	 * array with one result per record, in order: <code>{"index":0,"email":"...","resultCode":"USER_CREATED"}</code>,
+	 * plus validationResults when validation failed.
+	 * <p>Both sides are streamed and records are handled in chunks of hibernate.jdbc.batch_size, so memory use
+	 * doesn't depend on the size of the import. Each chunk is committed on its own: if an import gets cut short,
+	 * sending it again is safe, the users already in come back as EXISTS_SKIPPED.
+	 * <p>Admin only, see {@link AdminAccess}. There's no signup throttling here, and the hashing takes up to half
+	 * of the password pool.
+	 * @see UserImport
+	 */
+	@POST
+	@Path("bulk")
+	@Consumes("application/json")
+	public StreamingOutput importUsers( @HeaderParam(AdminAccess.HEADER) String adminToken, final InputStream in ) {
+		AdminAccess.check(adminToken);
+		
+		return new StreamingOutput() {
+			public void write(OutputStream out) throws IOException {
+				new UserImport(UserManagement.this, passwordHashing, in, out).run();
+			}
+		};
+	}
+	
+	/**
+	 * <h3>[Admin] Export</h3>
+	 * <p>Streams every user, as newline-delimited JSON (?format=ndjson, the default) or CSV (?format=csv). Constant
+	 * memory whatever the user count, see {@link UserExport}.
+	 * <p>Must finish within rhok.pool.leakTimeout (default 300 s), the pool takes the connection back after that
+	 * and the export stops short. Raise it, or set 0, where exports take longer.
+	 * <p>Admin only, see {@link AdminAccess}.
+	 */
+	@GET
+	@Path("export")
+	@Produces({ UserExport.NDJSON, UserExport.CSV })
+	public Response exportUsers( @HeaderParam(AdminAccess.HEADER) String adminToken, 
+			@QueryParam("format") @DefaultValue("ndjson") String format ) {
+		AdminAccess.check(adminToken);
+		
+		final UserExport export = UserExport.forFormat(format);
+		if( export == null ) {
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		}
+		
+		StreamingOutput body = new StreamingOutput() {
+			public void write(OutputStream out) throws IOException {
+				export.run(out);
+			}
+		};
+		return Response.ok(body, export.getMediaType())
+			.header("Content-Disposition", "attachment; filename=" + export.getFileName())
+			.build();
+	}
+	
+	/**
+	 * <p>One user, as listUsers() returns it. Only what admin tooling needs, never the password hash.
+	 */
+	@XmlRootElement
+	static public class UserSummary {
+		
+		private Long id;
+		private String email;
+		private String username;
+		private String firstName;
+		private String lastName;
+		private Boolean confirmed;
+		private Boolean archived;
+		
+		public UserSummary() {
+		}
+		
+		/**
+		 * @param row as selected by txListUsers().
+		 */
+		UserSummary(Object[] row) {
+			id = (Long) row[0];
+			email = (String) row[1];
+			username = (String) row[2];
+			firstName = (String) row[3];
+			lastName = (String) row[4];
+			confirmed = (Boolean) row[5];
+			archived = (Boolean) row[6];
+		}
+		
+		public Long getId() {
+			return id;
+		}
+		
+		public String getEmail() {
+			return email;
+		}
+		
+		public String getUsername() {
+			return username;
+		}
+		
+		public String getFirstName() {
+			return firstName;
+		}
+		
+		public String getLastName() {
+			return lastName;
+		}
+		
+		public Boolean getConfirmed() {
+			return confirmed;
+		}
+		
+		public Boolean getArchived() {
+			return archived;
+		}
+		
+		public void setId(Long id) {
+			this.id = id;
+		}
+		
+		public void setEmail(String email) {
+			this.email = email;
+		}
+		
+		public void setUsername(String username) {
+			this.username = username;
+		}
+		
+		public void setFirstName(String firstName) {
+			this.firstName = firstName;
+		}
+		
+		public void setLastName(String lastName) {
+			this.lastName = lastName;
+		}
+		
+		public void setConfirmed(Boolean confirmed) {
+			this.confirmed = confirmed;
+		}
+		
+		public void setArchived(Boolean archived) {
+			this.archived = archived;
+		}
+		
+	}
+	
+	/**
+	 * <p>A page of listUsers(). Pass next back as the cursor to get the following page, it's null on the last one.
+	 */
+	@XmlRootElement
+	static public class UserPage {
+		
+		private List<UserSummary> users;
+		
+		private String next;
+		
+		public List<UserSummary> getUsers() {
+			return users;
+		}
+		
+		public String getNext() {
+			return next;
+		}
+		
+		public void setUsers(List<UserSummary> users) {
+			this.users = users;
+		}
+		
+		public void setNext(String next) {
+			this.next = next;
+		}
+		
+	}
+	
+	/**
+	 * <h3>[Admin] User listing</h3>
+	 * <p>Lists users in id order, a page at a time, optionally only the ones with the given confirmed/archived 
+	 * flags. Start without a cursor, then pass the previous page's next until it comes back null.
+	 * <p>Keyset pagination: the cursor holds the last id we returned and the next page seeks past it on the primary
+	 * key, so page 10000 costs the same as page 1. No OFFSET, which has the database read and throw away every row 
+	 * before the page. Users signing up (or getting archived) while someone pages through won't shift the pages
+	 * either.
+	 * <p>With filters, the flags are checked on the rows walked from the cursor on. That costs more when few users
+	 * match, but still doesn't depend on how deep we are. Not worth indexing two booleans for.
+	 * <p>The cursor is opaque to clients, don't build or parse one. Admin only, see {@link AdminAccess}.
+	 * @param limit page size, at most MAX_PAGE_SIZE.
+	 */
+	@GET
+	public UserPage listUsers( @HeaderParam(AdminAccess.HEADER) String adminToken, 
+			@QueryParam("cursor") String cursor, 
+			@QueryParam("limit") @DefaultValue("" + DEFAULT_PAGE_SIZE) int limit,
+			@QueryParam("confirmed") Boolean confirmed, 
+			@QueryParam("archived") Boolean archived ) {
+		AdminAccess.check(adminToken);
+		
+		long afterId = cursor == null || cursor.length() == 0 ? 0 : decodeCursor(cursor);
+		if( afterId < 0 || limit < 1 ) {
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		}
+		limit = Math.min(limit, MAX_PAGE_SIZE);
+		
+		// One extra row tells us whether there's a next page, without a count.
+		List<Object[]> rows = txListUsers(afterId, confirmed, archived, limit + 1);
+		
+		UserPage page = new UserPage();
+		List<UserSummary> users = new ArrayList<UserSummary>(Math.min(rows.size(), limit));
+		for( int i = 0; i < rows.size() && i < limit; i++ ) {
+			users.add(new UserSummary(rows.get(i)));
+		}
+		page.setUsers(users);
+		if( rows.size() > limit ) {
+			page.setNext(encodeCursor(users.get(users.size() - 1).getId()));
+		}
+		return page;
+	}
+	
+	/**
+	 * @param afterId only users with a greater id, 0 to start from the beginning.
+	 * @param confirmed null for any.
+	 * @param archived null for any.
+	 * @return id, email, username, firstName, lastName, confirmed, archived; in id order.
+	 */
+	@SuppressWarnings("unchecked")
+	@Transactionnal(readOnly = true)
+	List<Object[]> txListUsers(long afterId, Boolean confirmed, Boolean archived, int maxResults) {
+		StringBuilder hql = new StringBuilder(
+				"select u.id, u.email, u.username, u.firstName, u.lastName, u.confirmed, u.archived " +
+				"from User as u where u.id > :afterId");
+		if( confirmed != null ) {
+			hql.append(" and u.confirmed = :confirmed");
+		}
+		if( archived != null ) {
+			hql.append(" and u.archived = :archived");
+		}
+		hql.append(" order by u.id");
+		
+		Query query = HibernateUtil.getCurrentSession().createQuery(hql.toString())
+			.setLong("afterId", afterId)
+			.setMaxResults(maxResults);
+		if( confirmed != null ) {
+			query.setBoolean("confirmed", confirmed);
+		}
+		if( archived != null ) {
+			query.setBoolean("archived", archived);
+		}
+		return query.list();
+	}
+	
+	/**
+	 * <p>Version byte and the last id of the page, base64url.
+	 */
+	static String encodeCursor(long lastId) {
+		byte[] bytes = ByteBuffer.allocate(9).put(CURSOR_VERSION).putLong(lastId).array();
+		return DatatypeConverter.printBase64Binary(bytes).replace('+', '-').replace('/', '_').replace("=", "");
+	}
+	
+	/**
+	 * @return -1 if it isn't one of our cursors.
+	 */
+	static long decodeCursor(String cursor) {
+		StringBuilder base64 = new StringBuilder(cursor.replace('-', '+').replace('_', '/'));
+		while( base64.length() % 4 != 0 ) {
+			base64.append('=');
+		}
+		byte[] bytes;
+		try {
+			bytes = DatatypeConverter.parseBase64Binary(base64.toString());
+		} catch (IllegalArgumentException e) {
+			return -1;
+		}
+		if( bytes.length != 9 || bytes[0] != CURSOR_VERSION ) {
+			return -1;
+		}
+		return ByteBuffer.wrap(bytes, 1, 8).getLong();
+	}
+	
+	/**
+	 * @param normalizedEmails what we're about to insert.
+	 * @return the ones that are already taken.
+	 */
+	@SuppressWarnings("unchecked")
+	@Transactionnal(readOnly = true)
+	Set<String> txExistingEmails(Collection<String> normalizedEmails) {
+		if( normalizedEmails.isEmpty() ) {
+			return Collections.emptySet();
+		}
+		List<String> found = HibernateUtil.getCurrentSession()
+			.createQuery("select u.normalizedEmail from User as u where u.normalizedEmail in (:emails)")
+			.setParameterList("emails", normalizedEmails)
+			.list();
+		return new HashSet<String>(found);
+	}
+	
+	/**
+	 * <p>Builds the answer for a createUser call on an email we already know.
+	 */
+	private CreateUserResult existingUserResult( User loadedUser, CreateUserCommand createUserCommand ) {
+		// Credentials checks.
+		boolean checksOut = passwordHashing.verify(createUserCommand.getPassword(), loadedUser.getPassword());
+		
+		CreateUserResult exists = new CreateUserResult();
+		// If the credentials are good, return our result.
+		if( checksOut ) {
+			long elapsed = new Date().getTime() - loadedUser.getLastEmailCheck().getTime();
+			
+			double daysElapsed = (elapsed/1000.0) / 60 / 60 / 24 ;
+			if( !loadedUser.getConfirmed() && daysElapsed > UNCONFIRMED_MAX_DAYS ) {
+				exists.setResultCode(CreateUserResult.Code.EXISTS_UNCONFIRMED_EMAIL_DUE);
+			} else {
+				exists.setResultCode(CreateUserResult.Code.EXISTS_GOOD_CREDS);
+			}
+			
+		} else {
+			exists.setResultCode(CreateUserResult.Code.EXISTS_BAD_CREDS);
+		}
+		
+		return exists ;
+	}
+	
 	public static class InviteUserCommand {
 		// TODO: Implement
 	}
@@ -0,0 +1,216 @@
+package com.androidmontreal.rhok.server.session;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.jdbc.Work;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.androidmontreal.rhok.server.hibernate.HibernateUtil;
+import com.androidmontreal.rhok.server.metrics.MetricSource;
+import com.androidmontreal.rhok.server.metrics.MetricsWriter;
+import com.google.inject.Singleton;
+
+/**
+ * <p>Write-behind for UserSession.lastActivity (and expiresAt along with it). Instead of one UPDATE per request,
+ * touches are collected in memory per session and flushed periodically as a single JDBC batch. Only the latest
+ * timestamp of each session gets written.
+ * <p>The in-process view stays exact: {@link SessionManager} checks {@link #pendingActivity(Long)} when it loads
+ * a session from the database. What other processes (and the database itself) see can lag by up to one flush
+ * interval.
+ * <p>Tuning via system properties:
+ * <ul>
+ * <li>rhok.session.flushInterval - milliseconds between flushes (default 5000)
+ * <li>rhok.session.flushBatchSize - max statements per JDBC batch (default 500)
+ * </ul>
+ */
+@Singleton
+public class SessionActivityWriter implements MetricSource {
+
+	static private final Logger logger = LoggerFactory.getLogger(SessionActivityWriter.class);
+
+	// Logged out sessions are left alone, another node may still be touching one it hasn't heard about yet.
+	private static final String UPDATE_LAST_ACTIVITY =
+			"update USER_SESSION set lastActivity = ?, expiresAt = ? where id = ? and lastActivity < ? and loggedOut = ?";
+
+	private final long flushInterval = Long.getLong("rhok.session.flushInterval", 5000L);
+	private final int batchSize = Integer.getInteger("rhok.session.flushBatchSize", 500);
+
+	/**
+	 * <p>Latest activity on a session, and when that makes it expire. Immutable, replaced as a whole.
+	 */
+	private static class Touch {
+		final long activityTime;
+		final long expiresAt;
+
+		Touch(long activityTime, long expiresAt) {
+			this.activityTime = activityTime;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	// Session id -> latest touch not yet written.
+	private final ConcurrentMap<Long, Touch> pending = new ConcurrentHashMap<Long, Touch>();
+
+	private ScheduledExecutorService scheduler;
+
+	public long getFlushInterval() {
+		return flushInterval;
+	}
+
+	/**
+	 * <p>Records activity on a session. Cheap, never touches the database.
+	 * @param timeout the session's timeout, in ms. Needed to write expiresAt.
+	 */
+	public void touch(Long sessionId, long activityTime, long timeout) {
+		Touch touch = new Touch(activityTime, activityTime + timeout);
+		while( true ) {
+			Touch current = pending.putIfAbsent(sessionId, touch);
+			if( current == null || current.activityTime >= activityTime ) {
+				return;
+			}
+			if( pending.replace(sessionId, current, touch) ) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the activity time waiting to be flushed for this session, or 0 if there is none.
+	 */
+	public long pendingActivity(Long sessionId) {
+		Touch found = pending.get(sessionId);
+		return found == null ? 0L : found.activityTime;
+	}
+
+	public int pendingCount() {
+		return pending.size();
+	}
+
+	public void writeMetrics(MetricsWriter out) {
+		out.gauge("rhok_session_activity_pending", null, pendingCount());
+	}
+
+	public synchronized void start() {
+		if( scheduler != null ) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "session-activity-writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					flush();
+				} catch (RuntimeException e) {
+					// Entries that didn't make it are still pending, next run will retry them.
+					logger.error("Failed to flush session activity.", e);
+				}
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+		logger.info("Session activity write-behind started, flushing every {} ms.", flushInterval);
+	}
+
+	/**
+	 * <p>Stops the periodic flush, and writes out whatever is left.
+	 */
+	public synchronized void stop() {
+		if( scheduler == null ) {
+			return;
+		}
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(flushInterval, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		scheduler = null;
+		flush();
+	}
+
+	/**
+	 * <p>Writes all pending touches. Each entry is only removed from the pending map once its batch committed.
+	 * @return number of sessions written.
+	 */
+	public int flush() {
+		if( pending.isEmpty() ) {
+			return 0;
+		}
+
+		int written = 0;
+		long[] sessionIds = new long[batchSize];
+		Touch[] touches = new Touch[batchSize];
+		Iterator<Map.Entry<Long, Touch>> iterator = pending.entrySet().iterator();
+		while( iterator.hasNext() ) {
+			int count = 0;
+			while( count < batchSize && iterator.hasNext() ) {
+				Map.Entry<Long, Touch> entry = iterator.next();
+				sessionIds[count] = entry.getKey();
+				touches[count] = entry.getValue();
+				count++;
+			}
+			writeBatch(sessionIds, touches, count);
+			// A newer touch may have come in while we were writing, leave those for the next flush.
+			for( int i = 0; i < count; i++ ) {
+				pending.remove(sessionIds[i], touches[i]);
+			}
+			written += count;
+		}
+
+		logger.debug("Flushed activity for {} sessions.", written);
+		return written;
+	}
+
+	private void writeBatch(final long[] sessionIds, final Touch[] touches, final int count) {
+		Session session = HibernateUtil.getSessionFactory().openSession();
+		Transaction tx = null;
+		try {
+			tx = session.beginTransaction();
+			session.doWork(new Work() {
+				public void execute(Connection connection) throws SQLException {
+					PreparedStatement statement = connection.prepareStatement(UPDATE_LAST_ACTIVITY);
+					try {
+						for( int i = 0; i < count; i++ ) {
+							Timestamp lastActivity = new Timestamp(touches[i].activityTime);
+							statement.setTimestamp(1, lastActivity);
+							statement.setTimestamp(2, new Timestamp(touches[i].expiresAt));
+							statement.setLong(3, sessionIds[i]);
+							statement.setTimestamp(4, lastActivity);
+							statement.setBoolean(5, false);
+							statement.addBatch();
+						}
+						statement.executeBatch();
+					} finally {
+						statement.close();
+					}
+				}
+			});
+			tx.commit();
+		} catch (RuntimeException e) {
+			if( tx != null ) {
+				tx.rollback();
+			}
+			throw e;
+		} finally {
+			session.close();
+		}
+	}
+
+}
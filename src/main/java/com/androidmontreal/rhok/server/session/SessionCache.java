@@ -0,0 +1,353 @@
+package com.androidmontreal.rhok.server.session;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Bounded, in-process cache of user sessions keyed by session key. Lets us answer "is this session
+ * still valid?" without a round trip to USER_SESSION.
+ * <p>Entries expire on lastActivity + timeout, same rule as the database. Size is bounded per segment,
+ * least recently used entries get evicted first. Segments are locked independently, so contention stays
+ * low even when every authenticated call goes through here.
+ * <p>A logged out session is kept as a tombstone (loggedOut == true) instead of being dropped, this way a
+ * concurrent DB lookup can't put the stale, still active version back in.
+ * <p>Every entry also has a deadline on a {@link TimingWheel}, {@link #expire(long)} drops the ones that ran out
+ * without having to wait for a lookup or for LRU to get to them. Activity doesn't move the deadline right away,
+ * that would put the wheel's lock on every hit. Instead an entry that fires but has been used since is put back
+ * on the wheel with its new deadline.
+ */
+public class SessionCache {
+
+	/**
+	 * <p>What we keep in memory for a session. Deliberately not the UserSession entity, we don't want
+	 * detached hibernate objects (and their lazy User proxy) floating around between threads.
+	 */
+	public static class CachedSession {
+		private final String sessionKey;
+		private final Long sessionId;
+		private final Long userId;
+		private final long timeout;
+		private volatile long lastActivity;
+		private volatile boolean loggedOut;
+		// Last time the database agreed this session wasn't logged out.
+		private volatile long verifiedAt;
+		// Our deadline on the wheel. Guarded by the segment's monitor.
+		private long timerHandle = TimingWheel.NO_HANDLE;
+
+		public CachedSession(String sessionKey, Long sessionId, Long userId, long lastActivity, long timeout, boolean loggedOut) {
+			this.sessionKey = sessionKey;
+			this.sessionId = sessionId;
+			this.userId = userId;
+			this.lastActivity = lastActivity;
+			this.timeout = timeout;
+			this.loggedOut = loggedOut;
+			this.verifiedAt = System.currentTimeMillis();
+		}
+
+		public String getSessionKey() {
+			return sessionKey;
+		}
+
+		public Long getSessionId() {
+			return sessionId;
+		}
+
+		public Long getUserId() {
+			return userId;
+		}
+
+		public long getLastActivity() {
+			return lastActivity;
+		}
+
+		public long getTimeout() {
+			return timeout;
+		}
+
+		public long getExpiresAt() {
+			return lastActivity + timeout;
+		}
+
+		public boolean isLoggedOut() {
+			return loggedOut;
+		}
+
+		public boolean isValid(long now) {
+			return !loggedOut && now < getExpiresAt();
+		}
+
+		public long getVerifiedAt() {
+			return verifiedAt;
+		}
+
+		void touch(long now) {
+			if( now > lastActivity ) {
+				lastActivity = now;
+			}
+		}
+
+		void verified(long now) {
+			if( now > verifiedAt ) {
+				verifiedAt = now;
+			}
+		}
+	}
+
+	/**
+	 * <p>Snapshot of the cache counters.
+	 */
+	public static class Stats {
+		private final long hits;
+		private final long misses;
+		private final long evictions;
+		private final long expirations;
+		private final long invalidations;
+		private final int size;
+
+		Stats(long hits, long misses, long evictions, long expirations, long invalidations, int size) {
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.expirations = expirations;
+			this.invalidations = invalidations;
+			this.size = size;
+		}
+
+		public long getHits() {
+			return hits;
+		}
+
+		public long getMisses() {
+			return misses;
+		}
+
+		public long getEvictions() {
+			return evictions;
+		}
+
+		public long getExpirations() {
+			return expirations;
+		}
+
+		public long getInvalidations() {
+			return invalidations;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public double getHitRatio() {
+			long total = hits + misses;
+			return total == 0 ? 0.0 : (double) hits / total;
+		}
+
+		@Override
+		public String toString() {
+			return "SessionCache[size=" + size + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+					+ ", expirations=" + expirations + ", invalidations=" + invalidations + "]";
+		}
+	}
+
+	/**
+	 * <p>Access-ordered LinkedHashMap gives us LRU for free. Always used while holding the segment's monitor.
+	 */
+	@SuppressWarnings("serial")
+	private class Segment extends LinkedHashMap<String, CachedSession> {
+		private final int capacity;
+
+		Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedSession> eldest) {
+			if( size() > capacity ) {
+				evictions.incrementAndGet();
+				cancelTimer(eldest.getValue());
+				return true;
+			}
+			return false;
+		}
+	}
+
+	private final Segment[] segments;
+	private final int segmentMask;
+	private final TimingWheel<CachedSession> wheel;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * @param maxSize upper bound on the number of cached sessions (spread evenly across segments).
+	 * @param concurrency expected number of concurrently accessing threads, rounded up to a power of two.
+	 */
+	public SessionCache(int maxSize, int concurrency) {
+		this(maxSize, concurrency, 1000L);
+	}
+
+	/**
+	 * @param tickMillis resolution of the expiry wheel.
+	 */
+	public SessionCache(int maxSize, int concurrency, long tickMillis) {
+		int segmentCount = 1;
+		while( segmentCount < concurrency ) {
+			segmentCount <<= 1;
+		}
+		segments = new Segment[segmentCount];
+		segmentMask = segmentCount - 1;
+		int perSegment = Math.max(1, maxSize / segmentCount);
+		for( int i = 0; i < segmentCount; i++ ) {
+			segments[i] = new Segment(perSegment);
+		}
+		wheel = new TimingWheel<CachedSession>(tickMillis, System.currentTimeMillis(), Math.min(maxSize, 1 << 16));
+	}
+
+	private Segment segmentFor(String key) {
+		// Spread the hash a bit, String.hashCode() low bits aren't great.
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return segments[h & segmentMask];
+	}
+
+	/**
+	 * @return the cached session, or null if we don't have it. Expired entries are dropped and reported as misses.
+	 */
+	public CachedSession get(String key, long now) {
+		Segment segment = segmentFor(key);
+		synchronized (segment) {
+			CachedSession found = segment.get(key);
+			if( found == null ) {
+				misses.incrementAndGet();
+				return null;
+			}
+			if( !found.isLoggedOut() && now >= found.getExpiresAt() ) {
+				segment.remove(key);
+				cancelTimer(found);
+				expirations.incrementAndGet();
+				misses.incrementAndGet();
+				return null;
+			}
+			hits.incrementAndGet();
+			return found;
+		}
+	}
+
+	/**
+	 * <p>Adds a session loaded from (or just written to) the database. Won't replace an existing entry,
+	 * the cached one is at least as recent as what we read.
+	 * @return the entry that ends up in the cache.
+	 */
+	public CachedSession putIfAbsent(CachedSession session) {
+		Segment segment = segmentFor(session.getSessionKey());
+		synchronized (segment) {
+			CachedSession existing = segment.get(session.getSessionKey());
+			if( existing != null ) {
+				return existing;
+			}
+			segment.put(session.getSessionKey(), session);
+			scheduleTimer(session);
+			return session;
+		}
+	}
+
+	/**
+	 * <p>Marks the session as logged out. We keep a tombstone so the next check is still served from memory.
+	 */
+	public void invalidate(CachedSession session) {
+		session.loggedOut = true;
+		Segment segment = segmentFor(session.getSessionKey());
+		synchronized (segment) {
+			CachedSession existing = segment.get(session.getSessionKey());
+			if( existing != null ) {
+				existing.loggedOut = true;
+			} else {
+				segment.put(session.getSessionKey(), session);
+				scheduleTimer(session);
+			}
+		}
+		invalidations.incrementAndGet();
+	}
+
+	/**
+	 * <p>Drops an entry altogether.
+	 */
+	public void remove(String key) {
+		Segment segment = segmentFor(key);
+		synchronized (segment) {
+			CachedSession removed = segment.remove(key);
+			if( removed != null ) {
+				cancelTimer(removed);
+			}
+		}
+	}
+
+	/**
+	 * <p>Drops the entries whose deadline went by. Meant to be called about once per tick.
+	 * @return number of entries dropped.
+	 */
+	public int expire(long now) {
+		List<CachedSession> due = new ArrayList<CachedSession>();
+		wheel.advance(now, due);
+
+		int expired = 0;
+		for( CachedSession session : due ) {
+			Segment segment = segmentFor(session.getSessionKey());
+			synchronized (segment) {
+				if( session.timerHandle == TimingWheel.NO_HANDLE ) {
+					// Already removed from the cache.
+					continue;
+				}
+				session.timerHandle = TimingWheel.NO_HANDLE;
+				if( session.isValid(now) ) {
+					// Used since it was scheduled, re-slot on its new deadline.
+					scheduleTimer(session);
+				} else {
+					segment.remove(session.getSessionKey());
+					expirations.incrementAndGet();
+					expired++;
+				}
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * @return number of deadlines on the expiry wheel, should track the cache size.
+	 */
+	public int timerCount() {
+		return wheel.size();
+	}
+
+	// Both called with the segment's monitor held.
+	private void scheduleTimer(CachedSession session) {
+		session.timerHandle = wheel.schedule(session.getExpiresAt(), session);
+	}
+
+	private void cancelTimer(CachedSession session) {
+		wheel.cancel(session.timerHandle);
+		session.timerHandle = TimingWheel.NO_HANDLE;
+	}
+
+	public int size() {
+		int size = 0;
+		for( Segment segment : segments ) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	public Stats getStats() {
+		return new Stats(hits.get(), misses.get(), evictions.get(), expirations.get(), invalidations.get(), size());
+	}
+
+}
@@ -0,0 +1,213 @@
+package com.androidmontreal.rhok.server.session;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.androidmontreal.rhok.server.hibernate.HibernateUtil;
+import com.androidmontreal.rhok.server.hibernate.Transactionnal;
+import com.androidmontreal.rhok.server.metrics.MetricSource;
+import com.androidmontreal.rhok.server.metrics.MetricsWriter;
+import com.androidmontreal.rhok.server.model.UserSession;
+import com.androidmontreal.rhok.server.session.SessionCache.CachedSession;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * <p>Session validity checks. Goes through the {@link SessionCache} first, and only hits USER_SESSION on a miss.
+ * <p>A successful check counts as activity on the session. That is recorded in memory and written back
+ * in batches by the {@link SessionActivityWriter}.
+ * <p>The cache is local to this node, a logout done on another node only reaches us through the database.
+ * So a cached entry is trusted for maxStale at most, after that the next check looks at loggedOut again.
+ * That bounds how long a session logged out elsewhere keeps working here.
+ * <p>Tuning via system properties:
+ * <ul>
+ * <li>rhok.session.cache.maxSize - max number of cached sessions (default 100000)
+ * <li>rhok.session.cache.concurrency - number of cache segments (default 16)
+ * <li>rhok.session.cache.tick - resolution of the expiry wheel in ms, how often expired entries get dropped (default 1000)
+ * <li>rhok.session.cache.maxStale - how long in ms a cached session is trusted before loggedOut is checked again (default 5000)
+ * </ul>
+ */
+@Singleton
+public class SessionManager implements MetricSource {
+
+	static private final Logger logger = LoggerFactory.getLogger(SessionManager.class);
+
+	private final long tick = Long.getLong("rhok.session.cache.tick", 1000L);
+
+	private final long maxStale = Long.getLong("rhok.session.cache.maxStale", 5000L);
+
+	private final SessionCache cache = new SessionCache(
+			Integer.getInteger("rhok.session.cache.maxSize", 100000),
+			Integer.getInteger("rhok.session.cache.concurrency", 16),
+			tick);
+
+	private ScheduledExecutorService scheduler;
+
+	private final AtomicLong rechecks = new AtomicLong();
+	private final AtomicLong recheckDenials = new AtomicLong();
+
+	@Inject
+	SessionActivityWriter activityWriter;
+
+	static CachedSession toCached(UserSession userSession) {
+		return new CachedSession(
+				userSession.getSessionKey(),
+				userSession.getId(),
+				userSession.getUser().getId(),
+				userSession.getLastActivity().getTime(),
+				userSession.getTimeout(),
+				userSession.isLoggedOut());
+	}
+
+	/**
+	 * <p>The hot path. Most authenticated calls end up here.
+	 * @return the valid session for this key, null if there is none (unknown, expired or logged out).
+	 */
+	public CachedSession findValidSession(String sessionKey) {
+		if( sessionKey == null ) {
+			return null;
+		}
+
+		long now = System.currentTimeMillis();
+		CachedSession cached = cache.get(sessionKey, now);
+
+		if( cached == null ) {
+			UserSession found = txFindSession(sessionKey);
+			if( found == null ) {
+				return null;
+			}
+			CachedSession loaded = toCached(found);
+			// The database can be behind by up to a flush interval, what we still hold in memory wins.
+			loaded.touch(activityWriter.pendingActivity(loaded.getSessionId()));
+			cached = cache.putIfAbsent(loaded);
+		}
+
+		if( !cached.isValid(now) ) {
+			return null;
+		}
+
+		if( now - cached.getVerifiedAt() > maxStale && !stillLoggedIn(cached, now) ) {
+			return null;
+		}
+
+		cached.touch(now);
+		activityWriter.touch(cached.getSessionId(), now, cached.getTimeout());
+		return cached;
+	}
+
+	/**
+	 * <p>Checks a cached session against the database, in case it was logged out on another node.
+	 * Several threads can race here on the same entry, they all get the same answer.
+	 */
+	private boolean stillLoggedIn(CachedSession cached, long now) {
+		rechecks.incrementAndGet();
+		Boolean loggedOut = txFindLoggedOut(cached.getSessionId());
+		// A missing row was reaped, which only happens to sessions that are over.
+		if( loggedOut == null || loggedOut.booleanValue() ) {
+			logger.info("Session {} was logged out elsewhere.", cached.getSessionId());
+			recheckDenials.incrementAndGet();
+			cache.invalidate(cached);
+			return false;
+		}
+		cached.verified(now);
+		return true;
+	}
+
+	/**
+	 * <p>Call once a new session has been persisted, so the first checks don't need to go to the database.
+	 */
+	public void sessionCreated(UserSession userSession) {
+		cache.putIfAbsent(toCached(userSession));
+	}
+
+	/**
+	 * <p>Call once a session has been flagged as logged out in the database.
+	 */
+	public void sessionLoggedOut(UserSession userSession) {
+		cache.invalidate(toCached(userSession));
+	}
+
+	/**
+	 * <p>Starts dropping expired sessions from the cache as their deadline goes by.
+	 */
+	public synchronized void start() {
+		if( scheduler != null ) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "session-expiry");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				try {
+					int expired = cache.expire(System.currentTimeMillis());
+					if( expired > 0 ) {
+						logger.debug("Expired {} cached sessions.", expired);
+					}
+				} catch (RuntimeException e) {
+					logger.error("Failed to expire cached sessions.", e);
+				}
+			}
+		}, tick, tick, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if( scheduler == null ) {
+			return;
+		}
+		scheduler.shutdownNow();
+		scheduler = null;
+	}
+
+	public SessionCache.Stats getCacheStats() {
+		return cache.getStats();
+	}
+
+	public void writeMetrics(MetricsWriter out) {
+		SessionCache.Stats stats = cache.getStats();
+		out.counter("rhok_session_cache_hits_total", null, stats.getHits());
+		out.counter("rhok_session_cache_misses_total", null, stats.getMisses());
+		out.counter("rhok_session_cache_evictions_total", null, stats.getEvictions());
+		out.counter("rhok_session_cache_expirations_total", null, stats.getExpirations());
+		out.counter("rhok_session_cache_invalidations_total", null, stats.getInvalidations());
+		out.counter("rhok_session_cache_rechecks_total", null, rechecks.get());
+		out.counter("rhok_session_cache_recheck_denials_total", null, recheckDenials.get());
+		out.gauge("rhok_session_cache_size", null, stats.getSize());
+		out.gauge("rhok_session_cache_timers", null, cache.timerCount());
+	}
+
+	@Transactionnal(readOnly = true)
+	UserSession txFindSession(String sessionKey) {
+		UserSession found = (UserSession) HibernateUtil.getCurrentSession()
+			// No join fetch, the user comes out of the second-level cache.
+			.createQuery("from UserSession as us where us.sessionKey = :sessionKey")
+			.setString("sessionKey", sessionKey)
+			.uniqueResult();
+
+		if( found == null ) {
+			logger.info("Unknown session key.");
+		}
+
+		return found;
+	}
+
+	@Transactionnal(readOnly = true)
+	Boolean txFindLoggedOut(Long sessionId) {
+		// A projection, so this goes to the database and not to the second-level cache.
+		return (Boolean) HibernateUtil.getCurrentSession()
+			.createQuery("select us.loggedOut from UserSession as us where us.id = :id")
+			.setLong("id", sessionId)
+			.uniqueResult();
+	}
+
+}
@@ -0,0 +1,215 @@
+package com.androidmontreal.rhok.server.session;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.androidmontreal.rhok.server.hibernate.HibernateUtil;
+import com.androidmontreal.rhok.server.metrics.MetricSource;
+import com.androidmontreal.rhok.server.metrics.MetricsWriter;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * <p>Deletes dead USER_SESSION rows. Every login adds a row and nothing ever removed them, so the table (and the
+ * active session lookups on it) only got bigger.
+ * <p>A run walks the table in id order, one small batch at a time (keyset pagination, no OFFSET), and deletes
+ * the sessions that are logged out or expired (on the stored expiresAt) for longer than the grace period. Each
+ * batch is its own short transaction, with a pause in between, so we never hold locks for long or starve the
+ * request path.
+ * <p>Sessions with activity still waiting in the {@link SessionActivityWriter} are left alone, the database
+ * doesn't know about it yet.
+ * <p>Tuning via system properties:
+ * <ul>
+ * <li>rhok.session.reaper.interval - milliseconds between runs, 0 disables the reaper (default 600000)
+ * <li>rhok.session.reaper.batchSize - rows looked at per batch (default 1000)
+ * <li>rhok.session.reaper.pause - milliseconds to sleep between batches (default 50)
+ * <li>rhok.session.reaper.grace - how long past expiry before a session gets deleted, in ms (default 60000)
+ * </ul>
+ */
+@Singleton
+public class SessionReaper implements MetricSource {
+
+	static private final Logger logger = LoggerFactory.getLogger(SessionReaper.class);
+
+	private final long interval = Long.getLong("rhok.session.reaper.interval", 600000L);
+	private final int batchSize = Integer.getInteger("rhok.session.reaper.batchSize", 1000);
+	private final long pause = Long.getLong("rhok.session.reaper.pause", 50L);
+	private final long grace = Long.getLong("rhok.session.reaper.grace", 60000L);
+
+	@Inject
+	SessionActivityWriter activityWriter;
+
+	private final AtomicLong runs = new AtomicLong();
+	private final AtomicLong scannedTotal = new AtomicLong();
+	private final AtomicLong deletedTotal = new AtomicLong();
+	private volatile long lastDeleted;
+	private volatile long lastDuration;
+
+	private ScheduledExecutorService scheduler;
+
+	public synchronized void start() {
+		if( scheduler != null || interval <= 0 ) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "session-reaper");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					reap();
+				} catch (RuntimeException e) {
+					// Whatever we didn't get to this time will still be there next run.
+					logger.error("Session reaper run failed.", e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+		logger.info("Session reaper started, running every {} ms.", interval);
+	}
+
+	/**
+	 * <p>Stops future runs. A run in progress gets interrupted during its pause between batches.
+	 */
+	public synchronized void stop() {
+		if( scheduler == null ) {
+			return;
+		}
+		scheduler.shutdownNow();
+		scheduler = null;
+	}
+
+	/**
+	 * <p>One pass over the whole table.
+	 * @return number of sessions deleted.
+	 */
+	public long reap() {
+		long start = System.currentTimeMillis();
+		long scanned = 0;
+		long deleted = 0;
+		long lastId = 0;
+
+		while( true ) {
+			long cutoff = System.currentTimeMillis() - grace;
+			List<Object[]> rows = txNextBatch(lastId, cutoff);
+			if( rows.isEmpty() ) {
+				break;
+			}
+			scanned += rows.size();
+			lastId = (Long) rows.get(rows.size() - 1)[0];
+
+			List<Long> dead = deadSessions(rows, cutoff);
+			if( !dead.isEmpty() ) {
+				deleted += txDelete(dead);
+			}
+
+			if( rows.size() < batchSize ) {
+				break;
+			}
+			if( pause > 0 ) {
+				try {
+					Thread.sleep(pause);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+
+		runs.incrementAndGet();
+		scannedTotal.addAndGet(scanned);
+		deletedTotal.addAndGet(deleted);
+		lastDeleted = deleted;
+		lastDuration = System.currentTimeMillis() - start;
+		logger.info("Session reaper deleted {} of {} sessions in {} ms.", new Object[] { deleted, scanned, lastDuration });
+		return deleted;
+	}
+
+	/**
+	 * <p>The query already picked the dead ones as far as the database knows, this drops those with newer
+	 * activity still in memory.
+	 * @param rows id, timeout, loggedOut
+	 * @param cutoff sessions that expired before this time are dead.
+	 */
+	private List<Long> deadSessions(List<Object[]> rows, long cutoff) {
+		List<Long> dead = new ArrayList<Long>();
+		for( Object[] row : rows ) {
+			Long id = (Long) row[0];
+			boolean loggedOut = (Boolean) row[2];
+			if( !loggedOut && activityWriter.pendingActivity(id) + (Long) row[1] >= cutoff ) {
+				continue;
+			}
+			dead.add(id);
+		}
+		return dead;
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Object[]> txNextBatch(long lastId, long cutoff) {
+		Session session = HibernateUtil.getSessionFactory().openSession();
+		Transaction tx = null;
+		try {
+			tx = session.beginTransaction();
+			List<Object[]> rows = session.createQuery(
+					"select us.id, us.timeout, us.loggedOut from UserSession as us " +
+					"where us.id > :lastId and (us.loggedOut = true or us.expiresAt < :cutoff) order by us.id")
+				.setLong("lastId", lastId)
+				.setTimestamp("cutoff", new Date(cutoff))
+				.setMaxResults(batchSize)
+				.list();
+			tx.commit();
+			return rows;
+		} catch (RuntimeException e) {
+			if( tx != null ) {
+				tx.rollback();
+			}
+			throw e;
+		} finally {
+			session.close();
+		}
+	}
+
+	private int txDelete(List<Long> ids) {
+		Session session = HibernateUtil.getSessionFactory().openSession();
+		Transaction tx = null;
+		try {
+			tx = session.beginTransaction();
+			int deleted = session.createQuery("delete from UserSession where id in (:ids)")
+				.setParameterList("ids", ids)
+				.executeUpdate();
+			tx.commit();
+			return deleted;
+		} catch (RuntimeException e) {
+			if( tx != null ) {
+				tx.rollback();
+			}
+			throw e;
+		} finally {
+			session.close();
+		}
+	}
+
+	public void writeMetrics(MetricsWriter out) {
+		out.counter("rhok_session_reaper_runs_total", null, runs.get());
+		out.counter("rhok_session_reaper_scanned_total", null, scannedTotal.get());
+		out.counter("rhok_session_reaper_deleted_total", null, deletedTotal.get());
+		out.gauge("rhok_session_reaper_last_deleted", null, lastDeleted);
+		out.gauge("rhok_session_reaper_last_duration_seconds", null, lastDuration / 1000.0);
+	}
+
+}
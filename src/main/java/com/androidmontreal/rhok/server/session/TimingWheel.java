@@ -0,0 +1,303 @@
+package com.androidmontreal.rhok.server.session;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>Hierarchical timing wheel (Varghese &amp; Lauck). Tracks deadlines for a very large number of items with O(1)
+ * schedule, reschedule and cancel, and an advance that only visits the slots that have something in them.
+ * <p>{@link #LEVELS} wheels of {@link #SLOTS} slots each. Level 0 slots are one tick wide, level 1 slots 64
+ * ticks, and so on, which covers 64^4 ticks (about 194 days with one second ticks). Deadlines further out are
+ * parked on the top level and re-slotted when their slot comes around. As the clock moves, the slot of
+ * a higher level that comes due gets cascaded down into the finer levels.
+ * <p>No object per timer: entries live in parallel primitive arrays, linked into circular lists per slot. The
+ * first {@code LEVELS * SLOTS} entries are the list heads. Freed entries are recycled, a handle carries a
+ * generation count so a stale handle can't cancel whoever reused the entry.
+ * <p>Each level also keeps a bitmap of its non-empty slots, one long since there are 64 of them. That's what lets
+ * {@link #advance(long, List)} jump over idle ticks, after a long pause say, instead of stepping through each.
+ * <p>Thread safe, everything is guarded by the wheel's monitor. {@link #advance(long, List)} hands expired
+ * items back to the caller, so callbacks never run while we hold the lock.
+ * <p>Never fires early: an item fires on the first tick boundary at or after its deadline.
+ */
+public class TimingWheel<T> {
+
+	public static final int SLOT_BITS = 6;
+	public static final int SLOTS = 1 << SLOT_BITS;
+	public static final int LEVELS = 4;
+
+	/**
+	 * <p>Never a valid handle.
+	 */
+	public static final long NO_HANDLE = -1L;
+
+	private static final int SLOT_MASK = SLOTS - 1;
+	private static final long NEVER = Long.MAX_VALUE;
+	private static final int HEADS = SLOTS * LEVELS;
+	private static final int FREE = -1;
+
+	private final long tickMillis;
+
+	// Last tick we've processed.
+	private long currentTick;
+
+	private int[] next;
+	private int[] prev;
+	private int[] generation;
+	private long[] deadlineTick;
+	private Object[] items;
+
+	// Bit n of occupied[level] is set when that level's slot n has entries.
+	private final long[] occupied = new long[LEVELS];
+
+	// Recycled entries, chained through next[].
+	private int freeList = FREE;
+	// Entries [0, used) have been handed out at least once.
+	private int used = HEADS;
+	private int size;
+
+	/**
+	 * @param tickMillis resolution of the wheel.
+	 * @param now current time in ms, the wheel's clock starts here.
+	 * @param initialCapacity expected number of scheduled items, the arrays grow as needed.
+	 */
+	public TimingWheel(long tickMillis, long now, int initialCapacity) {
+		if( tickMillis <= 0 ) {
+			throw new IllegalArgumentException("tickMillis must be positive: " + tickMillis);
+		}
+		this.tickMillis = tickMillis;
+		this.currentTick = now / tickMillis;
+
+		int capacity = HEADS + Math.max(16, initialCapacity);
+		next = new int[capacity];
+		prev = new int[capacity];
+		generation = new int[capacity];
+		deadlineTick = new long[capacity];
+		items = new Object[capacity];
+		for( int head = 0; head < HEADS; head++ ) {
+			next[head] = head;
+			prev[head] = head;
+		}
+	}
+
+	public long getTickMillis() {
+		return tickMillis;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return a handle for {@link #reschedule(long, long)} and {@link #cancel(long)}.
+	 */
+	public synchronized long schedule(long deadline, T item) {
+		int entry = allocate();
+		items[entry] = item;
+		deadlineTick[entry] = toTick(deadline);
+		link(entry, currentTick + 1);
+		size++;
+		return ((long) generation[entry] << 32) | entry;
+	}
+
+	/**
+	 * @return false if the handle is no longer scheduled (fired or cancelled).
+	 */
+	public synchronized boolean reschedule(long handle, long deadline) {
+		int entry = entryFor(handle);
+		if( entry == FREE ) {
+			return false;
+		}
+		unlink(entry);
+		deadlineTick[entry] = toTick(deadline);
+		link(entry, currentTick + 1);
+		return true;
+	}
+
+	/**
+	 * @return false if the handle is no longer scheduled (fired or cancelled).
+	 */
+	public synchronized boolean cancel(long handle) {
+		int entry = entryFor(handle);
+		if( entry == FREE ) {
+			return false;
+		}
+		unlink(entry);
+		release(entry);
+		size--;
+		return true;
+	}
+
+	/**
+	 * <p>Moves the clock up to now, collecting everything that came due. Their handles are dead once returned.
+	 * <p>Only stops on ticks that have work: a level 0 slot with entries, or a higher level slot to cascade. The
+	 * cost is in the slots visited and entries moved, not in how much time went by.
+	 * @return number of items added to expired.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized int advance(long now, List<T> expired) {
+		long target = now / tickMillis;
+		int fired = 0;
+		while( currentTick < target ) {
+			long tick = nextBusyTick();
+			if( tick > target ) {
+				// Nothing until after now, every tick in between would have been a no-op.
+				currentTick = target;
+				break;
+			}
+			currentTick = tick;
+
+			// How many levels roll over on this tick? Cascade those, coarsest first.
+			int level = 0;
+			while( level < LEVELS - 1 && (tick & ((1L << (SLOT_BITS * (level + 1))) - 1)) == 0 ) {
+				level++;
+			}
+			for( ; level > 0; level-- ) {
+				cascade(head(level, (int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK), tick);
+			}
+
+			int head = head(0, (int) tick & SLOT_MASK);
+			int entry = next[head];
+			while( entry != head ) {
+				int following = next[entry];
+				unlink(entry);
+				if( deadlineTick[entry] <= tick ) {
+					expired.add((T) items[entry]);
+					release(entry);
+					size--;
+					fired++;
+				} else {
+					link(entry, tick + 1);
+				}
+				entry = following;
+			}
+		}
+		return fired;
+	}
+
+	/**
+	 * <p>The first tick after the current one where advance() has something to do, from the occupancy bitmaps.
+	 * An occupied slot on level l is always ahead of the clock on that level, except for the top level's parking
+	 * slot (see link()), which comes around with the next wrap.
+	 * @return {@link #NEVER} if the wheel is empty.
+	 */
+	private long nextBusyTick() {
+		long next = NEVER;
+		for( int level = 0; level < LEVELS; level++ ) {
+			if( occupied[level] == 0 ) {
+				continue;
+			}
+			int shift = SLOT_BITS * level;
+			int current = (int) (currentTick >>> shift) & SLOT_MASK;
+			// Start of this level's current rotation.
+			long base = currentTick & ~((1L << (shift + SLOT_BITS)) - 1);
+			long ahead = current == SLOT_MASK ? 0 : occupied[level] & (-1L << (current + 1));
+			long tick;
+			if( ahead != 0 ) {
+				tick = base + ((long) Long.numberOfTrailingZeros(ahead) << shift);
+			} else if( level == LEVELS - 1 ) {
+				tick = base + (1L << (shift + SLOT_BITS));
+			} else {
+				continue;
+			}
+			next = Math.min(next, tick);
+		}
+		return next;
+	}
+
+	private long toTick(long deadline) {
+		// Round up, firing late by up to a tick is fine, firing early is not.
+		long tick = deadline / tickMillis;
+		return tick * tickMillis < deadline ? tick + 1 : tick;
+	}
+
+	private static int head(int level, int slot) {
+		return level * SLOTS + slot;
+	}
+
+	private void cascade(int head, long tick) {
+		int entry = next[head];
+		while( entry != head ) {
+			int following = next[entry];
+			unlink(entry);
+			link(entry, tick);
+			entry = following;
+		}
+	}
+
+	/**
+	 * <p>Slots an entry on the level where its deadline and the clock first differ.
+	 * @param earliest tick we can still fire on.
+	 */
+	private void link(int entry, long earliest) {
+		long tick = Math.max(deadlineTick[entry], earliest);
+		int level = 0;
+		while( level < LEVELS && ((tick ^ currentTick) >>> (SLOT_BITS * (level + 1))) != 0 ) {
+			level++;
+		}
+		int slot;
+		if( level == LEVELS ) {
+			// Beyond the top wheel. Park it on the last top slot to come around before the wheel wraps (or the one
+			// cascaded on the wrap itself if we're already there), it gets re-slotted from there.
+			level = LEVELS - 1;
+			slot = ((int) (currentTick >>> (SLOT_BITS * level)) & SLOT_MASK) == SLOT_MASK ? 0 : SLOT_MASK;
+		} else {
+			slot = (int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK;
+		}
+
+		int head = head(level, slot);
+		int last = prev[head];
+		next[last] = entry;
+		prev[entry] = last;
+		next[entry] = head;
+		prev[head] = entry;
+		occupied[level] |= 1L << slot;
+	}
+
+	private void unlink(int entry) {
+		int before = prev[entry];
+		int after = next[entry];
+		next[before] = after;
+		prev[after] = before;
+		// Only a head is left in the list: that slot is empty now.
+		if( before == after && before < HEADS ) {
+			occupied[before / SLOTS] &= ~(1L << (before & SLOT_MASK));
+		}
+	}
+
+	private int entryFor(long handle) {
+		int entry = (int) handle;
+		if( entry < HEADS || entry >= used ) {
+			return FREE;
+		}
+		if( generation[entry] != (int) (handle >>> 32) || prev[entry] == FREE ) {
+			return FREE;
+		}
+		return entry;
+	}
+
+	private int allocate() {
+		if( freeList != FREE ) {
+			int entry = freeList;
+			freeList = next[entry];
+			return entry;
+		}
+		if( used == next.length ) {
+			int capacity = next.length + (next.length >> 1);
+			next = Arrays.copyOf(next, capacity);
+			prev = Arrays.copyOf(prev, capacity);
+			generation = Arrays.copyOf(generation, capacity);
+			deadlineTick = Arrays.copyOf(deadlineTick, capacity);
+			items = Arrays.copyOf(items, capacity);
+		}
+		return used++;
+	}
+
+	private void release(int entry) {
+		items[entry] = null;
+		generation[entry]++;
+		prev[entry] = FREE;
+		next[entry] = freeList;
+		freeList = entry;
+	}
+
+}
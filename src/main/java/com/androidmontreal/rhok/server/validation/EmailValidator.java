@@ -0,0 +1,92 @@
+package com.androidmontreal.rhok.server.validation;
+
+import javax.validation.ConstraintValidator;
+import javax.validation.ConstraintValidatorContext;
+
+/**
+ * <p>Linear-time equivalent of
+ * <code>^[_A-Za-z0-9-]+(\.[_A-Za-z0-9-]+)*@[A-Za-z0-9]+(\.[A-Za-z0-9]+)*(\.[A-Za-z]{2,})$</code>
+ * <p>In plain words: a local part made of non-empty, dot separated labels of letters, digits, '_' and '-'.
+ * Then a single '@', then at least two non-empty, dot separated labels of letters and digits, the last one being
+ * letters only and at least 2 long.
+ */
+public class EmailValidator implements ConstraintValidator<ValidEmail, String> {
+
+	public void initialize(ValidEmail constraintAnnotation) {
+		// Nothing to configure.
+	}
+
+	public boolean isValid(String value, ConstraintValidatorContext context) {
+		return value == null || isValidEmail(value);
+	}
+
+	public static boolean isValidEmail(CharSequence email) {
+		int length = email.length();
+		int i = 0;
+
+		// Local part, up to the '@'.
+		int labelLength = 0;
+		for( ; i < length; i++ ) {
+			char c = email.charAt(i);
+			if( c == '@' ) {
+				break;
+			}
+			if( c == '.' ) {
+				if( labelLength == 0 ) {
+					return false;
+				}
+				labelLength = 0;
+			} else if( isLetterOrDigit(c) || c == '_' || c == '-' ) {
+				labelLength++;
+			} else {
+				return false;
+			}
+		}
+		// Missing '@', or local part empty or ending on a '.'.
+		if( i == length || labelLength == 0 ) {
+			return false;
+		}
+
+		// Domain part.
+		int labels = 0;
+		boolean lettersOnly = true;
+		labelLength = 0;
+		for( i++; i < length; i++ ) {
+			char c = email.charAt(i);
+			if( c == '.' ) {
+				if( labelLength == 0 ) {
+					return false;
+				}
+				labels++;
+				labelLength = 0;
+				lettersOnly = true;
+			} else if( isLetter(c) ) {
+				labelLength++;
+			} else if( isDigit(c) ) {
+				labelLength++;
+				lettersOnly = false;
+			} else {
+				return false;
+			}
+		}
+		if( labelLength == 0 ) {
+			return false;
+		}
+		labels++;
+
+		return labels >= 2 && lettersOnly && labelLength >= 2;
+	}
+
+	static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	static boolean isLetterOrDigit(char c) {
+		return isLetter(c) || isDigit(c);
+	}
+
+}
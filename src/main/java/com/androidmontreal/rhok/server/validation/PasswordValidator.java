@@ -0,0 +1,57 @@
+package com.androidmontreal.rhok.server.validation;
+
+import javax.validation.ConstraintValidator;
+import javax.validation.ConstraintValidatorContext;
+
+/**
+ * <p>Linear-time equivalent of <code>((?=.*\d)(?=.*[a-z])(?=.*[A-Z]).{6,20})</code>, matched against the whole value.
+ * <p>Like the regexp's '.', we count code points (not chars) and refuse line terminators.
+ */
+public class PasswordValidator implements ConstraintValidator<ValidPassword, String> {
+
+	private static final int MIN_LENGTH = 6;
+	private static final int MAX_LENGTH = 20;
+
+	public void initialize(ValidPassword constraintAnnotation) {
+		// Nothing to configure.
+	}
+
+	public boolean isValid(String value, ConstraintValidatorContext context) {
+		return value == null || isValidPassword(value);
+	}
+
+	public static boolean isValidPassword(String password) {
+		// Cheap bound first, a code point is at most 2 chars.
+		if( password.length() < MIN_LENGTH || password.length() > MAX_LENGTH * 2 ) {
+			return false;
+		}
+
+		boolean digit = false;
+		boolean lower = false;
+		boolean upper = false;
+		int codePoints = 0;
+
+		for( int i = 0; i < password.length(); ) {
+			int c = password.codePointAt(i);
+			i += Character.charCount(c);
+			if( ++codePoints > MAX_LENGTH || isLineTerminator(c) ) {
+				return false;
+			}
+			if( c >= '0' && c <= '9' ) {
+				digit = true;
+			} else if( c >= 'a' && c <= 'z' ) {
+				lower = true;
+			} else if( c >= 'A' && c <= 'Z' ) {
+				upper = true;
+			}
+		}
+
+		return codePoints >= MIN_LENGTH && digit && lower && upper;
+	}
+
+	// Same set java.util.regex's '.' refuses.
+	private static boolean isLineTerminator(int c) {
+		return c == '\n' || c == '\r' || c == 0x85 || c == 0x2028 || c == 0x2029;
+	}
+
+}
@@ -0,0 +1,35 @@
+package com.androidmontreal.rhok.server.validation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import javax.validation.Constraint;
+import javax.validation.Payload;
+
+/**
+ * <p>Email address check, same rules as the @Pattern we used to have on User.email but checked in a single
+ * pass. The regexp had nested quantifiers and could backtrack for a very long time on hostile input.
+ * <p>null is considered valid, combine with @NotNull.
+ * @see EmailValidator
+ */
+@Documented
+@Constraint(validatedBy = EmailValidator.class)
+@Target({ ElementType.FIELD, ElementType.METHOD })
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ValidEmail {
+
+	/**
+	 * <p>Only used to build the error message, so clients keep getting the exact same one. Matching is hand-written.
+	 */
+	String regexp() default "^[_A-Za-z0-9-]+(\\.[_A-Za-z0-9-]+)*@[A-Za-z0-9]+(\\.[A-Za-z0-9]+)*(\\.[A-Za-z]{2,})$";
+
+	String message() default "{javax.validation.constraints.Pattern.message}";
+
+	Class<?>[] groups() default {};
+
+	Class<? extends Payload>[] payload() default {};
+
+}
@@ -0,0 +1,35 @@
+package com.androidmontreal.rhok.server.validation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import javax.validation.Constraint;
+import javax.validation.Payload;
+
+/**
+ * <p>Password strength check: 6 to 20 characters, with at least one digit, one lowercase and one uppercase letter.
+ * Same rules as the lookahead @Pattern we used to have on User.password, checked in a single pass.
+ * <p>null is considered valid, combine with @NotNull.
+ * @see PasswordValidator
+ */
+@Documented
+@Constraint(validatedBy = PasswordValidator.class)
+@Target({ ElementType.FIELD, ElementType.METHOD })
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ValidPassword {
+
+	/**
+	 * <p>Only used to build the error message, so clients keep getting the exact same one. Matching is hand-written.
+	 */
+	String regexp() default "((?=.*\\d)(?=.*[a-z])(?=.*[A-Z]).{6,20})";
+
+	String message() default "{javax.validation.constraints.Pattern.message}";
+
+	Class<?>[] groups() default {};
+
+	Class<? extends Payload>[] payload() default {};
+
+}
@@ -0,0 +1,21 @@
+package com.androidmontreal.rhok.server.validation;
+
+import javax.validation.Validation;
+import javax.validation.Validator;
+import javax.validation.ValidatorFactory;
+
+/**
+ * <p>Holds our single JSR 303 Validator. Building a ValidatorFactory means classpath scanning, XML parsing, etc,
+ * so we only want to do it once. Validator instances are thread-safe and meant to be shared.
+ */
+public class Validators {
+
+	private static final ValidatorFactory factory = Validation.buildDefaultValidatorFactory();
+
+	private static final Validator validator = factory.getValidator();
+
+	public static Validator getValidator() {
+		return validator;
+	}
+
+}
@@ -0,0 +1,94 @@
+package com.androidmontreal.rhok.server.web;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>A concurrency limit that finds its own level, AIMD style like TCP congestion control. Every completed request
+ * reports its latency: while latencies stay under the target and the limit is actually in use, it creeps up by
+ * about one per limit's worth of requests. A request over the target cuts it by a fixed ratio, at most once per
+ * target latency, so one slow burst doesn't get counted a hundred times.
+ * <p>The idea is that past some concurrency the database (or the hashing pool) only queues, latency goes up and
+ * throughput doesn't. We find that point and refuse what's above it instead of letting everyone wait.
+ * <p>Admission is a CAS on the in-flight count. Samples take the monitor, it's a few arithmetic operations.
+ */
+public class AdaptiveLimit {
+
+	private static final double BACKOFF = 0.9;
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final long targetLatency;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private volatile int limit;
+	// Fractional part of the limit, guarded by this.
+	private double exactLimit;
+	private long lastDecrease;
+
+	/**
+	 * @param targetLatency ns, requests slower than this mean we're past the knee.
+	 */
+	public AdaptiveLimit(int initialLimit, int minLimit, int maxLimit, long targetLatency) {
+		if( minLimit < 1 || maxLimit < minLimit ) {
+			throw new IllegalArgumentException("Bad limit bounds: " + minLimit + "-" + maxLimit);
+		}
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.targetLatency = targetLatency;
+		this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+		this.exactLimit = limit;
+		this.lastDecrease = System.nanoTime() - targetLatency;
+	}
+
+	/**
+	 * @return false if we're at the limit. Otherwise the caller must call {@link #release(long, long)} when done.
+	 */
+	public boolean tryAcquire() {
+		while( true ) {
+			int current = inFlight.get();
+			if( current >= limit ) {
+				return false;
+			}
+			if( inFlight.compareAndSet(current, current + 1) ) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @param start System.nanoTime() when the request was admitted.
+	 */
+	public void release(long start, long now) {
+		int current = inFlight.getAndDecrement();
+		sample(now - start, current, now);
+	}
+
+	/**
+	 * <p>A latency seen without going through {@link #tryAcquire()}, a request turned away after waiting that long.
+	 */
+	public void sample(long latency, long now) {
+		sample(latency, inFlight.get(), now);
+	}
+
+	private synchronized void sample(long latency, int inFlightAtCompletion, long now) {
+		if( latency > targetLatency ) {
+			if( now - lastDecrease >= targetLatency ) {
+				exactLimit = Math.max(minLimit, exactLimit * BACKOFF);
+				lastDecrease = now;
+			}
+		} else if( inFlightAtCompletion * 2 >= limit ) {
+			// Only grow when we're using a good part of what we have, otherwise low traffic would push it to max.
+			exactLimit = Math.min(maxLimit, exactLimit + 1.0 / exactLimit);
+		}
+		limit = (int) exactLimit;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+}
@@ -0,0 +1,276 @@
+package com.androidmontreal.rhok.server.web;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.androidmontreal.rhok.server.metrics.MetricSource;
+import com.androidmontreal.rhok.server.metrics.MetricsWriter;
+
+/**
+ * <p>Load shedding in front of everything else. When we're overloaded a request gets a 503 with a Retry-After right
+ * away, before any servlet, Guice or Hibernate work, instead of joining an ever longer line.
+ * <p>First, how long the request already waited for a thread. Jetty's job queue is unbounded (see
+ * {@link RequestQueue}), and without async the threads cap what's in flight, so the limits below alone would never
+ * trip: the excess just waits in the queue. A request that waited longer than maxQueueTime is turned away, CoDel
+ * style, its client has likely given up or will soon. The wait also counts in the latency the adaptive limit sees.
+ * <p>Then two kinds of limits, both on requests in flight:
+ * <ul>
+ * <li>Per path prefix, fixed. Keeps one expensive endpoint (logins and their hashing, bulk import/export) from
+ * taking every thread.
+ * <li>Overall, adaptive, see {@link AdaptiveLimit}. Paths listed as excluded don't count against it, long
+ * streaming calls would only teach it wrong latencies.
+ * </ul>
+ * <p>A request that goes async (see {@link AsyncDispatchFilter}) holds its permits until it completes.
+ * <p>Configuration via system properties:
+ * <ul>
+ * <li>rhok.admission.paths - per path limits, "/authenticate=64,/users/bulk=2" (that's the default, plus
+ * /users/export=2). Empty for none.
+ * <li>rhok.admission.adaptive - false to turn the overall limit off (default true)
+ * <li>rhok.admission.initialLimit, minLimit, maxLimit - overall limit bounds (defaults 100, 8, 1000)
+ * <li>rhok.admission.targetLatency - ms, slower requests bring the overall limit down (default 500)
+ * <li>rhok.admission.adaptiveExclude - path prefixes left out of the overall limit (default
+ * "/users/bulk,/users/export")
+ * <li>rhok.admission.maxQueueTime - ms a request can wait for a thread before it's turned away (default 1000, 0
+ * for no limit)
+ * <li>rhok.admission.retryAfter - seconds, sent with the 503s (default 1)
+ * </ul>
+ */
+public class AdmissionControlHandler extends HandlerWrapper implements MetricSource {
+
+	static private final Logger logger = LoggerFactory.getLogger(AdmissionControlHandler.class);
+
+	/**
+	 * <p>A fixed limit on one path prefix.
+	 */
+	private static class PathLimit {
+		final String prefix;
+		final int permits;
+		final Semaphore semaphore;
+		final AtomicLong rejected = new AtomicLong();
+
+		PathLimit(String prefix, int permits) {
+			this.prefix = prefix;
+			this.permits = permits;
+			this.semaphore = new Semaphore(permits);
+		}
+	}
+
+	private final List<PathLimit> pathLimits = new ArrayList<PathLimit>();
+	private final List<String> adaptiveExcluded = new ArrayList<String>();
+	private final AdaptiveLimit adaptiveLimit;
+	private final String retryAfter = String.valueOf(Integer.getInteger("rhok.admission.retryAfter", 1));
+	private final long maxQueueTime = Long.getLong("rhok.admission.maxQueueTime", 1000L);
+
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong rejectedAdaptive = new AtomicLong();
+	private final AtomicLong rejectedQueueTime = new AtomicLong();
+
+	public AdmissionControlHandler() {
+		for( String entry : split(System.getProperty("rhok.admission.paths", "/authenticate=64,/users/bulk=2,/users/export=2")) ) {
+			int equals = entry.indexOf('=');
+			if( equals < 0 ) {
+				throw new IllegalArgumentException("Bad rhok.admission.paths entry, expected /path=limit: " + entry);
+			}
+			pathLimits.add(new PathLimit(entry.substring(0, equals).trim(), Integer.parseInt(entry.substring(equals + 1).trim())));
+		}
+		adaptiveExcluded.addAll(split(System.getProperty("rhok.admission.adaptiveExclude", "/users/bulk,/users/export")));
+
+		if( Boolean.parseBoolean(System.getProperty("rhok.admission.adaptive", "true")) ) {
+			adaptiveLimit = new AdaptiveLimit(
+					Integer.getInteger("rhok.admission.initialLimit", 100),
+					Integer.getInteger("rhok.admission.minLimit", 8),
+					Integer.getInteger("rhok.admission.maxLimit", 1000),
+					Long.getLong("rhok.admission.targetLatency", 500L) * 1000 * 1000);
+		} else {
+			adaptiveLimit = null;
+		}
+	}
+
+	private static List<String> split(String list) {
+		List<String> entries = new ArrayList<String>();
+		for( String entry : list.split(",") ) {
+			if( entry.trim().length() > 0 ) {
+				entries.add(entry.trim());
+			}
+		}
+		return entries;
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		super.doStart();
+		logger.info("Admission control on, {} path limits, adaptive limit {}.", pathLimits.size(),
+				adaptiveLimit == null ? "off" : String.valueOf(adaptiveLimit.getLimit()));
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+			throws IOException, ServletException {
+		// Async dispatches were admitted the first time around.
+		if( request.getDispatcherType() != DispatcherType.REQUEST ) {
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		long waited = waited(baseRequest, now);
+		if( maxQueueTime > 0 && waited > maxQueueTime ) {
+			rejectedQueueTime.incrementAndGet();
+			if( isAdaptive(target) ) {
+				// A sample like any other, so the limit comes down while the line is long.
+				adaptiveLimit.sample(TimeUnit.MILLISECONDS.toNanos(waited), System.nanoTime());
+			}
+			reject(baseRequest, response);
+			return;
+		}
+
+		PathLimit pathLimit = pathLimitFor(target);
+		if( pathLimit != null && !pathLimit.semaphore.tryAcquire() ) {
+			pathLimit.rejected.incrementAndGet();
+			reject(baseRequest, response);
+			return;
+		}
+		AdaptiveLimit limit = isAdaptive(target) ? adaptiveLimit : null;
+		if( limit != null && !limit.tryAcquire() ) {
+			if( pathLimit != null ) {
+				pathLimit.semaphore.release();
+			}
+			rejectedAdaptive.incrementAndGet();
+			reject(baseRequest, response);
+			return;
+		}
+		admitted.incrementAndGet();
+
+		// Latency as the client sees it, time in the queue included.
+		Permits permits = new Permits(pathLimit, limit, System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(waited));
+		boolean async = false;
+		try {
+			super.handle(target, baseRequest, request, response);
+			async = request.isAsyncStarted();
+			if( async ) {
+				request.getAsyncContext().addListener(permits);
+			}
+		} finally {
+			if( !async ) {
+				permits.release();
+			}
+		}
+	}
+
+	/**
+	 * <p>ms since the request came in. Jetty's timestamp is taken by the selector on its latest pass, which can be
+	 * well after the job was queued if the selector kept looping meanwhile, so the earlier of the two.
+	 */
+	private static long waited(Request baseRequest, long now) {
+		long since = baseRequest.getTimeStamp();
+		long queuedAt = RequestQueue.takeQueuedAt();
+		if( since <= 0 || (queuedAt > 0 && queuedAt < since) ) {
+			since = queuedAt;
+		}
+		return since > 0 ? Math.max(0, now - since) : 0;
+	}
+
+	private PathLimit pathLimitFor(String target) {
+		for( PathLimit pathLimit : pathLimits ) {
+			if( target.startsWith(pathLimit.prefix) ) {
+				return pathLimit;
+			}
+		}
+		return null;
+	}
+
+	private boolean isAdaptive(String target) {
+		if( adaptiveLimit == null ) {
+			return false;
+		}
+		for( String prefix : adaptiveExcluded ) {
+			if( target.startsWith(prefix) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void reject(Request baseRequest, HttpServletResponse response) {
+		baseRequest.setHandled(true);
+		response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		response.setHeader("Retry-After", retryAfter);
+		response.setContentLength(0);
+	}
+
+	/**
+	 * <p>What an admitted request holds, given back exactly once: when handle() returns, or when the async request
+	 * completes.
+	 */
+	private static class Permits implements AsyncListener {
+		private final PathLimit pathLimit;
+		private final AdaptiveLimit adaptiveLimit;
+		private final long start;
+		private boolean released;
+
+		Permits(PathLimit pathLimit, AdaptiveLimit adaptiveLimit, long start) {
+			this.pathLimit = pathLimit;
+			this.adaptiveLimit = adaptiveLimit;
+			this.start = start;
+		}
+
+		synchronized void release() {
+			if( released ) {
+				return;
+			}
+			released = true;
+			if( pathLimit != null ) {
+				pathLimit.semaphore.release();
+			}
+			if( adaptiveLimit != null ) {
+				adaptiveLimit.release(start, System.nanoTime());
+			}
+		}
+
+		public void onComplete(AsyncEvent event) throws IOException {
+			release();
+		}
+
+		public void onTimeout(AsyncEvent event) throws IOException {
+		}
+
+		public void onError(AsyncEvent event) throws IOException {
+			release();
+		}
+
+		public void onStartAsync(AsyncEvent event) throws IOException {
+		}
+	}
+
+	public void writeMetrics(MetricsWriter out) {
+		out.counter("rhok_admission_admitted_total", null, admitted.get());
+		out.counter("rhok_admission_rejected_total", "limit=\"adaptive\"", rejectedAdaptive.get());
+		out.counter("rhok_admission_queue_timeouts_total", null, rejectedQueueTime.get());
+		for( PathLimit pathLimit : pathLimits ) {
+			String labels = "limit=\"path\",path=\"" + pathLimit.prefix + "\"";
+			out.counter("rhok_admission_rejected_total", labels, pathLimit.rejected.get());
+			out.gauge("rhok_admission_in_flight", labels, pathLimit.permits - pathLimit.semaphore.availablePermits());
+		}
+		if( adaptiveLimit != null ) {
+			out.gauge("rhok_admission_in_flight", "limit=\"adaptive\"", adaptiveLimit.getInFlight());
+			out.gauge("rhok_admission_limit", "limit=\"adaptive\"", adaptiveLimit.getLimit());
+		}
+	}
+
+}
@@ -0,0 +1,245 @@
+package com.androidmontreal.rhok.server.web;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.androidmontreal.rhok.server.metrics.MetricSource;
+import com.androidmontreal.rhok.server.metrics.MetricsWriter;
+
+/**
+ * <p>Async execution mode. Suspends the HTTP request (servlet 3.0 async) and runs the rest of the filter chain,
+ * i.e. Guice/Jersey and the Hibernate work behind it, on a dedicated DB worker pool. The Jetty thread goes straight
+ * back to serving connections, so the number of open connections is no longer tied to the number of threads.
+ * <p>The worker pool should be sized to what the database can take. When its queue is full we answer 503 right away.
+ * <p>Timeouts are ours, not the container's. A request still waiting for a worker when its time is up gets a 503
+ * and never runs. One that's already running is interrupted, and its worker answers (503 if nothing was written
+ * yet) and completes it: only the worker may write to a response it has started on. Jetty recycles requests and
+ * responses per connection, a late write from a timed out worker could otherwise end up in the next request's
+ * response. Interrupts only stop the work where it waits on something interruptible, like a pool checkout, so a
+ * timed out request can still hold its worker (and its admission permits) until the database answers.
+ * <p>Streaming endpoints run for as long as the client takes to read or send, only their time waiting for a worker
+ * counts. See rhok.async.untimedPaths.
+ * <p>Must be the first filter in the chain, and its holder has to be flagged async-supported.
+ */
+public class AsyncDispatchFilter implements Filter, MetricSource {
+
+	static private final Logger logger = LoggerFactory.getLogger(AsyncDispatchFilter.class);
+
+	private static final String RETRY_AFTER_SECONDS = "1";
+
+	// Where an exchange is at. Only moves forward, see Exchange.
+	private static final int QUEUED = 0;
+	private static final int RUNNING = 1;
+	private static final int DONE = 2;
+
+	private final ThreadPoolExecutor executor;
+	private final ScheduledExecutorService deadlines;
+	private final long timeout;
+	private final Set<String> untimedPaths;
+
+	private final AtomicLong timedOutQueued = new AtomicLong();
+	private final AtomicLong timedOutRunning = new AtomicLong();
+
+	/**
+	 * @param threads DB worker threads.
+	 * @param queueSize max requests waiting for a worker.
+	 * @param timeout milliseconds before an unanswered request gets a 503, 0 for none.
+	 * @param untimedPaths paths (without the context path) whose requests aren't timed once running.
+	 */
+	public AsyncDispatchFilter(int threads, int queueSize, long timeout, Collection<String> untimedPaths) {
+		this.timeout = timeout;
+		this.untimedPaths = new HashSet<String>(untimedPaths);
+
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "db-worker-" + threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				},
+				new ThreadPoolExecutor.AbortPolicy());
+		// Cancelled deadlines stay queued until due, Java 6 has no setRemoveOnCancelPolicy. A few dozen bytes each.
+		deadlines = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "async-timeouts");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public void init(FilterConfig filterConfig) throws ServletException {
+		logger.info("Async request handling enabled, {} DB worker threads.", executor.getCorePoolSize());
+	}
+
+	public void doFilter(ServletRequest request, ServletResponse response, final FilterChain chain)
+			throws IOException, ServletException {
+		// Already on our way back through an async dispatch, nothing left to offload.
+		if( request.getDispatcherType() != DispatcherType.REQUEST ) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		AsyncContext asyncContext = request.startAsync(request, response);
+		// Never expires on the container's side, see the class comment.
+		asyncContext.setTimeout(0);
+
+		final Exchange exchange = new Exchange(asyncContext, chain, !isUntimed((HttpServletRequest) request));
+		try {
+			exchange.future = executor.submit(exchange);
+		} catch (RejectedExecutionException e) {
+			logger.warn("DB worker queue full, rejecting request.");
+			sendError(asyncContext.getResponse(), HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			complete(asyncContext);
+			return;
+		}
+		if( timeout > 0 ) {
+			exchange.deadline = deadlines.schedule(new Runnable() {
+				public void run() {
+					exchange.timedOut();
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private boolean isUntimed(HttpServletRequest request) {
+		return untimedPaths.contains(request.getRequestURI().substring(request.getContextPath().length()));
+	}
+
+	public void destroy() {
+		deadlines.shutdownNow();
+		executor.shutdown();
+	}
+
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	public void writeMetrics(MetricsWriter out) {
+		out.gauge("rhok_async_queue_depth", null, getQueueDepth());
+		out.gauge("rhok_async_active_workers", null, getActiveCount());
+		out.counter("rhok_async_timed_out_total", "stage=\"queued\"", timedOutQueued.get());
+		out.counter("rhok_async_timed_out_total", "stage=\"running\"", timedOutRunning.get());
+	}
+
+	private static void sendError(ServletResponse response, int status) {
+		HttpServletResponse httpResponse = (HttpServletResponse) response;
+		if( httpResponse.isCommitted() ) {
+			return;
+		}
+		if( status == HttpServletResponse.SC_SERVICE_UNAVAILABLE ) {
+			httpResponse.setHeader("Retry-After", RETRY_AFTER_SECONDS);
+		}
+		try {
+			httpResponse.sendError(status);
+		} catch (IOException e) {
+			logger.debug("Client went away before we could answer.", e);
+		}
+	}
+
+	private static void complete(AsyncContext asyncContext) {
+		try {
+			asyncContext.complete();
+		} catch (IllegalStateException e) {
+			// The client went away and the container finished it already.
+			logger.debug("Async request was already completed.", e);
+		}
+	}
+
+	/**
+	 * <p>One suspended request. Whoever moves it out of QUEUED owns the response: the worker if it gets there
+	 * first, the timeout otherwise.
+	 */
+	private class Exchange implements Runnable {
+
+		final AsyncContext asyncContext;
+		final FilterChain chain;
+		final boolean timed;
+		final AtomicInteger state = new AtomicInteger(QUEUED);
+		volatile boolean timedOut;
+		volatile Future<?> future;
+		volatile ScheduledFuture<?> deadline;
+
+		Exchange(AsyncContext asyncContext, FilterChain chain, boolean timed) {
+			this.asyncContext = asyncContext;
+			this.chain = chain;
+			this.timed = timed;
+		}
+
+		public void run() {
+			if( !state.compareAndSet(QUEUED, RUNNING) ) {
+				// Timed out in the queue, already answered.
+				return;
+			}
+			try {
+				chain.doFilter(asyncContext.getRequest(), asyncContext.getResponse());
+			} catch (Exception e) {
+				if( timedOut ) {
+					logger.warn("Request timed out on a DB worker.", e);
+					sendError(asyncContext.getResponse(), HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				} else {
+					logger.error("Request failed on DB worker.", e);
+					sendError(asyncContext.getResponse(), HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+				}
+			} finally {
+				state.set(DONE);
+				ScheduledFuture<?> pending = deadline;
+				if( pending != null ) {
+					pending.cancel(false);
+				}
+				complete(asyncContext);
+			}
+		}
+
+		void timedOut() {
+			if( state.compareAndSet(QUEUED, DONE) ) {
+				timedOutQueued.incrementAndGet();
+				logger.warn("Async request timed out waiting on a DB worker.");
+				future.cancel(false);
+				sendError(asyncContext.getResponse(), HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				complete(asyncContext);
+			} else if( timed && state.get() == RUNNING ) {
+				// The worker answers when it's out, we only tell it to hurry.
+				timedOutRunning.incrementAndGet();
+				timedOut = true;
+				future.cancel(true);
+			}
+		}
+
+	}
+
+}
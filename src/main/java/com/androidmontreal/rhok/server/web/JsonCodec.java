@@ -0,0 +1,63 @@
+package com.androidmontreal.rhok.server.web;
+
+import java.io.IOException;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response.Status;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * <p>Hand written JSON for one type, for {@link StreamingJsonProvider}. Writing is required, reading is optional:
+ * override {@link #canRead()} and {@link #read(JsonParser)} for request bodies.
+ * <p>Field names should be built once, as SerializedString constants, so their quoted UTF-8 bytes are reused.
+ */
+public abstract class JsonCodec<T> {
+
+	private final Class<T> type;
+
+	protected JsonCodec(Class<T> type) {
+		this.type = type;
+	}
+
+	public Class<T> getType() {
+		return type;
+	}
+
+	/**
+	 * <p>Writes value, never null. Fields in name order, see {@link MappedJsonWriter}.
+	 */
+	public abstract void write(T value, MappedJsonWriter out) throws IOException;
+
+	public boolean canRead() {
+		return false;
+	}
+
+	/**
+	 * <p>Reads one value, the parser is on its first token. Codecs that can read override this along with canRead().
+	 * @throws WebApplicationException 415 when it can't, we don't take this type in.
+	 */
+	public T read(JsonParser parser) throws IOException {
+		throw new WebApplicationException(Status.UNSUPPORTED_MEDIA_TYPE);
+	}
+
+	/**
+	 * <p>A field's value as text, the way jersey-json reads it: numbers and booleans as written, null as an empty
+	 * string. Objects and arrays are skipped and come back null: what jersey-json makes of those depends on the
+	 * fields that follow, and with some it never returns.
+	 * @param parser on the field's value.
+	 */
+	protected static String readText(JsonParser parser) throws IOException {
+		JsonToken token = parser.getCurrentToken();
+		if( token == JsonToken.VALUE_NULL ) {
+			return "";
+		}
+		if( token.isScalarValue() ) {
+			return parser.getText();
+		}
+		parser.skipChildren();
+		return null;
+	}
+
+}
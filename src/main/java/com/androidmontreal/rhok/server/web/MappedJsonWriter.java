@@ -0,0 +1,109 @@
+package com.androidmontreal.rhok.server.web;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.io.SerializedString;
+
+/**
+ * <p>Writes JSON the way jersey-json's default "mapped" notation does, so clients can't tell the
+ * {@link StreamingJsonProvider} from the JAXB mapping it replaces:
+ * <ul>
+ * <li>every value is a string, numbers and booleans included ("id":"5"), enums by name
+ * <li>null fields are left out, and so are empty lists
+ * <li>a list of one is written as that one element, without an array around it
+ * <li>an object with no fields at all is written as null, a null list element as {"@nil":"true"}
+ * </ul>
+ * <p>Fields come out in the order they're written. JAXB sorts them by name, so codecs have to as well.
+ * <p>String escaping is Jackson's, which is also what jersey-json ends up using. One exception: in a string with
+ * more than one control character written as a backslash-u escape, the Jackson 1.9 path jersey-json takes repeats
+ * earlier escapes and mangles the value. We write it as it is.
+ */
+public class MappedJsonWriter {
+
+	private static final SerializedString NIL = new SerializedString("@nil");
+
+	private final JsonGenerator generator;
+
+	// The current object's { isn't written until its first field, it could turn out empty.
+	private boolean pendingStart;
+
+	public MappedJsonWriter(JsonGenerator generator) {
+		this.generator = generator;
+	}
+
+	public void startObject() {
+		pendingStart = true;
+	}
+
+	/**
+	 * <p>Starts an object as the value of a field of the current one.
+	 */
+	public void startObject(SerializedString name) throws IOException {
+		fieldName(name);
+		pendingStart = true;
+	}
+
+	public void endObject() throws IOException {
+		if( pendingStart ) {
+			pendingStart = false;
+			generator.writeNull();
+		} else {
+			generator.writeEndObject();
+		}
+	}
+
+	public void field(SerializedString name, String value) throws IOException {
+		if( value != null ) {
+			fieldName(name);
+			generator.writeString(value);
+		}
+	}
+
+	/**
+	 * <p>Numbers, booleans and enums, as strings.
+	 */
+	public void field(SerializedString name, Object value) throws IOException {
+		if( value != null ) {
+			fieldName(name);
+			generator.writeString(value instanceof Enum ? ((Enum<?>) value).name() : value.toString());
+		}
+	}
+
+	public <T> void list(SerializedString name, List<T> values, JsonCodec<T> codec) throws IOException {
+		if( values == null || values.isEmpty() ) {
+			return;
+		}
+		fieldName(name);
+		if( values.size() == 1 ) {
+			element(values.get(0), codec);
+			return;
+		}
+		generator.writeStartArray();
+		for( T value : values ) {
+			element(value, codec);
+		}
+		generator.writeEndArray();
+	}
+
+	private <T> void element(T value, JsonCodec<T> codec) throws IOException {
+		if( value == null ) {
+			generator.writeStartObject();
+			generator.writeFieldName(NIL);
+			generator.writeString("true");
+			generator.writeEndObject();
+		} else {
+			codec.write(value, this);
+		}
+	}
+
+	private void fieldName(SerializedString name) throws IOException {
+		if( pendingStart ) {
+			pendingStart = false;
+			generator.writeStartObject();
+		}
+		generator.writeFieldName(name);
+	}
+
+}
@@ -0,0 +1,107 @@
+package com.androidmontreal.rhok.server.web;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+import com.androidmontreal.rhok.server.metrics.MetricSource;
+import com.androidmontreal.rhok.server.metrics.MetricsWriter;
+
+/**
+ * <p>Holds traffic off while the server boots. Jetty takes connections before hibernate is done (see the Launcher),
+ * until then every request gets a quick 503 with a Retry-After instead of a NullPointerException or a long wait.
+ * <p>Answers GET /ready itself: 200 once {@link #ready()} was called, 503 before that, and for good if the boot
+ * failed. That's what the load balancer should poll during a rolling deploy.
+ * <p>Configuration via system properties:
+ * <ul>
+ * <li>rhok.ready.bypass - path prefixes served even before we're ready, they must not touch the database
+ * (default "/metrics")
+ * <li>rhok.ready.retryAfter - seconds, sent with the 503s (default 1)
+ * </ul>
+ */
+public class ReadinessHandler extends HandlerWrapper implements MetricSource {
+
+	public static final String PATH = "/ready";
+
+	private enum State { STARTING, READY, FAILED }
+
+	private volatile State state = State.STARTING;
+
+	private final List<String> bypass = new ArrayList<String>();
+	private final String retryAfter = String.valueOf(Integer.getInteger("rhok.ready.retryAfter", 1));
+	private final AtomicLong rejected = new AtomicLong();
+
+	public ReadinessHandler() {
+		for( String prefix : System.getProperty("rhok.ready.bypass", "/metrics").split(",") ) {
+			if( prefix.trim().length() > 0 ) {
+				bypass.add(prefix.trim());
+			}
+		}
+	}
+
+	/**
+	 * <p>Lets requests through from now on.
+	 */
+	public void ready() {
+		state = State.READY;
+	}
+
+	/**
+	 * <p>The boot failed, /ready stays down.
+	 */
+	public void failed() {
+		state = State.FAILED;
+	}
+
+	public boolean isReady() {
+		return state == State.READY;
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+			throws IOException, ServletException {
+		State current = state;
+		if( PATH.equals(target) ) {
+			baseRequest.setHandled(true);
+			response.setContentType("text/plain");
+			if( current != State.READY ) {
+				response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				response.setHeader("Retry-After", retryAfter);
+			}
+			response.getWriter().println(current.name().toLowerCase());
+			return;
+		}
+		if( current == State.READY || isBypassed(target) ) {
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+		rejected.incrementAndGet();
+		baseRequest.setHandled(true);
+		response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		response.setHeader("Retry-After", retryAfter);
+		response.setContentLength(0);
+	}
+
+	private boolean isBypassed(String target) {
+		for( String prefix : bypass ) {
+			if( target.startsWith(prefix) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void writeMetrics(MetricsWriter out) {
+		out.gauge("rhok_ready", null, isReady() ? 1 : 0);
+		out.counter("rhok_ready_rejected_total", null, rejected.get());
+	}
+
+}
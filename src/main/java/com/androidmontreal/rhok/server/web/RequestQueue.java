@@ -0,0 +1,94 @@
+package com.androidmontreal.rhok.server.web;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.androidmontreal.rhok.server.metrics.MetricSource;
+import com.androidmontreal.rhok.server.metrics.MetricsWriter;
+
+/**
+ * <p>Job queue for Jetty's QueuedThreadPool, with its depth on /metrics. Once all threads are busy, connections
+ * with work to do wait here.
+ * <p>Not the place to shed load. Jetty 8 doesn't drop a connection it can't queue, it logs "Dispatched Failed!"
+ * and tries again on the next select: a busy loop and a log flood, no fast failure. Overload is for
+ * {@link AdmissionControlHandler} (503 and Retry-After) and the connector's low resources settings. So no bound by
+ * default, and a bound if any should stay well above the thread count, as a last resort. Hitting it gets counted.
+ * <p>What we do instead is remember when each job was queued, see {@link #takeQueuedAt()}. The admission control
+ * turns away requests that waited here too long, which is how the line gets its bound: in time, not in length.
+ */
+public class RequestQueue extends LinkedBlockingQueue<Runnable> implements MetricSource {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final ThreadLocal<Long> QUEUED_AT = new ThreadLocal<Long>();
+
+	/**
+	 * <p>A job with the time it was queued, made available to whatever it runs on the pool thread.
+	 */
+	private static class QueuedJob implements Runnable {
+		private final Runnable job;
+		private final long queuedAt = System.currentTimeMillis();
+
+		QueuedJob(Runnable job) {
+			this.job = job;
+		}
+
+		public void run() {
+			QUEUED_AT.set(queuedAt);
+			try {
+				job.run();
+			} finally {
+				QUEUED_AT.remove();
+			}
+		}
+
+		@Override
+		public String toString() {
+			// Thread pool dumps show the job, not us.
+			return job.toString();
+		}
+	}
+
+	private final boolean bounded;
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @param capacity 0 or less for none.
+	 */
+	public RequestQueue(int capacity) {
+		super(capacity > 0 ? capacity : Integer.MAX_VALUE);
+		this.bounded = capacity > 0;
+	}
+
+	@Override
+	public boolean offer(Runnable job) {
+		if( super.offer(new QueuedJob(job)) ) {
+			return true;
+		}
+		rejected.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * <p>When the job running on this thread was queued. Only the first caller gets it: a connection's job can go on
+	 * to serve more requests, and those didn't wait in the queue.
+	 * @return ms since the epoch, 0 if already taken or if this isn't a pool thread.
+	 */
+	public static long takeQueuedAt() {
+		Long queuedAt = QUEUED_AT.get();
+		if( queuedAt == null ) {
+			return 0;
+		}
+		QUEUED_AT.remove();
+		return queuedAt.longValue();
+	}
+
+	public void writeMetrics(MetricsWriter out) {
+		out.gauge("rhok_jetty_queue_depth", null, size());
+		if( bounded ) {
+			out.gauge("rhok_jetty_queue_capacity", null, size() + remainingCapacity());
+		}
+		out.counter("rhok_jetty_queue_rejected_total", null, rejected.get());
+	}
+
+}
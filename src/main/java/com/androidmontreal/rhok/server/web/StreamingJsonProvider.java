@@ -0,0 +1,192 @@
+package com.androidmontreal.rhok.server.web;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+
+import com.androidmontreal.rhok.server.metrics.MetricSource;
+import com.androidmontreal.rhok.server.metrics.MetricsWriter;
+import com.google.inject.Inject;
+import com.google.inject.OutOfScopeException;
+
+/**
+ * <p>JSON for our small, frequent request and response bodies, straight from Jackson's streaming API with a
+ * hand written {@link JsonCodec} per type. jersey-json goes through JAXB and a mapping layer for the same result,
+ * and shows up in per request CPU. Types without a codec aren't ours to handle and still go to jersey-json.
+ * <p>Output is byte for byte what jersey-json writes, see {@link MappedJsonWriter}. Reading is as lenient as it
+ * was: unknown fields are ignored, numbers and booleans are taken as text.
+ * <p>Responses are serialized to a buffer first. Small ones then go out with a Content-Length, larger ones are
+ * gzipped when the client says it accepts it.
+ * <p>Configuration via system properties:
+ * <ul>
+ * <li>rhok.json.gzip - false to never compress (default true)
+ * <li>rhok.json.gzipMinSize - bytes, smaller responses aren't worth compressing (default 1024, under a packet)
+ * </ul>
+ */
+@Provider
+@Produces(MediaType.APPLICATION_JSON)
+@Consumes(MediaType.APPLICATION_JSON)
+public class StreamingJsonProvider implements MessageBodyReader<Object>, MessageBodyWriter<Object>, MetricSource {
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	private static final String UTF_8 = "UTF-8";
+
+	private final Map<Class<?>, JsonCodec<?>> codecs = new ConcurrentHashMap<Class<?>, JsonCodec<?>>();
+
+	private final boolean gzip = Boolean.parseBoolean(System.getProperty("rhok.json.gzip", "true"));
+	private final int gzipMinSize = Integer.getInteger("rhok.json.gzipMinSize", 1024);
+
+	// The request being answered, for its Accept-Encoding.
+	@Inject
+	com.google.inject.Provider<HttpServletRequest> requestProvider;
+
+	private final AtomicLong read = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong gzipped = new AtomicLong();
+
+	public <T> void register(JsonCodec<T> codec) {
+		codecs.put(codec.getType(), codec);
+	}
+
+	/**
+	 * <p>What the provider sends for value, before any compression.
+	 */
+	public static <T> byte[] toJson(JsonCodec<T> codec, T value, String charset) throws IOException {
+		// Through a Writer like jersey-json, Jackson's own UTF-8 output would escape characters outside the BMP. Not
+		// an OutputStreamWriter though, that's an 8k buffer per call for a hundred bytes of JSON.
+		StringWriter buffer = new StringWriter(256);
+		JsonGenerator generator = jsonFactory.createJsonGenerator(buffer);
+		codec.write(value, new MappedJsonWriter(generator));
+		generator.close();
+		return buffer.toString().getBytes(charset);
+	}
+
+	public static <T> T fromJson(JsonCodec<T> codec, InputStream in) throws IOException {
+		JsonParser parser = jsonFactory.createJsonParser(in);
+		try {
+			parser.nextToken();
+			return codec.read(parser);
+		} finally {
+			parser.close();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private JsonCodec<Object> codecFor(Class<?> type) {
+		return (JsonCodec<Object>) codecs.get(type);
+	}
+
+	public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		JsonCodec<Object> codec = codecFor(type);
+		return codec != null && codec.canRead();
+	}
+
+	public Object readFrom(Class<Object> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+			MultivaluedMap<String, String> httpHeaders, InputStream entityStream) throws IOException {
+		read.incrementAndGet();
+		try {
+			// Jackson works out UTF-8/16/32 on its own, same as jersey-json.
+			return fromJson(codecFor(type), entityStream);
+		} catch (JsonParseException e) {
+			throw new WebApplicationException(e, Status.BAD_REQUEST);
+		}
+	}
+
+	public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return codecFor(type) != null;
+	}
+
+	public long getSize(Object value, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		// Not known until written, writeTo sets the Content-Length itself.
+		return -1;
+	}
+
+	public void writeTo(Object value, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+			MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException {
+		String charset = mediaType.getParameters().get("charset");
+		byte[] json = toJson(codecFor(type), value, charset == null ? UTF_8 : charset);
+		written.incrementAndGet();
+
+		if( gzip && json.length >= gzipMinSize ) {
+			httpHeaders.add("Vary", "Accept-Encoding");
+			if( acceptsGzip() ) {
+				gzipped.incrementAndGet();
+				httpHeaders.putSingle("Content-Encoding", "gzip");
+				GZIPOutputStream out = new GZIPOutputStream(entityStream);
+				out.write(json);
+				// Not close(), the container owns the stream.
+				out.finish();
+				return;
+			}
+		}
+		httpHeaders.putSingle("Content-Length", Integer.valueOf(json.length));
+		entityStream.write(json);
+	}
+
+	private boolean acceptsGzip() {
+		String acceptEncoding;
+		try {
+			acceptEncoding = requestProvider.get().getHeader("Accept-Encoding");
+		} catch (OutOfScopeException e) {
+			// Not over HTTP.
+			return false;
+		}
+		if( acceptEncoding == null ) {
+			return false;
+		}
+		// "gzip", "gzip;q=0.8, deflate"... q=0 means no.
+		for( String coding : acceptEncoding.split(",") ) {
+			String[] parts = coding.split(";");
+			String name = parts[0].trim();
+			if( "gzip".equalsIgnoreCase(name) || "*".equals(name) ) {
+				for( int i = 1; i < parts.length; i++ ) {
+					String parameter = parts[i].trim();
+					if( parameter.startsWith("q=") && isZero(parameter.substring(2)) ) {
+						return false;
+					}
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isZero(String quality) {
+		try {
+			return Double.parseDouble(quality.trim()) == 0;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	public void writeMetrics(MetricsWriter out) {
+		out.counter("rhok_json_read_total", null, read.get());
+		out.counter("rhok_json_written_total", null, written.get());
+		out.counter("rhok_json_gzipped_total", null, gzipped.get());
+	}
+
+}
@@ -0,0 +1,18 @@
+-- Adds USER.normalizedEmail (trimmed, lower-cased email) with a unique index.
+-- txFindUser() now does an exact match on this column instead of a LIKE on email.
+-- Written for MySQL, run once against databases created before this change.
+
+ALTER TABLE `USER` ADD COLUMN normalizedEmail VARCHAR(255) NULL;
+
+UPDATE `USER` SET normalizedEmail = LOWER(TRIM(email));
+
+-- The unique index below will refuse to build if this returns rows.
+-- These accounts need to be merged or archived by hand first.
+SELECT normalizedEmail, COUNT(*) AS accounts
+  FROM `USER`
+ GROUP BY normalizedEmail
+HAVING COUNT(*) > 1;
+
+ALTER TABLE `USER` MODIFY normalizedEmail VARCHAR(255) NOT NULL;
+
+CREATE UNIQUE INDEX UK_USER_NORMALIZED_EMAIL ON `USER` (normalizedEmail);
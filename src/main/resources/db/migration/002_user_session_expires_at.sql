@@ -0,0 +1,12 @@
+-- Adds USER_SESSION.expiresAt (lastActivity + timeout, timeout in ms) and the index the active session lookup uses.
+-- txLogoutExistingSession() used to filter on (lastActivity + timeout), which no index can serve.
+-- Written for MySQL, run once against databases created before this change.
+
+ALTER TABLE USER_SESSION ADD COLUMN expiresAt DATETIME NULL;
+
+-- MySQL's DATETIME has no milliseconds, the timeout is rounded down to the second.
+UPDATE USER_SESSION SET expiresAt = lastActivity + INTERVAL (timeout DIV 1000) SECOND;
+
+ALTER TABLE USER_SESSION MODIFY expiresAt DATETIME NOT NULL;
+
+CREATE INDEX IDX_USER_SESSION_ACTIVE ON USER_SESSION (user_id, loggedOut, expiresAt);
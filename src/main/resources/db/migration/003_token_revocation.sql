@@ -0,0 +1,11 @@
+-- Adds TOKEN_REVOCATION: session tokens (rhok.session.mode=token) issued to the user before revokedBefore, in ms,
+-- are revoked. Every node polls it for recent changes, so a logout on one is honoured by all, see SessionTokens.
+-- Written for MySQL, run once against databases created before this change.
+
+CREATE TABLE TOKEN_REVOCATION (
+    user_id BIGINT NOT NULL,
+    revokedBefore BIGINT NOT NULL,
+    PRIMARY KEY (user_id)
+);
+
+CREATE INDEX IDX_TOKEN_REVOCATION_BEFORE ON TOKEN_REVOCATION (revokedBefore);
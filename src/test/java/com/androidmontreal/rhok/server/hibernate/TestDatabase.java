@@ -0,0 +1,23 @@
+package com.androidmontreal.rhok.server.hibernate;
+
+import org.hibernate.SessionFactory;
+
+/**
+ * <p>One SessionFactory on in-memory H2 for the whole test run. Tests share the schema, so each one makes up
+ * its own emails and keys rather than expecting empty tables.
+ */
+public class TestDatabase {
+
+	public static final String CONFIG_FILE = "hibernate-test.cfg.xml";
+
+	private static boolean initialized;
+
+	public static synchronized SessionFactory sessionFactory() {
+		if( !initialized ) {
+			HibernateUtil.initSessionFactory(CONFIG_FILE);
+			initialized = true;
+		}
+		return HibernateUtil.getSessionFactory();
+	}
+
+}
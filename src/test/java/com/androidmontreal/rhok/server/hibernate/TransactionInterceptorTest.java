@@ -0,0 +1,145 @@
+package com.androidmontreal.rhok.server.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.androidmontreal.rhok.server.model.User;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+
+public class TransactionInterceptorTest {
+
+	/**
+	 * <p>Stand in for services, the interceptor only sees calls made on instances from the injector. Nested calls
+	 * go from one to the other for that reason.
+	 */
+	public static class Users {
+		@Transactionnal
+		void create(String email) {
+			User user = new User();
+			user.setEmail(email);
+			user.setPassword("unused");
+			HibernateUtil.getCurrentSession().save(user);
+		}
+
+		@Transactionnal(propagation = Propagation.REQUIRES_NEW)
+		void createInNewTransaction(String email) {
+			create(email);
+		}
+
+		@Transactionnal(readOnly = true)
+		Long find(String email) {
+			return (Long) HibernateUtil.getCurrentSession()
+				.createQuery("select u.id from User as u where u.normalizedEmail = :email")
+				.setString("email", User.normalizeEmail(email))
+				.uniqueResult();
+		}
+
+		@Transactionnal(propagation = Propagation.SUPPORTS)
+		Long findSupported(String email) {
+			return find(email);
+		}
+
+		@Transactionnal(propagation = Propagation.SUPPORTS)
+		boolean inTransaction() {
+			return HibernateUtil.getCurrentSession().getTransaction().isActive();
+		}
+	}
+
+	public static class Callers {
+		@Inject
+		Users users;
+
+		@Transactionnal
+		void createThenFail(String outerEmail, String innerEmail) {
+			users.create(outerEmail);
+			users.createInNewTransaction(innerEmail);
+			throw new IllegalStateException("Outer transaction fails.");
+		}
+
+		@Transactionnal
+		Long createThenFind(String outerEmail, String innerEmail) {
+			users.create(outerEmail);
+			users.createInNewTransaction(innerEmail);
+			return users.findSupported(innerEmail);
+		}
+
+		@Transactionnal(propagation = Propagation.SUPPORTS)
+		FlushMode flushModeThenCreate(String email) {
+			FlushMode flushMode = HibernateUtil.getCurrentSession().getFlushMode();
+			users.create(email);
+			return flushMode;
+		}
+	}
+
+	private static Users users;
+	private static Callers callers;
+
+	@BeforeClass
+	public static void setUp() {
+		TestDatabase.sessionFactory();
+		Injector injector = Guice.createInjector(new TransactionModule());
+		users = injector.getInstance(Users.class);
+		callers = injector.getInstance(Callers.class);
+	}
+
+	@Test
+	public void requiresNewCommitsWhenTheOuterTransactionRollsBack() {
+		try {
+			callers.createThenFail("rolled-back@example.com", "committed@example.com");
+			fail("Expected the outer call to fail.");
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+
+		assertNull(users.find("rolled-back@example.com"));
+		assertNotNull(users.find("committed@example.com"));
+	}
+
+	@Test
+	public void outerTransactionCarriesOnAfterRequiresNew() {
+		Long id = callers.createThenFind("outer@example.com", "inner@example.com");
+
+		assertNotNull(id);
+		assertNotNull(users.find("outer@example.com"));
+		assertEquals(id, users.find("inner@example.com"));
+		assertSessionReleased();
+	}
+
+	@Test
+	public void supportsRunsWithoutTransaction() {
+		users.create("supported@example.com");
+
+		assertFalse(users.inTransaction());
+		assertNotNull(users.findSupported("supported@example.com"));
+		assertSessionReleased();
+	}
+
+	@Test
+	public void requiredInsideSupportsGetsItsOwnTransaction() {
+		assertEquals(FlushMode.MANUAL, callers.flushModeThenCreate("nested@example.com"));
+
+		assertNotNull(users.find("nested@example.com"));
+		assertSessionReleased();
+	}
+
+	/**
+	 * <p>Nothing left bound to the thread but a session that never started anything.
+	 */
+	private static void assertSessionReleased() {
+		Session session = HibernateUtil.getCurrentSession();
+		assertFalse(session.getTransaction().isActive());
+		assertTrue(session.isOpen());
+	}
+
+}
@@ -0,0 +1,37 @@
+package com.androidmontreal.rhok.server.security;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PasswordHasherTest {
+
+	private final PasswordHasher hasher = new PasswordHasher(1000);
+
+	@Test
+	public void legacyPlaintextNeedsRehash() {
+		assertTrue(hasher.needsRehash("Legacy123"));
+	}
+
+	@Test
+	public void fewerIterationsNeedRehash() {
+		String weaker = new PasswordHasher(500).hash("Password123");
+
+		assertTrue(hasher.verify("Password123", weaker));
+		assertTrue(hasher.needsRehash(weaker));
+	}
+
+	@Test
+	public void currentHashIsKept() {
+		assertFalse(hasher.needsRehash(hasher.hash("Password123")));
+		assertFalse(hasher.needsRehash(new PasswordHasher(2000).hash("Password123")));
+	}
+
+	@Test
+	public void malformedHashIsLeftAlone() {
+		assertFalse(hasher.needsRehash("pbkdf2:many:c2FsdA==:aGFzaA=="));
+		assertFalse(hasher.needsRehash(null));
+	}
+
+}
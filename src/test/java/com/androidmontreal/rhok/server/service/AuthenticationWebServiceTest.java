@@ -0,0 +1,78 @@
+package com.androidmontreal.rhok.server.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.androidmontreal.rhok.server.hibernate.TestDatabase;
+import com.androidmontreal.rhok.server.hibernate.TransactionModule;
+import com.androidmontreal.rhok.server.model.User;
+import com.androidmontreal.rhok.server.service.AuthenticationWebService.AuthenticationRequest;
+import com.androidmontreal.rhok.server.service.AuthenticationWebService.AuthenticationResult;
+import com.google.inject.Guice;
+
+public class AuthenticationWebServiceTest {
+
+	private static AuthenticationWebService auth;
+
+	@BeforeClass
+	public static void setUp() {
+		TestDatabase.sessionFactory();
+		auth = Guice.createInjector(new TransactionModule()).getInstance(AuthenticationWebService.class);
+	}
+
+	@Test
+	public void legacyPasswordIsHashedOnLogin() {
+		Long id = createUser("legacy@example.com", "Legacy123");
+		assertEquals("Legacy123", storedPassword(id));
+
+		assertNotNull(login("legacy@example.com", "Legacy123").getSessionKey());
+		assertTrue(storedPassword(id).startsWith("pbkdf2:"));
+
+		// And the new hash works.
+		assertNotNull(login("legacy@example.com", "Legacy123").getSessionKey());
+	}
+
+	private static AuthenticationResult login(String email, String password) {
+		AuthenticationRequest request = new AuthenticationRequest();
+		request.setEmail(email);
+		request.setPassword(password);
+		return auth.authenticate(request, null);
+	}
+
+	/**
+	 * <p>Straight into the table, the way accounts from before hashing look.
+	 */
+	private static Long createUser(String email, String password) {
+		Session session = TestDatabase.sessionFactory().openSession();
+		Transaction tx = session.beginTransaction();
+		try {
+			User user = new User();
+			user.setEmail(email);
+			user.setPassword(password);
+			session.save(user);
+			tx.commit();
+			return user.getId();
+		} finally {
+			session.close();
+		}
+	}
+
+	private static String storedPassword(Long id) {
+		Session session = TestDatabase.sessionFactory().openSession();
+		try {
+			// A projection, the cached User could hide what's in the table.
+			return (String) session.createQuery("select u.password from User as u where u.id = :id")
+				.setLong("id", id)
+				.uniqueResult();
+		} finally {
+			session.close();
+		}
+	}
+
+}
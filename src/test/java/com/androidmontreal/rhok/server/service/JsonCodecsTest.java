@@ -0,0 +1,238 @@
+package com.androidmontreal.rhok.server.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.androidmontreal.rhok.server.service.AuthenticationWebService.AuthenticationRequest;
+import com.androidmontreal.rhok.server.service.AuthenticationWebService.AuthenticationResult;
+import com.androidmontreal.rhok.server.service.UserManagement.CreateUserResult;
+import com.androidmontreal.rhok.server.service.UserManagement.UserPage;
+import com.androidmontreal.rhok.server.service.UserManagement.UserSummary;
+import com.androidmontreal.rhok.server.service.result.ValidationResult;
+import com.androidmontreal.rhok.server.web.JsonCodec;
+import com.androidmontreal.rhok.server.web.StreamingJsonProvider;
+import com.sun.jersey.api.json.JSONConfiguration;
+import com.sun.jersey.api.json.JSONJAXBContext;
+import com.sun.jersey.api.json.JSONMarshaller;
+import com.sun.jersey.api.json.JSONUnmarshaller;
+
+/**
+ * <p>Every codec in {@link JsonCodecs} must write the same bytes jersey-json would, with the default configuration
+ * the service runs with, and read what it would.
+ * <p>Strings hold at most one control character: past that jersey-json mangles them, see MappedJsonWriter. And no
+ * request puts an array or object where a string goes, jersey-json's answer there depends on what comes next
+ * (sometimes it never returns), see JsonCodec.readText().
+ */
+public class JsonCodecsTest {
+
+	private static final String[] TEXT = {
+		null, "", "abc", "a\"b\\c/d", "\u00e9\u20ac\ud83d\ude00", "tab\there", "<&>'", "</script>", " spaced ",
+	};
+
+	private static final String[] REQUESTS = {
+		"{\"email\":\"e\",\"password\":\"p\"}",
+		"{\"password\":\"p\",\"x\":{\"y\":[1,2]},\"email\":\"e\"}",
+		"{\"email\":12.50,\"password\":true}",
+		"{\"email\":null}",
+		"{\"email\":\"\\u00e9\\n\"}",
+		"{}",
+		"{\"password\":\"p\",\"nested\":[{\"email\":\"x\"}],\"email\":\"e\"}",
+	};
+
+	private static JSONMarshaller marshaller;
+	private static JSONUnmarshaller unmarshaller;
+
+	private final Random random = new Random(20121006L);
+
+	@BeforeClass
+	public static void jersey() throws Exception {
+		List<Class<?>> types = new ArrayList<Class<?>>();
+		for( JsonCodec<?> codec : JsonCodecs.ALL ) {
+			types.add(codec.getType());
+		}
+		JSONJAXBContext context = new JSONJAXBContext(JSONConfiguration.DEFAULT, types.toArray(new Class<?>[types.size()]));
+		marshaller = context.createJSONMarshaller();
+		unmarshaller = context.createJSONUnmarshaller();
+	}
+
+	@Test
+	public void writesLikeJersey() throws Exception {
+		for( JsonCodec<?> codec : JsonCodecs.ALL ) {
+			List<Object> samples = samples(codec.getType());
+			assertFalse("No samples for " + codec.getType().getName(), samples.isEmpty());
+			for( Object sample : samples ) {
+				assertWritesLikeJersey(codec, sample);
+			}
+		}
+	}
+
+	@Test
+	public void readsLikeJersey() throws Exception {
+		for( JsonCodec<?> codec : JsonCodecs.ALL ) {
+			if( !codec.canRead() ) {
+				continue;
+			}
+			for( String json : REQUESTS ) {
+				assertReadsLikeJersey(codec, json);
+			}
+			// Whatever we write has to come back the same. Except a value with no fields, that's written as null, which
+			// jersey-json never returns from and we answer with a 400.
+			for( Object sample : samples(codec.getType()) ) {
+				String json = json(codec, sample);
+				if( json.startsWith("{") ) {
+					assertReadsLikeJersey(codec, json);
+				}
+			}
+		}
+	}
+
+	private static <T> void assertWritesLikeJersey(JsonCodec<T> codec, Object sample) throws Exception {
+		T value = codec.getType().cast(sample);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		marshaller.marshallToJSON(value, expected);
+		byte[] actual = StreamingJsonProvider.toJson(codec, value, "UTF-8");
+		assertEquals(new String(expected.toByteArray(), "UTF-8"), new String(actual, "UTF-8"));
+	}
+
+	private static <T> void assertReadsLikeJersey(JsonCodec<T> codec, String json) throws Exception {
+		T expected = unmarshaller.unmarshalFromJSON(new StringReader(json), codec.getType());
+		T actual = StreamingJsonProvider.fromJson(codec, new ByteArrayInputStream(json.getBytes("UTF-8")));
+		// Compared through what jersey-json makes of them, that's every field it knows.
+		assertEquals(json, jerseyJson(expected), jerseyJson(actual));
+	}
+
+	private static String jerseyJson(Object value) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		marshaller.marshallToJSON(value, out);
+		return new String(out.toByteArray(), "UTF-8");
+	}
+
+	private static <T> String json(JsonCodec<T> codec, Object sample) throws Exception {
+		return new String(StreamingJsonProvider.toJson(codec, codec.getType().cast(sample), "UTF-8"), "UTF-8");
+	}
+
+	/**
+	 * <p>Every combination that matters for the small types, random ones for those with lists.
+	 */
+	private List<Object> samples(Class<?> type) {
+		List<Object> samples = new ArrayList<Object>();
+		if( type == AuthenticationRequest.class ) {
+			for( String email : TEXT ) {
+				for( String password : TEXT ) {
+					AuthenticationRequest request = new AuthenticationRequest();
+					request.setEmail(email);
+					request.setPassword(password);
+					samples.add(request);
+				}
+			}
+		} else if( type == AuthenticationResult.class ) {
+			for( String key : TEXT ) {
+				for( int state = -1; state < AuthenticationResult.Result.values().length; state++ ) {
+					AuthenticationResult result = new AuthenticationResult();
+					result.setSessionKey(key);
+					result.setState(state < 0 ? null : AuthenticationResult.Result.values()[state]);
+					samples.add(result);
+				}
+			}
+		} else if( type == ValidationResult.class ) {
+			for( String fieldName : TEXT ) {
+				for( String message : TEXT ) {
+					samples.add(validationResult(fieldName, message));
+				}
+			}
+		} else if( type == CreateUserResult.class ) {
+			for( int i = 0; i < 500; i++ ) {
+				samples.add(createUserResult());
+			}
+		} else if( type == UserSummary.class ) {
+			for( int i = 0; i < 500; i++ ) {
+				samples.add(userSummary());
+			}
+		} else if( type == UserPage.class ) {
+			for( int i = 0; i < 500; i++ ) {
+				UserPage page = new UserPage();
+				page.setNext(text());
+				page.setUsers(list(new Sample<UserSummary>() {
+					UserSummary next() {
+						return userSummary();
+					}
+				}));
+				samples.add(page);
+			}
+		}
+		return samples;
+	}
+
+	private abstract static class Sample<T> {
+		abstract T next();
+	}
+
+	/**
+	 * <p>Null, empty, one element (no array in mapped JSON) or a few, with the odd null element.
+	 */
+	private <T> List<T> list(Sample<T> sample) {
+		int size = random.nextInt(5) - 1;
+		if( size < 0 ) {
+			return null;
+		}
+		List<T> list = new ArrayList<T>();
+		for( int i = 0; i < size; i++ ) {
+			list.add(random.nextInt(6) == 0 ? null : sample.next());
+		}
+		return list;
+	}
+
+	private CreateUserResult createUserResult() {
+		CreateUserResult result = new CreateUserResult();
+		if( random.nextBoolean() ) {
+			CreateUserResult.Code[] codes = CreateUserResult.Code.values();
+			result.setResultCode(codes[random.nextInt(codes.length)]);
+		}
+		result.setValidationResults(list(new Sample<ValidationResult>() {
+			ValidationResult next() {
+				return validationResult(text(), text());
+			}
+		}));
+		return result;
+	}
+
+	private UserSummary userSummary() {
+		UserSummary user = new UserSummary();
+		if( random.nextBoolean() ) {
+			user.setId(random.nextLong());
+		}
+		user.setEmail(text());
+		user.setUsername(text());
+		user.setFirstName(text());
+		user.setLastName(text());
+		if( random.nextBoolean() ) {
+			user.setConfirmed(random.nextBoolean());
+		}
+		if( random.nextBoolean() ) {
+			user.setArchived(random.nextBoolean());
+		}
+		return user;
+	}
+
+	private static ValidationResult validationResult(String fieldName, String message) {
+		ValidationResult result = new ValidationResult();
+		result.setFieldName(fieldName);
+		result.setMessage(message);
+		return result;
+	}
+
+	private String text() {
+		return TEXT[random.nextInt(TEXT.length)];
+	}
+
+}
@@ -0,0 +1,89 @@
+package com.androidmontreal.rhok.server.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.androidmontreal.rhok.server.hibernate.TestDatabase;
+import com.androidmontreal.rhok.server.hibernate.TransactionModule;
+import com.androidmontreal.rhok.server.security.SessionTokens;
+import com.androidmontreal.rhok.server.service.AuthenticationWebService.AuthenticationRequest;
+import com.androidmontreal.rhok.server.service.AuthenticationWebService.AuthenticationResult.Result;
+import com.androidmontreal.rhok.server.service.UserManagement.CreateUserCommand;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * <p>Token mode on two injectors sharing the database, standing in for two nodes with the same secret.
+ */
+public class TokenRevocationTest {
+
+	private static final long POLL_INTERVAL = 100L;
+	private static final String PASSWORD = "Revocation123";
+
+	@BeforeClass
+	public static void setUp() {
+		// Read when SessionTokens gets built, so before the injectors.
+		System.setProperty("rhok.session.mode", "token");
+		System.setProperty("rhok.session.tokenSecret", "test-secret");
+		System.setProperty("rhok.session.tokenRevocationPoll", String.valueOf(POLL_INTERVAL));
+		TestDatabase.sessionFactory();
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		System.clearProperty("rhok.session.mode");
+		System.clearProperty("rhok.session.tokenSecret");
+		System.clearProperty("rhok.session.tokenRevocationPoll");
+	}
+
+	@Test
+	public void logoutOnOneNodeRevokesOnTheOther() throws InterruptedException {
+		Injector nodeA = Guice.createInjector(new TransactionModule());
+		Injector nodeB = Guice.createInjector(new TransactionModule());
+		AuthenticationWebService authA = nodeA.getInstance(AuthenticationWebService.class);
+		AuthenticationWebService authB = nodeB.getInstance(AuthenticationWebService.class);
+		SessionTokens tokensB = nodeB.getInstance(SessionTokens.class);
+		tokensB.start();
+		try {
+			createUser(nodeA, "token-logout@example.com");
+
+			String first = login(authA, "token-logout@example.com");
+			String second = login(authB, "token-logout@example.com");
+			Thread.sleep(POLL_INTERVAL * 3);
+			// Logins don't revoke, one token per device.
+			assertEquals(Result.GRANTED, authB.checkSession(first).getState());
+			assertEquals(Result.GRANTED, authB.checkSession(second).getState());
+
+			authA.logout(first);
+			assertEquals(Result.DENIED, authA.checkSession(second).getState());
+
+			Thread.sleep(POLL_INTERVAL * 3);
+			assertEquals(Result.DENIED, authB.checkSession(first).getState());
+			assertEquals(Result.DENIED, authB.checkSession(second).getState());
+		} finally {
+			tokensB.stop();
+		}
+	}
+
+	private static void createUser(Injector node, String email) {
+		UserManagement userManagement = node.getInstance(UserManagement.class);
+		CreateUserCommand command = userManagement.new CreateUserCommand();
+		command.setEmail(email);
+		command.setPassword(PASSWORD);
+		userManagement.createUser(command, null);
+	}
+
+	private static String login(AuthenticationWebService auth, String email) {
+		AuthenticationRequest request = new AuthenticationRequest();
+		request.setEmail(email);
+		request.setPassword(PASSWORD);
+		String key = auth.authenticate(request, null).getSessionKey();
+		assertNotNull(key);
+		return key;
+	}
+
+}
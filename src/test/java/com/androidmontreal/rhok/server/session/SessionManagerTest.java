@@ -0,0 +1,128 @@
+package com.androidmontreal.rhok.server.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Date;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.androidmontreal.rhok.server.hibernate.TestDatabase;
+import com.androidmontreal.rhok.server.hibernate.TransactionModule;
+import com.androidmontreal.rhok.server.model.User;
+import com.androidmontreal.rhok.server.model.UserSession;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * <p>Two injectors on the same database stand in for two nodes, each with its own session cache.
+ */
+public class SessionManagerTest {
+
+	private static final long MAX_STALE = 200L;
+
+	@BeforeClass
+	public static void setUp() {
+		// Read when a SessionManager gets built, so before the injectors.
+		System.setProperty("rhok.session.cache.maxStale", String.valueOf(MAX_STALE));
+		TestDatabase.sessionFactory();
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		System.clearProperty("rhok.session.cache.maxStale");
+	}
+
+	@Test
+	public void logoutOnAnotherNodeIsSeenWithinMaxStale() throws InterruptedException {
+		Injector nodeA = Guice.createInjector(new TransactionModule());
+		Injector nodeB = Guice.createInjector(new TransactionModule());
+		SessionManager managerA = nodeA.getInstance(SessionManager.class);
+		SessionManager managerB = nodeB.getInstance(SessionManager.class);
+
+		UserSession userSession = createSession("logout-elsewhere@example.com");
+		String key = userSession.getSessionKey();
+		managerA.sessionCreated(userSession);
+
+		assertNotNull(managerA.findValidSession(key));
+		assertNotNull("node B loads it from the database", managerB.findValidSession(key));
+
+		// Logout on node A, the way AuthenticationWebService does it.
+		userSession.setLoggedOut(true);
+		update(userSession);
+		managerA.sessionLoggedOut(userSession);
+		assertNull(managerA.findValidSession(key));
+
+		Thread.sleep(MAX_STALE + 50);
+		assertNull("node B must recheck once its entry is stale", managerB.findValidSession(key));
+		assertNull(managerB.findValidSession(key));
+	}
+
+	@Test
+	public void activityIsNotWrittenToLoggedOutSessions() {
+		Injector node = Guice.createInjector(new TransactionModule());
+		SessionActivityWriter writer = node.getInstance(SessionActivityWriter.class);
+
+		UserSession userSession = createSession("no-activity@example.com");
+		Date expiresAt = userSession.getExpiresAt();
+		userSession.setLoggedOut(true);
+		update(userSession);
+
+		// Another node that hasn't heard of the logout yet keeps touching it.
+		writer.touch(userSession.getId(), System.currentTimeMillis() + 60000L, userSession.getTimeout());
+		writer.flush();
+
+		assertEquals(expiresAt.getTime(), load(userSession.getId()).getExpiresAt().getTime());
+	}
+
+	private static UserSession createSession(String email) {
+		Session session = TestDatabase.sessionFactory().openSession();
+		Transaction tx = session.beginTransaction();
+		try {
+			User user = new User();
+			user.setEmail(email);
+			user.setPassword("unused");
+			session.save(user);
+
+			UserSession userSession = new UserSession();
+			userSession.setKey(UserSession.generateKey());
+			Date now = new Date();
+			userSession.setStartTime(now);
+			userSession.setLastActivity(now);
+			userSession.setTimeout(1000L * 60 * 60);
+			userSession.setUser(user);
+			session.save(userSession);
+
+			tx.commit();
+			return userSession;
+		} finally {
+			session.close();
+		}
+	}
+
+	private static void update(UserSession userSession) {
+		Session session = TestDatabase.sessionFactory().openSession();
+		Transaction tx = session.beginTransaction();
+		try {
+			session.update(userSession);
+			tx.commit();
+		} finally {
+			session.close();
+		}
+	}
+
+	private static UserSession load(Long id) {
+		Session session = TestDatabase.sessionFactory().openSession();
+		try {
+			return (UserSession) session.get(UserSession.class, id);
+		} finally {
+			session.close();
+		}
+	}
+
+}
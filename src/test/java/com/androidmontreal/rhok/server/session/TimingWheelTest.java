@@ -0,0 +1,69 @@
+package com.androidmontreal.rhok.server.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+	private static final long TICK = 1000L;
+
+	/**
+	 * <p>Random deadlines, some past the top wheel, and random steps of the clock, some of them huge. Every item
+	 * must fire on the first advance at or after its deadline's tick boundary, not before and not later.
+	 */
+	@Test
+	public void firesOnTimeWhateverTheSteps() {
+		Random random = new Random(20121006L);
+		long now = 1349481600000L;
+		TimingWheel<Integer> wheel = new TimingWheel<Integer>(TICK, now, 16);
+		Map<Integer, Long> deadlines = new HashMap<Integer, Long>();
+
+		for( int step = 0; step < 20000; step++ ) {
+			if( random.nextInt(3) > 0 ) {
+				long span = random.nextInt(10) == 0 ? (long) (random.nextDouble() * TICK * 20000000L)
+						: random.nextInt(500) * TICK + random.nextInt((int) TICK);
+				wheel.schedule(now + span, step);
+				deadlines.put(step, now + span);
+				continue;
+			}
+
+			now += random.nextInt(10) == 0 ? (long) (random.nextDouble() * TICK * 300000L) : random.nextInt(20) * TICK;
+			List<Integer> expired = new ArrayList<Integer>();
+			wheel.advance(now, expired);
+			long boundary = now / TICK * TICK;
+			for( Integer item : expired ) {
+				assertTrue("fired early", deadlines.remove(item) <= boundary);
+			}
+			for( Long deadline : deadlines.values() ) {
+				assertTrue("fired late", deadline > boundary);
+			}
+			assertEquals(deadlines.size(), wheel.size());
+		}
+	}
+
+	@Test
+	public void longPauseIsCheap() {
+		long now = 0;
+		TimingWheel<String> wheel = new TimingWheel<String>(1L, now, 16);
+		wheel.schedule(now + 5, "soon");
+		wheel.schedule(now + 50000000000L, "much later");
+
+		// Tens of billions of ticks, one at a time that wouldn't finish.
+		List<String> expired = new ArrayList<String>();
+		wheel.advance(now + 40000000000L, expired);
+		assertEquals(1, expired.size());
+
+		wheel.advance(now + 50000000000L, expired);
+		assertEquals(2, expired.size());
+		assertEquals(0, wheel.size());
+	}
+
+}
@@ -0,0 +1,106 @@
+package com.androidmontreal.rhok.server.validation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * <p>{@link EmailValidator} must accept exactly what the @Pattern it replaced did, and do it in linear time.
+ */
+public class EmailValidatorFuzzTest {
+
+	// What User.email used to have, matched the way @Pattern does: against the whole value.
+	private static final Pattern ORIGINAL = Pattern.compile(
+			"^[_A-Za-z0-9-]+(\\.[_A-Za-z0-9-]+)*@[A-Za-z0-9]+(\\.[A-Za-z0-9]+)*(\\.[A-Za-z]{2,})$");
+
+	// Heavy on the chars that split labels, that's where the rules are.
+	private static final String ALPHABET = "abcXYZ019_-....@@";
+
+	private static final String[] VALID = {
+		"first.last@mail.example.com", "a@b.co", "user_1-x@domain9.org", "x-y.z_w@a1.b2.info",
+	};
+
+	private final Random random = new Random(20121006L);
+
+	@Test
+	public void randomStrings() throws Throwable {
+		Fuzzing.onBigStack(new Runnable() {
+			public void run() {
+				for( int i = 0; i < 200000; i++ ) {
+					check(Fuzzing.randomString(random, ALPHABET, 24));
+				}
+			}
+		});
+	}
+
+	@Test
+	public void nearlyValid() throws Throwable {
+		Fuzzing.onBigStack(new Runnable() {
+			public void run() {
+				for( String email : VALID ) {
+					check(email);
+					for( int i = 0; i < 20000; i++ ) {
+						check(Fuzzing.mutate(random, email, ALPHABET));
+					}
+				}
+			}
+		});
+	}
+
+	@Test
+	public void adversarial() throws Throwable {
+		Fuzzing.onBigStack(new Runnable() {
+			public void run() {
+				String[] inputs = {
+					"", "@", "@@", "a@@b.com", "a@b@c.com", "@b.com", "a@", "a@b", "a@b.", "a@.com", ".a@b.com",
+					"a.@b.com", "a..b@c.com", "a@b..com", "a@b.c", "a@b.c1", "a@1.22", "a@b.com.", "a@b.com\n",
+					"\na@b.com", "a@b.co\u0000", "\u00e9@b.com", "a@\u00e9.com", "a@b.\u00e9\u00e9", "\uff21@b.com",
+					"a@b.c\u0661", "a b@c.com", "a@b" + Fuzzing.SURROGATE_PAIR + ".com", "a@b.com" + Fuzzing.SURROGATE_PAIR,
+					"-@-.com", "_@a.bc", "a@-.com", "a@_b.com",
+				};
+				for( String email : inputs ) {
+					check(email);
+				}
+			}
+		});
+	}
+
+	@Test
+	public void longInputs() throws Throwable {
+		Fuzzing.onBigStack(new Runnable() {
+			public void run() {
+				check(Fuzzing.repeat(".", 10000));
+				check(Fuzzing.repeat("@", 10000));
+				check(Fuzzing.repeat("a", 10000));
+				check(Fuzzing.repeat("a.", 5000));
+				check(Fuzzing.repeat("a.", 5000) + "@b.com");
+				check(Fuzzing.repeat("a.", 4999) + "a@b.com");
+				check(Fuzzing.repeat("a", 10000) + "@b.com");
+				check("a@" + Fuzzing.repeat("a.", 5000));
+				check("a@" + Fuzzing.repeat("a.", 4999) + "com");
+				check("a@" + Fuzzing.repeat("a.", 4999) + "c1");
+				check("a@" + Fuzzing.repeat("ab.", 3333) + "c");
+				check("a@b" + Fuzzing.repeat(".ab", 3300) + "!");
+				check("a@" + Fuzzing.repeat("a", 10000) + ".1");
+				check(Fuzzing.repeat("a", 10000) + "@b.c" + Fuzzing.repeat("\u00e9", 10));
+				for( int i = 0; i < 20; i++ ) {
+					check(Fuzzing.randomString(random, ALPHABET, 10000));
+				}
+			}
+		});
+	}
+
+	private static void check(String email) {
+		boolean expected = ORIGINAL.matcher(email).matches();
+		long start = System.nanoTime();
+		boolean actual = EmailValidator.isValidEmail(email);
+		long took = System.nanoTime() - start;
+		assertEquals(Fuzzing.describe(email), expected, actual);
+		assertTrue(Fuzzing.describe(email) + " took " + took + " ns", took < Fuzzing.MAX_CALL_NANOS);
+	}
+
+}
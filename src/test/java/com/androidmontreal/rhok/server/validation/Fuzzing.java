@@ -0,0 +1,120 @@
+package com.androidmontreal.rhok.server.validation;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>What the validator fuzz tests share: random input and a thread the old regexps can run on.
+ */
+class Fuzzing {
+
+	// Generous, a linear scan of 10k chars takes microseconds. Backtracking is what would blow it.
+	static final long MAX_CALL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+	// java.util.regex recurses once per repetition of a group, the old regexps overflow a default stack on long
+	// inputs. Not what we're testing, they get room for it.
+	private static final long ORACLE_STACK = 256L << 20;
+
+	// Outside what the regexps accept, each for a reason: accented, control, line terminators, fullwidth 'A',
+	// Arabic-Indic digit, half of a surrogate pair.
+	private static final char[] ODD = { '\u00e9', '\u0000', '\n', '\r', '\u0085', '\u2028', '\uff21', '\u0661', '\ud83d', '\ude00' };
+
+	// One emoji, two chars.
+	static final String SURROGATE_PAIR = "\ud83d\ude00";
+
+	/**
+	 * <p>Mostly from the alphabet, now and then something odd.
+	 */
+	static String randomString(Random random, String alphabet, int maxLength) {
+		int length = random.nextInt(maxLength + 1);
+		StringBuilder out = new StringBuilder(length);
+		while( out.length() < length ) {
+			int pick = random.nextInt(20);
+			if( pick == 0 ) {
+				out.append(ODD[random.nextInt(ODD.length)]);
+			} else if( pick == 1 ) {
+				out.append(SURROGATE_PAIR);
+			} else {
+				out.append(alphabet.charAt(random.nextInt(alphabet.length())));
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * <p>A few random inserts, deletes and replacements.
+	 */
+	static String mutate(Random random, String value, String alphabet) {
+		StringBuilder out = new StringBuilder(value);
+		int edits = 1 + random.nextInt(3);
+		for( int i = 0; i < edits; i++ ) {
+			int at = random.nextInt(out.length() + 1);
+			char c = random.nextInt(10) == 0 ? ODD[random.nextInt(ODD.length)] : alphabet.charAt(random.nextInt(alphabet.length()));
+			switch( random.nextInt(3) ) {
+			case 0:
+				out.insert(at, c);
+				break;
+			case 1:
+				if( at < out.length() ) {
+					out.deleteCharAt(at);
+				}
+				break;
+			default:
+				if( at < out.length() ) {
+					out.setCharAt(at, c);
+				}
+			}
+		}
+		return out.toString();
+	}
+
+	static String repeat(String value, int times) {
+		StringBuilder out = new StringBuilder(value.length() * times);
+		for( int i = 0; i < times; i++ ) {
+			out.append(value);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * <p>For failure messages: short, and readable whatever's in it.
+	 */
+	static String describe(String value) {
+		StringBuilder out = new StringBuilder();
+		out.append(value.length()).append(" chars \"");
+		for( int i = 0; i < value.length() && i < 80; i++ ) {
+			char c = value.charAt(i);
+			if( c >= 0x20 && c < 0x7f ) {
+				out.append(c);
+			} else {
+				out.append(String.format("\\u%04x", (int) c));
+			}
+		}
+		if( value.length() > 80 ) {
+			out.append("...");
+		}
+		return out.append('"').toString();
+	}
+
+	/**
+	 * <p>Runs the test on a thread with a stack big enough for the old regexps, failures included.
+	 */
+	static void onBigStack(final Runnable test) throws Throwable {
+		final Throwable[] failure = new Throwable[1];
+		Thread thread = new Thread(null, new Runnable() {
+			public void run() {
+				try {
+					test.run();
+				} catch (Throwable e) {
+					failure[0] = e;
+				}
+			}
+		}, "fuzz", ORACLE_STACK);
+		thread.start();
+		thread.join();
+		if( failure[0] != null ) {
+			throw failure[0];
+		}
+	}
+
+}
@@ -0,0 +1,100 @@
+package com.androidmontreal.rhok.server.validation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * <p>{@link PasswordValidator} must accept exactly what the @Pattern it replaced did, and do it in linear time.
+ */
+public class PasswordValidatorFuzzTest {
+
+	// What User.password used to have, matched the way @Pattern does: against the whole value.
+	private static final Pattern ORIGINAL = Pattern.compile("((?=.*\\d)(?=.*[a-z])(?=.*[A-Z]).{6,20})");
+
+	private static final String ALPHABET = "abzABZ019 !~";
+
+	private final Random random = new Random(20121006L);
+
+	@Test
+	public void randomStrings() throws Throwable {
+		Fuzzing.onBigStack(new Runnable() {
+			public void run() {
+				// Around the 6 and 20 code point limits.
+				for( int i = 0; i < 200000; i++ ) {
+					check(Fuzzing.randomString(random, ALPHABET, 26));
+				}
+			}
+		});
+	}
+
+	@Test
+	public void nearlyValid() throws Throwable {
+		Fuzzing.onBigStack(new Runnable() {
+			public void run() {
+				String[] valid = { "Abcde1", "Benchmark123", "aB3" + Fuzzing.repeat("x", 17), "1aZ" + Fuzzing.SURROGATE_PAIR + "!!" };
+				for( String password : valid ) {
+					check(password);
+					for( int i = 0; i < 20000; i++ ) {
+						check(Fuzzing.mutate(random, password, ALPHABET));
+					}
+				}
+			}
+		});
+	}
+
+	@Test
+	public void adversarial() throws Throwable {
+		Fuzzing.onBigStack(new Runnable() {
+			public void run() {
+				String[] inputs = {
+					"", "aA1", "aA1aA", "aA1aA1", "aaaaa1", "AAAAA1", "aaaaaA", "aA1" + Fuzzing.repeat("x", 17),
+					"aA1" + Fuzzing.repeat("x", 18),
+					// Code points, not chars: 20 of them in 37 chars is fine, 21 isn't.
+					"aA1" + Fuzzing.repeat(Fuzzing.SURROGATE_PAIR, 17), "aA1" + Fuzzing.repeat(Fuzzing.SURROGATE_PAIR, 18),
+					"aA1" + Fuzzing.repeat(Fuzzing.SURROGATE_PAIR, 20),
+					// Lone halves of a pair are a code point each.
+					"aA1\ud83d\ud83d\ud83d", "aA1\ude00\ude00\ude00", "\ude00\ud83daA1",
+					// Line terminators, which '.' refuses.
+					"aA1bcd\n", "\naA1bcd", "aA1\r\nbcd", "aA1bcd\u0085", "aA1bcd\u2028", "aA1bcd\u2029",
+					// Digits and letters the regexp doesn't count.
+					"\u0661\u0662aAbc", "\uff21bcde1", "\u00e9\u00e9\u00e9A12", "aA1\u0000\u0000\u0000",
+				};
+				for( String password : inputs ) {
+					check(password);
+				}
+			}
+		});
+	}
+
+	@Test
+	public void longInputs() throws Throwable {
+		Fuzzing.onBigStack(new Runnable() {
+			public void run() {
+				check(Fuzzing.repeat("a", 10000));
+				check(Fuzzing.repeat("aA1", 3334));
+				check(Fuzzing.repeat("\n", 10000));
+				check(Fuzzing.repeat(Fuzzing.SURROGATE_PAIR, 5000));
+				check(Fuzzing.repeat("x", 9997) + "aA1");
+				check("aA1" + Fuzzing.repeat(".", 9997));
+				for( int i = 0; i < 20; i++ ) {
+					check(Fuzzing.randomString(random, ALPHABET, 10000));
+				}
+			}
+		});
+	}
+
+	private static void check(String password) {
+		boolean expected = ORIGINAL.matcher(password).matches();
+		long start = System.nanoTime();
+		boolean actual = PasswordValidator.isValidPassword(password);
+		long took = System.nanoTime() - start;
+		assertEquals(Fuzzing.describe(password), expected, actual);
+		assertTrue(Fuzzing.describe(password) + " took " + took + " ns", took < Fuzzing.MAX_CALL_NANOS);
+	}
+
+}